@@ -0,0 +1,163 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+/**
+ * Indice de los archivos adjuntos recibidos segun el resumen SHA-256 de su
+ * contenido. Si llega un archivo que ya se tiene, no es necesario volver
+ * a descargarlo.
+ * El indice se guarda en la bitacora de la carpeta de archivos adjuntos.
+ *
+ * @author wetteifer
+ */
+public class ChatBlobIndex {
+
+    private final File file;
+    private Properties entries;
+
+    /**
+     * Crea el indice.
+     * @param folder La carpeta de la bitacora.
+     */
+    public ChatBlobIndex(File folder) {
+        this.file = new File(folder, "blobs.properties");
+    }
+
+    /**
+     * Busca un archivo recibido anteriormente.
+     * @param hash El resumen del contenido.
+     * @param size El tamaño del archivo.
+     * @return El archivo, o null si no se tiene o cambio desde que se recibio.
+     */
+    public synchronized File find(String hash, long size) {
+        if (hash == null) {
+            return null;
+        }
+
+        String entry = getEntries().getProperty(hash);
+
+        if (entry == null) {
+            return null;
+        }
+
+        // Cada entrada tiene la forma "tamaño,modificacion,ruta".
+        String[] parts = entry.split(",", 3);
+
+        if (parts.length != 3) {
+            return null;
+        }
+
+        File blob = new File(parts[2]);
+
+        try {
+            if (blob.isFile() && blob.length() == size &&
+                    Long.parseLong(parts[0]) == size &&
+                    Long.parseLong(parts[1]) == blob.lastModified()) {
+                return blob;
+            }
+        } catch (NumberFormatException e) {}
+
+        // El archivo se modifico o se elimino.
+        getEntries().remove(hash);
+
+        return null;
+    }
+
+    /**
+     * Agrega un archivo recibido al indice.
+     * @param hash El resumen del contenido.
+     * @param blob El archivo.
+     */
+    public synchronized void add(String hash, File blob) {
+        if (hash == null) {
+            return;
+        }
+
+        getEntries().setProperty(hash, blob.length() + "," + blob.lastModified() + "," + blob.getAbsolutePath());
+
+        try {
+            ChatDownload.writeJournal(file, getEntries());
+        } catch (IOException e) {
+            // Sin indice, el archivo simplemente se volvera a descargar.
+        }
+    }
+
+    /**
+     * Calcula el resumen SHA-256 de un archivo.
+     * @param blob El archivo.
+     * @return El resumen en hexadecimal.
+     * @throws IOException Si no se pudo leer el archivo.
+     */
+    public static String hash(File blob) throws IOException {
+        MessageDigest digest = createDigest();
+        InputStream in = new FileInputStream(blob);
+
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int readed;
+
+            while ((readed = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, readed);
+            }
+        } finally {
+            in.close();
+        }
+
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Crea un objeto para calcular el resumen SHA-256 de un archivo.
+     * @return El objeto.
+     */
+    public static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Todas las maquinas virtuales deben soportar SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Convierte un resumen a hexadecimal.
+     * @param digest El resumen.
+     * @return El resumen en hexadecimal.
+     */
+    public static String toHex(byte[] digest) {
+        StringBuilder builder = new StringBuilder(digest.length * 2);
+
+        for (byte b : digest) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Regresa las entradas del indice, leyendolas la primera vez.
+     */
+    private Properties getEntries() {
+        if (entries == null) {
+            entries = file.isFile() ? ChatDownload.readJournal(file) : null;
+
+            if (entries == null) {
+                entries = new Properties();
+            }
+        }
+
+        return entries;
+    }
+
+}
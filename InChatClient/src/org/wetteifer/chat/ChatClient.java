@@ -4,16 +4,26 @@
  */
 package org.wetteifer.chat;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import javax.xml.bind.DatatypeConverter;
 
 /**
@@ -22,32 +32,115 @@ import javax.xml.bind.DatatypeConverter;
  */
 public class ChatClient extends Thread {
     
-    private static final int SERVER_PORT = 8080;
+    // Tiempo maximo de espera por la confirmacion del servidor al enviar un archivo.
+    private static final long ACK_TIMEOUT = 30 * 1000;
     
     private Socket client;
-    private ObjectOutputStream output;
-    private ObjectInputStream input;
-    private ChatClientListener callback;        
+    private OutputStream output;
+    private DataInputStream input;
     private String username;
+    private boolean virtual;
+    private ChatCodec codec;
+    private ChatMessage pending;
+    private boolean chunked;
+    private boolean resumable;
+    private boolean pull;
+    private boolean presence;
+    private volatile boolean rosterPending;
+    private final Set<String> roster;
+    private final ChatClientConfig config;
+    private final Map<String, ChatDownload> downloads;
+    private final Map<String, ChatUpload> uploads;
+    private final ChatBlobIndex blobs;
+    private final ChatInboundQueue inbound;
     
     /**
-     * Crea un nuevo cliente para el servidor de chat.
-     * @param address La direccion del servidor de chat.
+     * Crea un nuevo cliente para el servidor de chat con la configuracion
+     * indicada en las propiedades del sistema.
+     * @param address La direccion del servidor de chat, con la forma "host"
+     *                o "host:puerto".
      * @throws ChatException Si ocurre un error al conectarse con el servidor.
      */
     public ChatClient(String address) throws ChatException {
+        this(address, ChatClientConfig.fromSystemProperties());
+    }
+    
+    /**
+     * Crea un nuevo cliente para el servidor de chat.
+     * @param address La direccion del servidor de chat, con la forma "host"
+     *                o "host:puerto".
+     * @param config La configuracion de la conexion.
+     * @throws ChatException Si ocurre un error al conectarse con el servidor.
+     */
+    public ChatClient(String address, ChatClientConfig config) throws ChatException {
+        this.config = config;
+        this.downloads = new ConcurrentHashMap<String, ChatDownload>();
+        this.uploads = new ConcurrentHashMap<String, ChatUpload>();
+        this.roster = new ConcurrentSkipListSet<String>();
+        this.blobs = new ChatBlobIndex(getJournalFolder());
+        this.inbound = new ChatInboundQueue(config.getInboundCapacity(), config.getInboundPolicy());
+        
+        String host = address.trim();
+        int port = config.getPort();
+        
+        // La direccion puede incluir el puerto (con corchetes para IPv6).
+        int colon = host.lastIndexOf(':');
+        
+        if ((colon > 0 && host.indexOf(':') == colon) || (host.startsWith("[") && colon > host.indexOf(']'))) {
+            try {
+                port = Integer.parseInt(host.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new ChatException("Puerto invalido: " + host.substring(colon + 1));
+            }
+            host = host.substring(0, colon);
+        }
+        
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        
+        client = new Socket();
+        
         try {
-            client = new Socket(address, SERVER_PORT);
+            client.setTcpNoDelay(config.isTcpNoDelay());
+            client.setKeepAlive(config.isKeepAlive());
+            
+            if (config.getSendBufferSize() > 0) {
+                client.setSendBufferSize(config.getSendBufferSize());
+            }
+            
+            // El buffer de recepcion debe fijarse antes de conectarse.
+            if (config.getReceiveBufferSize() > 0) {
+                client.setReceiveBufferSize(config.getReceiveBufferSize());
+            }
+            
+            client.connect(new InetSocketAddress(host, port), config.getConnectTimeout());
         } catch (IOException e) {
+            close();
             throw new ChatException("No se pudo conectar al servidor.");
         }
+        
+        // Los hilos virtuales se pueden activar con -Dinchat.client.virtual=true.
+        virtual = config.isVirtualThreads();
+        
+        // El inicio de sesion siempre usa la serializacion de Java.
+        codec = ChatCodec.SERIAL;
     }
     
     /**
-     * Cola de mensajes recibidos del servidor.
+     * Lee los mensajes recibidos del servidor. Los mensajes se entregan al
+     * oyente desde el hilo de la cola de mensajes, para no dejar de leer.
      */
     @Override
     public void run() {
+        // Entregamos la respuesta del servidor al inicio de sesion si no fue
+        // una confirmacion (por ejemplo, si la conexion fue rechazada).
+        if (pending != null) {
+            inbound.publish(pending);
+        }
+        
+        pending = null;
+        
         while (!client.isClosed()) {
             // Leemos un mensaje.
             ChatMessage chat = receive();
@@ -58,12 +151,52 @@ public class ChatClient extends Thread {
                 close();
                 break;
             }
+            
+            // Los archivos adjuntos se entregan hasta que estan completos.
+            switch (chat.getType()) {
+                case AUDIO:
+                case IMAGE:
+                case CHUNK:
+                    chat = receiveAttachment(chat);
+                    break;
+                case ACK:
+                    receiveAcknowledge(chat);
+                    chat = null;
+                    break;
+                case PING:
+                    receivePing(chat);
+                    chat = null;
+                    break;
+                case CONNECTED_USERS:
+                case JOIN:
+                case LEAVE:
+                case PRESENCE:
+                    receivePresence(chat);
+                    break;
+            }
 
             // Delegamos la accion a realizar.
-            if (callback != null) {
-                callback.onMessageReceived(chat);
+            if (chat != null) {
+                inbound.publish(chat);
             }
         }
+        
+        // Entregamos los mensajes pendientes y terminamos la cola.
+        inbound.shutdown();
+        
+        // Conservamos los archivos que no se terminaron de recibir para
+        // continuar al volver a conectarnos (o los eliminamos si el servidor
+        // no lo permite).
+        for (ChatDownload download : downloads.values()) {
+            download.suspend();
+        }
+        
+        downloads.clear();
+        
+        // Los envios en curso ya no recibiran confirmaciones.
+        for (ChatUpload upload : uploads.values()) {
+            upload.acknowledge(-1);
+        }
     }
     
     /**
@@ -123,14 +256,74 @@ public class ChatClient extends Thread {
         sendMessage(new ChatMessage(ChatMessage.Type.IMAGE, receiver, filename));
     }
     
+    /**
+     * Descarga un archivo adjunto que el servidor solo anuncio. Al completarse
+     * el archivo, el oyente recibe un mensaje AUDIO o IMAGE con su ruta.
+     * @param descriptor El mensaje AUDIO o IMAGE recibido, que aun tiene el
+     *                   identificador del archivo.
+     * @throws ChatException Si no se pudo crear el archivo.
+     */
+    public void download(ChatMessage descriptor) throws ChatException {
+        // El mensaje ya tiene la ruta del archivo recibido.
+        if (descriptor.getAttachment() == null) return;
+        
+        // El archivo ya se habia descargado.
+        File existing = blobs.find(descriptor.getHash(), descriptor.getSize());
+        
+        if (existing != null) {
+            inbound.publish(new ChatMessage(descriptor.getType(), descriptor.getSender(),
+                    descriptor.getReceiver(), existing.getAbsolutePath()));
+            return;
+        }
+        
+        String key = ChatDownload.key(descriptor);
+        ChatDownload download;
+        
+        synchronized (downloads) {
+            // El archivo ya se esta descargando.
+            if (downloads.containsKey(key)) return;
+            
+            try {
+                download = new ChatDownload(descriptor, config.getAttachmentsFolder(), getJournalFolder(), username);
+            } catch (IOException e) {
+                throw new ChatException("No se pudo guardar el archivo " + descriptor.getMessage() + ".");
+            }
+            
+            downloads.put(key, download);
+        }
+        
+        download.startFetch();
+        fetch(download);
+    }
+    
     /**
      * Envia un mensaje al servidor solicitandole la lista de usuarios conectados.
+     * No es necesario si el servidor envia los cambios de la lista
+     * (ver isPresenceSupported).
      * @throws ChatException Si ocurre un error al enviar el mensaje.
      */
     public void requestConnectedUsers() throws ChatException {
         sendMessage(new ChatMessage(ChatMessage.Type.CONNECTED_USERS));
     }
     
+    /**
+     * Solicita al servidor una pagina de la lista de usuarios conectados.
+     * La respuesta es un mensaje CONNECTED_USERS con posicion 1 si hay mas
+     * nombres; la siguiente pagina se pide con el ultimo nombre recibido.
+     * @param prefix Solo los nombres que empiezan con este prefijo, o null
+     *               para todos.
+     * @param after El ultimo nombre de la pagina anterior, o null para la
+     *              primera pagina.
+     * @param limit El numero maximo de nombres.
+     * @throws ChatException Si ocurre un error al enviar el mensaje.
+     */
+    public void requestConnectedUsers(String prefix, String after, int limit) throws ChatException {
+        ChatMessage request = new ChatMessage(ChatMessage.Type.CONNECTED_USERS, username, after, prefix);
+        request.setSize(limit);
+        
+        send(request);
+    }
+    
     /**
      * Envia un mensaje para el cierre de sesion.
      * @throws ChatException Si ocurre un error al enviar el mensaje.
@@ -152,7 +345,16 @@ public class ChatClient extends Thread {
             throw new ChatException("No se pudo iniciar sesion.");
         }
         
-        // Iniciamos la cola de mensajes del servidor.
+        // Continuamos las transferencias que se interrumpieron al perder
+        // la conexion anterior.
+        if (resumable && pending == null) {
+            resumeTransfers();
+        }
+        
+        // Iniciamos la entrega de mensajes al oyente y la lectura de los
+        // mensajes del servidor.
+        ChatThreads.start(inbound, "ChatClientDispatch-" + username, virtual);
+        setName("ChatClient-" + username);
         start();
     }
     
@@ -173,12 +375,52 @@ public class ChatClient extends Thread {
         return client.isClosed();
     }
     
+    /**
+     * Verifica si el servidor envia los cambios de la lista de usuarios
+     * conectados. En ese caso el cliente recibe la lista completa al iniciar
+     * sesion, despues un JOIN o LEAVE por cada cambio, y lleva la lista
+     * actualizada sin pedirla de nuevo.
+     * @return true si el servidor lo acepto al iniciar sesion.
+     */
+    public boolean isPresenceSupported() {
+        return presence;
+    }
+    
+    /**
+     * Regresa la lista de usuarios conectados que lleva el cliente.
+     * Solo se actualiza si isPresenceSupported() es true.
+     * @return Los nombres de usuario en orden alfabetico.
+     */
+    public String[] getConnectedUsers() {
+        return roster.toArray(new String[0]);
+    }
+    
     /**
      * Establece el oyente al recibir un nuevo mensaje del servidor.
      * @param callback El oyente.
      */
     public void setChatClientListener(ChatClientListener callback) {
-        this.callback = callback;
+        inbound.setListener(callback);
+    }
+    
+    /**
+     * Regresa la cola de mensajes recibidos, para consultar cuantos mensajes
+     * esperan al oyente y cuanto tardan en entregarse.
+     * @return La cola de mensajes.
+     */
+    public ChatInboundQueue getInbound() {
+        return inbound;
+    }
+    
+    /**
+     * Indica si los hilos auxiliares del cliente (la entrega de mensajes y el
+     * envio de archivos) deben ser virtuales (Java 21 o superior). El cliente
+     * mismo es un hilo normal.
+     * Debe llamarse antes de abrir el cliente.
+     * @param virtual true para usar hilos virtuales, false para hilos normales.
+     */
+    public void setVirtualThreads(boolean virtual) {
+        this.virtual = virtual;
     }
     
     /**
@@ -203,8 +445,8 @@ public class ChatClient extends Thread {
      */
     private void init() throws ChatException {
         try {
-            input  = new ObjectInputStream(client.getInputStream());
-            output = new ObjectOutputStream(client.getOutputStream());
+            input  = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+            output = client.getOutputStream();
         } catch (IOException e) {
             throw new ChatException("No se pudo inicializar el cliente.");
         }
@@ -212,7 +454,8 @@ public class ChatClient extends Thread {
     
     /**
      * Inicia sesion dentro del servidor.
-     * @param username El nombre de usuario del cliente.
+     * Se envia el nombre de usuario junto con los codecs soportados y se
+     * espera la respuesta del servidor con el codec elegido.
      * @return true si el inicio de sesion fue exitoso, false en caso contrario.
      */
     private boolean login() {
@@ -220,13 +463,47 @@ public class ChatClient extends Thread {
             return false;
         }
         
-        // Enviamos el nombre de usuario.
+        ChatOptions options = new ChatOptions();
+        options.put("codec", ChatCodec.names());
+        options.put("compression", config.getCompressions());
+        options.put("attachment", "chunk", "resume", "pull");
+        options.put("heartbeat", "ping");
+        options.put("presence", "delta");
+        options.put("render", "client");
+        
+        // Enviamos el nombre de usuario y las opciones soportadas.
         try {
-            send(new ChatMessage(ChatMessage.Type.LOGIN, username));
+            send(new ChatMessage(ChatMessage.Type.LOGIN, username, null, options.toString()));
         } catch (ChatException e) {
             return false;
         }
         
+        // Esperamos la respuesta del servidor.
+        ChatMessage reply = receive();
+        
+        if (reply == null) {
+            return false;
+        }
+        
+        // El servidor acepto la sesion; cambiamos al codec elegido.
+        if (ChatMessage.Type.LOGIN == reply.getType()) {
+            ChatOptions accepted = ChatOptions.parse(reply.getMessage());
+            
+            ChatCompression compression = ChatCompression.negotiate(accepted.get("compression"), config.getCompressions());
+            
+            codec   = ChatCodec.negotiate(accepted.get("codec")).withCompression(compression);
+            chunked = Arrays.asList(accepted.get("attachment")).contains("chunk");
+            resumable = chunked && Arrays.asList(accepted.get("attachment")).contains("resume");
+            pull = resumable && Arrays.asList(accepted.get("attachment")).contains("pull");
+            presence = Arrays.asList(accepted.get("presence")).contains("delta");
+            rosterPending = presence;
+        }
+        
+        // Cualquier otra respuesta se entregara al oyente.
+        else {
+            pending = reply;
+        }
+        
         return true;
     }
     
@@ -280,7 +557,14 @@ public class ChatClient extends Thread {
      */
     private void send(ChatMessage chat) throws ChatException {
         try {
-            output.writeObject(chat);
+            byte[] frame = codec.encode(chat);
+            
+            // El hilo de archivos adjuntos tambien envia mensajes, por lo
+            // que cada trama debe escribirse completa.
+            synchronized (output) {
+                output.write(frame);
+                output.flush();
+            }
         } catch (IOException e) {
             throw new ChatException("No se pudo enviar el mensaje al servidor.");
         }
@@ -292,20 +576,309 @@ public class ChatClient extends Thread {
      */
     private ChatMessage receive() {
         try {
-            return (ChatMessage) input.readObject();
+            return codec.read(input);
         } catch (Exception e) {
             return null;
         }
     }
     
     /**
-     * Codifica el archivo especificado en un nuevo hilo y lo envia al servidor.
+     * Procesa un archivo adjunto recibido del servidor. Las partes se
+     * escriben en disco conforme llegan.
+     * @param chat El encabezado, una parte del archivo, o un archivo
+     *             completo codificado en Base64 (servidores anteriores).
+     * @return Un mensaje AUDIO o IMAGE cuyo mensaje es la ruta del archivo
+     *         guardado, el encabezado si el archivo se descargara hasta
+     *         que se solicite, o null si el archivo aun no esta completo.
+     */
+    private ChatMessage receiveAttachment(ChatMessage chat) {
+        File folder = config.getAttachmentsFolder();
+        
+        // Los clientes anteriores envian el archivo completo en Base64.
+        if (chat.getAttachment() == null) {
+            byte[] bytes = DatatypeConverter.parseBase64Binary(chat.getMessage());
+            String extension = (ChatMessage.Type.AUDIO == chat.getType()) ? ".wav" : ".png";
+            
+            try {
+                folder.mkdirs();
+                
+                File file = ChatDownload.createFile(folder, "adjunto" + extension);
+                OutputStream out = new FileOutputStream(file);
+                
+                try {
+                    out.write(bytes);
+                } finally {
+                    out.close();
+                }
+                
+                return new ChatMessage(chat.getType(), chat.getSender(), chat.getReceiver(), file.getAbsolutePath());
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        
+        String key = ChatDownload.key(chat);
+        ChatDownload download;
+        
+        // Comienza una nueva transferencia.
+        if (ChatMessage.Type.CHUNK != chat.getType()) {
+            File existing = blobs.find(chat.getHash(), chat.getSize());
+            
+            // Ya tenemos el archivo; si el servidor va a enviar las partes,
+            // le indicamos que no las necesitamos.
+            if (existing != null) {
+                if (resumable && !pull) {
+                    fetch(chat, chat.getSize());
+                }
+                return new ChatMessage(chat.getType(), chat.getSender(), chat.getReceiver(), existing.getAbsolutePath());
+            }
+            
+            // El servidor solo anuncio el archivo; se descarga cuando se
+            // solicite con download().
+            if (pull) {
+                if (!config.isAutoDownload()) {
+                    return chat;
+                }
+                
+                try {
+                    download(chat);
+                } catch (ChatException e) {}
+                
+                return null;
+            }
+            
+            try {
+                download = new ChatDownload(chat, folder, resumable ? getJournalFolder() : null, username);
+            } catch (IOException e) {
+                return null;
+            }
+            
+            ChatDownload previous = downloads.put(key, download);
+            
+            if (previous != null) {
+                previous.discard();
+            }
+        }
+        
+        // Recibimos una parte de una transferencia.
+        else {
+            download = downloads.get(key);
+            
+            if (download == null) {
+                return null;
+            }
+            
+            // Si se perdio alguna parte, pedimos el archivo al servidor a
+            // partir de la ultima parte guardada; las partes repetidas se
+            // ignoran.
+            if (resumable && chat.getOffset() != download.getReceived()) {
+                if (chat.getOffset() > download.getReceived() && download.startFetch()) {
+                    fetch(download);
+                }
+                return null;
+            }
+            
+            // Si la parte no es la esperada, el archivo ya no se puede completar.
+            if (!download.write(chat)) {
+                downloads.remove(key);
+                download.discard();
+                return null;
+            }
+        }
+        
+        if (!download.isComplete()) {
+            return null;
+        }
+        
+        downloads.remove(key);
+        
+        try {
+            File file = download.finish();
+            ChatMessage header = download.getHeader();
+            
+            blobs.add(header.getHash(), file);
+            
+            return new ChatMessage(header.getType(), header.getSender(), header.getReceiver(), file.getAbsolutePath());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Procesa una confirmacion del servidor sobre un archivo adjunto.
+     * @param ack El mensaje ACK recibido.
+     */
+    private void receiveAcknowledge(ChatMessage ack) {
+        // Confirmacion de un archivo que estamos enviando.
+        if (ack.getReceiver() == null) {
+            ChatUpload upload = uploads.get(ack.getAttachment());
+            
+            if (upload != null) {
+                upload.acknowledge(ack.getOffset());
+            }
+            return;
+        }
+        
+        // El servidor termino de enviar las partes que le pedimos.
+        String key = ChatDownload.key(ack);
+        ChatDownload download = downloads.get(key);
+        
+        if (download == null) return;
+        
+        // El archivo ya no existe en el servidor.
+        if (ack.getOffset() < 0) {
+            downloads.remove(key);
+            download.discard();
+            return;
+        }
+        
+        // Pedimos las siguientes partes. Si se perdieron las ultimas partes
+        // que envio el servidor, las pedimos de nuevo si aun no lo hicimos.
+        boolean received = download.getReceived() >= ack.getOffset();
+        
+        if (download.startFetch() || received) {
+            fetch(download);
+        }
+    }
+    
+    /**
+     * Actualiza la lista de usuarios conectados con la lista completa
+     * (CONNECTED_USERS), con un cambio (JOIN o LEAVE) o con varios (PRESENCE).
+     * @param chat El mensaje recibido.
+     */
+    private void receivePresence(ChatMessage chat) {
+        switch (chat.getType()) {
+            case CONNECTED_USERS:
+                // Solo la primera lista es la completa; las demas son
+                // respuestas a requestConnectedUsers.
+                if (!rosterPending) break;
+                
+                rosterPending = false;
+                roster.clear();
+                
+                if (chat.getMessage() != null && !chat.getMessage().isEmpty()) {
+                    roster.addAll(Arrays.asList(chat.getMessage().split(", ")));
+                }
+                break;
+            case JOIN:
+                roster.add(chat.getSender());
+                break;
+            case LEAVE:
+                roster.remove(chat.getSender());
+                break;
+            case PRESENCE:
+                if (chat.getData() == null) break;
+                
+                try {
+                    for (String line : new String(chat.getData(), "UTF-8").split("\n")) {
+                        if (line.length() < 2) continue;
+                        
+                        if (line.charAt(0) == '+') {
+                            roster.add(line.substring(1));
+                        } else {
+                            roster.remove(line.substring(1));
+                        }
+                    }
+                } catch (IOException e) {
+                    // UTF-8 siempre esta disponible.
+                }
+                break;
+        }
+    }
+    
+    /**
+     * Responde un PING del servidor, que asi mide el tiempo de ida y vuelta
+     * de la conexion.
+     * @param ping El mensaje PING recibido.
+     */
+    private void receivePing(ChatMessage ping) {
+        ChatMessage pong = new ChatMessage(ChatMessage.Type.PONG);
+        pong.setOffset(ping.getOffset());
+        
+        try {
+            send(pong);
+        } catch (ChatException e) {
+            // Se perdio la conexion; el hilo receptor lo detectara.
+        }
+    }
+    
+    /**
+     * Pide al servidor las partes de un archivo a partir de los bytes recibidos.
+     * @param download La descarga.
+     */
+    private void fetch(ChatDownload download) {
+        fetch(download.getHeader(), download.getReceived());
+    }
+    
+    /**
+     * Pide al servidor las partes de un archivo a partir de una posicion.
+     * Si la posicion es el tamaño del archivo, el servidor deja de enviarlo.
+     * @param header El encabezado del archivo.
+     * @param offset La posicion.
+     */
+    private void fetch(ChatMessage header, long offset) {
+        ChatMessage request = new ChatMessage(ChatMessage.Type.FETCH, username, header.getSender(), null);
+        request.setAttachment(header.getAttachment());
+        request.setOffset(offset);
+        
+        try {
+            send(request);
+        } catch (ChatException e) {
+            // Se perdio la conexion; la descarga continuara al volver a conectarnos.
+        }
+    }
+    
+    /**
+     * Continua las descargas y los envios guardados en la bitacora.
+     */
+    private void resumeTransfers() {
+        File journal = getJournalFolder();
+        
+        for (ChatDownload download : ChatDownload.load(config.getAttachmentsFolder(), journal, username)) {
+            downloads.put(ChatDownload.key(download.getHeader()), download);
+            download.startFetch();
+            fetch(download);
+        }
+        
+        for (final ChatUpload upload : ChatUpload.load(journal, username)) {
+            // El archivo cambio o ya no existe; no se puede continuar.
+            if (!upload.isValid()) {
+                upload.delete();
+                continue;
+            }
+            
+            ChatThreads.start(new Runnable() {
+                @Override
+                public void run() {
+                    upload(upload);
+                }
+            }, "ChatFileEncode", virtual);
+        }
+    }
+    
+    /**
+     * Regresa la carpeta de la bitacora de transferencias.
+     * @return La carpeta, dentro de la carpeta de archivos adjuntos.
+     */
+    private File getJournalFolder() {
+        return new File(config.getAttachmentsFolder(), ".inchat");
+    }
+    
+    /**
+     * Envia el archivo especificado en un nuevo hilo.
+     * Si el servidor lo soporta, el archivo se envia por partes; en otro
+     * caso se codifica completo en Base64.
      * @param chat Un mensaje de tipo AUDIO o IMAGE, cuyo mensaje sea la ruta del archivo.
      */
     private void startFileEncode(final ChatMessage chat) {
-        new Thread(new Runnable() {
+        ChatThreads.start(new Runnable() {
             @Override
             public void run() {
+                if (chunked) {
+                    sendFile(chat);
+                    return;
+                }
+                
                 // Obtenemos los bytes del archivo.
                 byte[] bytes = getBytes(chat.getMessage());
                 
@@ -326,7 +899,116 @@ public class ChatClient extends Thread {
                     // No hay mucho que podamos hacer en este punto.
                 }
             }
-        }).start();
+        }, "ChatFileEncode", virtual);
+    }
+    
+    /**
+     * Envia un archivo por partes. Solo se tiene en memoria una parte a la vez.
+     * Si el servidor lo permite, el envio se guarda en la bitacora para
+     * continuarlo si se pierde la conexion.
+     * @param chat Un mensaje de tipo AUDIO o IMAGE, cuyo mensaje sea la ruta del archivo.
+     */
+    private void sendFile(ChatMessage chat) {
+        File file = new File(chat.getMessage());
+        
+        if (!file.isFile()) return;
+        
+        ChatUpload upload;
+        
+        try {
+            upload = new ChatUpload(username, chat.getType(), chat.getReceiver(), file);
+        } catch (IOException e) {
+            return;
+        }
+        
+        if (resumable) {
+            try {
+                upload.save(getJournalFolder());
+            } catch (IOException e) {
+                // Sin bitacora, el envio simplemente no se podra continuar.
+            }
+        }
+        
+        upload(upload);
+    }
+    
+    /**
+     * Envia las partes de un archivo a partir de la ultima parte que
+     * confirmo el servidor.
+     * @param upload El envio.
+     */
+    private void upload(ChatUpload upload) {
+        uploads.put(upload.getId(), upload);
+        
+        RandomAccessFile in = null;
+        
+        try {
+            long size = upload.getSize();
+            long offset = 0;
+            
+            // Enviamos el encabezado con el nombre y el tamaño del archivo.
+            send(upload.createHeader());
+            
+            // El servidor indica cuantos bytes ya tiene del archivo.
+            if (resumable) {
+                offset = upload.awaitAcknowledge(ACK_TIMEOUT);
+                
+                if (offset < 0) {
+                    // El servidor rechazo el archivo; si solo perdimos la
+                    // conexion, el envio continuara al volver a conectarnos.
+                    if (!isClosed()) {
+                        upload.delete();
+                    }
+                    return;
+                }
+            }
+            
+            // El servidor ya tenia el archivo completo.
+            if (offset >= size) {
+                upload.delete();
+                return;
+            }
+            
+            in = new RandomAccessFile(upload.getFile(), "r");
+            in.seek(offset);
+            
+            // Enviamos el contenido. El buffer se puede reutilizar porque
+            // send() codifica la parte antes de regresar.
+            byte[] buffer = new byte[config.getChunkSize()];
+            
+            while (offset < size) {
+                int readed = (int) Math.min(buffer.length, size - offset);
+                in.readFully(buffer, 0, readed);
+                
+                ChatMessage chunk = new ChatMessage(ChatMessage.Type.CHUNK, username, null, null);
+                chunk.setAttachment(upload.getId());
+                chunk.setOffset(offset);
+                chunk.setData(readed == buffer.length ? buffer : Arrays.copyOf(buffer, readed));
+                send(chunk);
+                
+                offset += readed;
+            }
+            
+            // Esperamos a que el servidor guarde el archivo completo.
+            if (!resumable || upload.awaitAcknowledge(ACK_TIMEOUT) == size || !isClosed()) {
+                upload.delete();
+            }
+        } catch (IOException e) {
+            // No se pudo leer el archivo; los receptores lo descartaran.
+            upload.delete();
+        } catch (ChatException e) {
+            // Se perdio la conexion; el envio continuara al volver a conectarnos.
+        } catch (InterruptedException e) {
+            // El envio continuara al volver a conectarnos.
+        } finally {
+            uploads.remove(upload.getId());
+            
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {}
+            }
+        }
     }
     
     /**
@@ -344,11 +1026,12 @@ public class ChatClient extends Thread {
         }
         
         ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8 * 1024];
         int readed;
         
         try {
-            while ((readed = in.read()) != -1) {
-                out.write(readed);
+            while ((readed = in.read(buffer)) != -1) {
+                out.write(buffer, 0, readed);
             }
         } catch (IOException e) {
             return null;
@@ -456,6 +1139,18 @@ public class ChatClient extends Thread {
                          */
                         System.out.println(chat.getMessage());
                         break;
+                    case JOIN:
+                    case LEAVE:
+                    case PRESENCE:
+                        /**
+                         * Igual que INFO, pero el servidor lo envia cuando acepto
+                         * enviar los cambios de la lista de usuarios (PRESENCE
+                         * junta varios cambios en un solo aviso). El cliente
+                         * ya actualizo su lista (ver getConnectedUsers()), por lo
+                         * que no es necesario pedirla.
+                         */
+                        System.out.println(chat.getMessage());
+                        break;
                     case CONNECTED_USERS:
                         /**
                          * Este cliente solicito la lista de usuarios conectados al servidor.
@@ -475,7 +1170,7 @@ public class ChatClient extends Thread {
                          * Para obtener el usuario receptor se usa el metodo getReceiver().
                          */
                         if (chat.isPrivateMessage()) {
-                            System.out.println(chat.getMessage());
+                            System.out.println(ChatFormat.formatMessage(chat));
                         }
                         
                         /**
@@ -483,29 +1178,35 @@ public class ChatClient extends Thread {
                          * En la aplicacion grafica, el mensaje deberia de ser mostrado
                          * en el area de texto.
                          * Para obtener el usuario emisor se usa el metodo getSender().
+                         * El texto llega sin formato; ChatFormat le agrega la hora
+                         * en que el servidor recibio el mensaje.
                          */
                         else {
-                            System.out.println(chat.getMessage());
+                            System.out.println(ChatFormat.formatMessage(chat));
                         }                        
                         break;                    
                     case AUDIO:
-                        /**
-                         * Se recibio un archivo de audio.
-                         * En la aplicacion grafica, se deberia de reproducir este audio.
-                         * El mensaje que se obtiene esta codificado en Base64, primero
-                         * hay que decodificarlo y convertirlo en un objeto de Audio.
-                         */
-                        System.out.println(chat.getMessage());
-                        break;
                     case IMAGE:
                         /**
-                         * Se recibio un archivo de imagen.
-                         * En la aplicacion grafica, se deberia de mostrar la imagen en el
-                         * area de los mensajes, como si fuera cualquier otro mensaje.
-                         * Igualmente, la imagen esta codificada en Base64, primero
-                         * hay que decodificarla y convertirla en un objeto de Imagen.
+                         * Se anuncio un archivo de audio o de imagen.
+                         * Si el mensaje aun tiene el identificador del archivo,
+                         * el mensaje es solo el nombre y el archivo se descarga
+                         * con download(); al completarse se recibe otro mensaje
+                         * cuyo mensaje es la ruta del archivo guardado.
+                         * En la aplicacion grafica, se deberia de preguntar al
+                         * usuario si desea descargar el archivo.
                          */
-                        System.out.println(chat.getMessage());
+                        if (chat.getAttachment() != null) {
+                            System.out.println(chat.getSender() + " envio " + chat.getMessage() + " (" + chat.getSize() + " bytes).");
+                            
+                            try {
+                                client.download(chat);
+                            } catch (ChatException e) {
+                                System.out.println(e.getMessage());
+                            }
+                        } else {
+                            System.out.println(chat.getMessage());
+                        }
                         break;
                 }
             }
@@ -0,0 +1,248 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.io.File;
+
+/**
+ * Configuracion de la conexion del cliente de chat.
+ * Los valores por defecto pueden sobreescribirse con propiedades del sistema
+ * al iniciar la aplicacion (por ejemplo: -Dinchat.client.port=9090).
+ *
+ * @author wetteifer
+ */
+public class ChatClientConfig {
+
+    /**
+     * Puerto del servidor si la direccion no indica otro.
+     */
+    public static final int DEFAULT_PORT = 8080;
+
+    private int port;
+    private int connectTimeout;
+    private boolean tcpNoDelay;
+    private boolean keepAlive;
+    private int sendBufferSize;
+    private int receiveBufferSize;
+    private boolean virtualThreads;
+    private File attachmentsFolder;
+    private int chunkSize;
+    private boolean autoDownload;
+    private String[] compressions;
+    private int inboundCapacity;
+    private ChatInboundQueue.Policy inboundPolicy;
+
+    /**
+     * Crea una configuracion con los valores por defecto.
+     */
+    public ChatClientConfig() {
+        port = DEFAULT_PORT;
+        connectTimeout = 10000;
+        tcpNoDelay = true;
+        keepAlive = true;
+        attachmentsFolder = new File(System.getProperty("user.dir"), "attachments");
+        chunkSize = 64 * 1024;
+        compressions = ChatCompression.names();
+        inboundCapacity = 4096;
+        inboundPolicy = ChatInboundQueue.Policy.BLOCK;
+    }
+
+    /**
+     * Crea una configuracion a partir de las propiedades del sistema.
+     * @return La configuracion leida.
+     */
+    public static ChatClientConfig fromSystemProperties() {
+        ChatClientConfig config = new ChatClientConfig();
+
+        config.setPort(Integer.getInteger("inchat.client.port", config.getPort()));
+        config.setConnectTimeout(Integer.getInteger("inchat.client.timeout", config.getConnectTimeout()));
+        config.setTcpNoDelay(getBoolean("inchat.client.tcpnodelay", config.isTcpNoDelay()));
+        config.setKeepAlive(getBoolean("inchat.client.keepalive", config.isKeepAlive()));
+        config.setSendBufferSize(Integer.getInteger("inchat.client.sndbuf", config.getSendBufferSize()));
+        config.setReceiveBufferSize(Integer.getInteger("inchat.client.rcvbuf", config.getReceiveBufferSize()));
+        config.setVirtualThreads(getBoolean("inchat.client.virtual", config.isVirtualThreads()));
+        config.setChunkSize(Integer.getInteger("inchat.client.chunk", config.getChunkSize()));
+        config.setAutoDownload(getBoolean("inchat.client.autodownload", config.isAutoDownload()));
+        config.setInboundCapacity(Integer.getInteger("inchat.client.inbound.capacity", config.getInboundCapacity()));
+
+        String inboundPolicy = System.getProperty("inchat.client.inbound.policy");
+
+        if (inboundPolicy != null) {
+            config.setInboundPolicy(ChatInboundQueue.Policy.valueOf(inboundPolicy.trim().toUpperCase()));
+        }
+
+        String compression = System.getProperty("inchat.client.compression");
+
+        if (compression != null) {
+            config.setCompressions(compression.trim().split("\\s*,\\s*"));
+        }
+
+        String folder = System.getProperty("inchat.client.attachments");
+
+        if (folder != null) {
+            config.setAttachmentsFolder(new File(folder));
+        }
+
+        return config;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Establece el tiempo maximo para conectarse al servidor.
+     * @param connectTimeout El tiempo en milisegundos, o 0 para esperar indefinidamente.
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = Math.max(0, connectTimeout);
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * Establece el tamaño del buffer de envio del socket.
+     * @param sendBufferSize El tamaño en bytes, o 0 para usar el del sistema.
+     */
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = Math.max(0, sendBufferSize);
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Establece el tamaño del buffer de recepcion del socket.
+     * @param receiveBufferSize El tamaño en bytes, o 0 para usar el del sistema.
+     */
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = Math.max(0, receiveBufferSize);
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Indica si los hilos del cliente deben ser virtuales (Java 21 o superior).
+     * @param virtualThreads true para usar hilos virtuales.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public File getAttachmentsFolder() {
+        return attachmentsFolder;
+    }
+
+    /**
+     * Establece la carpeta donde se guardan los archivos recibidos.
+     * @param attachmentsFolder La carpeta.
+     */
+    public void setAttachmentsFolder(File attachmentsFolder) {
+        this.attachmentsFolder = attachmentsFolder;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Establece el tamaño de las partes en que se envian los archivos.
+     * @param chunkSize El tamaño en bytes, entre 1 KB y 1 MB.
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = Math.min(1024 * 1024, Math.max(1024, chunkSize));
+    }
+
+    public boolean isAutoDownload() {
+        return autoDownload;
+    }
+
+    /**
+     * Indica si los archivos adjuntos se descargan en cuanto se anuncian.
+     * Si no, el cliente solo recibe el encabezado y el archivo se descarga
+     * al llamar a ChatClient.download.
+     * @param autoDownload true para descargar todos los archivos.
+     */
+    public void setAutoDownload(boolean autoDownload) {
+        this.autoDownload = autoDownload;
+    }
+
+    public String[] getCompressions() {
+        return compressions;
+    }
+
+    /**
+     * Establece las compresiones que se ofrecen al servidor, en orden de
+     * preferencia; "none" desactiva la compresion.
+     * @param compressions Los nombres de las compresiones.
+     */
+    public void setCompressions(String... compressions) {
+        this.compressions = compressions;
+    }
+
+    public int getInboundCapacity() {
+        return inboundCapacity;
+    }
+
+    /**
+     * Establece el numero maximo de mensajes recibidos pendientes de
+     * entregar al oyente.
+     * @param inboundCapacity El numero de mensajes.
+     */
+    public void setInboundCapacity(int inboundCapacity) {
+        this.inboundCapacity = Math.max(1, inboundCapacity);
+    }
+
+    public ChatInboundQueue.Policy getInboundPolicy() {
+        return inboundPolicy;
+    }
+
+    /**
+     * Establece la politica a aplicar cuando la cola de mensajes recibidos
+     * esta llena.
+     * @param inboundPolicy La politica a aplicar.
+     */
+    public void setInboundPolicy(ChatInboundQueue.Policy inboundPolicy) {
+        this.inboundPolicy = inboundPolicy;
+    }
+
+    /**
+     * Lee una propiedad booleana del sistema.
+     */
+    private static boolean getBoolean(String key, boolean value) {
+        String property = System.getProperty(key);
+        return (property == null) ? value : Boolean.parseBoolean(property.trim());
+    }
+
+}
@@ -0,0 +1,288 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Codifica y decodifica los mensajes que viajan entre el cliente y el servidor.
+ * Cada mensaje se envia como una trama: un entero de 4 bytes con la longitud
+ * de la trama seguido de los bytes del mensaje. De esta forma el receptor
+ * sabe cuantos bytes necesita antes de decodificar, lo cual permite leer
+ * mensajes sin bloquearse.
+ * El contenido de la trama depende del codec acordado al iniciar sesion; el
+ * mensaje de inicio de sesion siempre viaja con el codec SERIAL. Si tambien
+ * se acordo una compresion, el contenido se comprime (ChatCompressedCodec).
+ *
+ * @author wetteifer
+ */
+public abstract class ChatCodec {
+
+    /**
+     * Tamaño en bytes del encabezado de una trama.
+     */
+    public static final int HEADER_SIZE = 4;
+
+    /**
+     * Tamaño maximo permitido para una trama.
+     */
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Serializacion de Java. Se usa durante el inicio de sesion.
+     */
+    public static final ChatCodec SERIAL = new ChatSerialCodec();
+
+    /**
+     * Codificacion binaria compacta.
+     */
+    public static final ChatCodec BINARY = new ChatBinaryCodec();
+
+    /**
+     * Codecs soportados en orden de preferencia.
+     */
+    private static final ChatCodec[] CODECS = { BINARY, SERIAL };
+
+    /**
+     * Codecs con compresion, por codec y compresion (sin incluir NONE).
+     */
+    private static final ChatCodec[] COMPRESSED = createCompressed(ChatCompression.Limits.DEFAULT);
+
+    /**
+     * Numero de codecs, incluyendo los que comprimen.
+     */
+    public static final int COUNT = CODECS.length + COMPRESSED.length;
+
+    private final int id;
+
+    /**
+     * Crea un codec.
+     * @param id El identificador del codec, entre 0 y COUNT - 1.
+     */
+    protected ChatCodec(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Regresa el identificador numerico del codec.
+     * @return Un numero entre 0 y COUNT - 1.
+     */
+    public final int getId() {
+        return id;
+    }
+
+    /**
+     * Regresa el nombre con el que se anuncia el codec al iniciar sesion.
+     * @return El nombre del codec.
+     */
+    public abstract String getName();
+
+    /**
+     * Regresa el codec sin compresion.
+     * @return El codec cuyas tramas se comprimen, o este mismo codec.
+     */
+    public ChatCodec getBase() {
+        return this;
+    }
+
+    /**
+     * Regresa la compresion del codec.
+     * @return La compresion, o NONE si el codec no comprime.
+     */
+    public ChatCompression getCompression() {
+        return ChatCompression.NONE;
+    }
+
+    /**
+     * Regresa este codec con una compresion.
+     * @param compression La compresion.
+     * @return El codec que comprime las tramas de este codec, o el codec
+     *         sin compresion si la compresion es NONE.
+     */
+    public ChatCodec withCompression(ChatCompression compression) {
+        return withCompression(compression, COMPRESSED);
+    }
+
+    /**
+     * Regresa este codec con una compresion, tomado de una tabla de codecs
+     * con compresion.
+     * @param compression La compresion.
+     * @param compressed La tabla creada con createCompressed.
+     * @return El codec que comprime las tramas de este codec, o el codec
+     *         sin compresion si la compresion es NONE.
+     */
+    ChatCodec withCompression(ChatCompression compression, ChatCodec[] compressed) {
+        ChatCodec codec = getBase();
+
+        if (compression == ChatCompression.NONE) {
+            return codec;
+        }
+
+        return compressed[codec.getId() * (ChatCompression.COUNT - 1) + compression.getId() - 1];
+    }
+
+    /**
+     * Codifica un mensaje en una trama lista para enviarse.
+     * @param chat El mensaje a codificar.
+     * @return Los bytes de la trama, incluyendo el encabezado.
+     * @throws IOException Si el mensaje no se pudo codificar.
+     */
+    public abstract byte[] encode(ChatMessage chat) throws IOException;
+
+    /**
+     * Codifica un mensaje a partir de su trama ya codificada con el codec
+     * sin compresion, para no volver a codificarlo.
+     * @param frame La trama del codec sin compresion.
+     * @return Los bytes de la trama con este codec.
+     */
+    public byte[] compress(byte[] frame) {
+        return frame;
+    }
+
+    /**
+     * Decodifica el contenido de una trama (sin el encabezado).
+     * @param buffer El arreglo que contiene la trama.
+     * @param offset La posicion donde inicia el contenido de la trama.
+     * @param length La longitud del contenido de la trama.
+     * @return El mensaje decodificado.
+     * @throws IOException Si el contenido no es un mensaje valido.
+     */
+    public abstract ChatMessage decode(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Lee una trama completa de un flujo de entrada y la decodifica.
+     * @param input El flujo de entrada.
+     * @return El mensaje decodificado.
+     * @throws IOException Si ocurre un error al leer o la trama es invalida.
+     */
+    public ChatMessage read(DataInputStream input) throws IOException {
+        byte[] buffer = readFrame(input);
+
+        return decode(buffer, 0, buffer.length);
+    }
+
+    /**
+     * Lee una trama completa de un flujo de entrada sin decodificarla.
+     * @param input El flujo de entrada.
+     * @return El contenido de la trama (sin el encabezado).
+     * @throws IOException Si ocurre un error al leer o la longitud es invalida.
+     */
+    public byte[] readFrame(DataInputStream input) throws IOException {
+        int length = input.readInt();
+
+        if (!isValidLength(length)) {
+            throw new IOException("Longitud de trama invalida: " + length);
+        }
+
+        byte[] buffer = new byte[length];
+        input.readFully(buffer);
+
+        return buffer;
+    }
+
+    /**
+     * Regresa la longitud que tendria el contenido de una trama sin comprimir.
+     * @param buffer El arreglo que contiene la trama.
+     * @param offset La posicion donde inicia el contenido de la trama.
+     * @param length La longitud del contenido de la trama.
+     * @return La longitud del contenido sin comprimir.
+     */
+    public int getDecodedLength(byte[] buffer, int offset, int length) {
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+
+    /**
+     * Verifica si la longitud de una trama es aceptable.
+     * @param length La longitud leida del encabezado.
+     * @return true si la longitud es valida, false en caso contrario.
+     */
+    public static boolean isValidLength(int length) {
+        return length > 0 && length <= MAX_FRAME_SIZE;
+    }
+
+    /**
+     * Regresa un codec a partir de su nombre.
+     * @param name El nombre del codec.
+     * @return El codec, o null si no se conoce.
+     */
+    public static ChatCodec forName(String name) {
+        for (ChatCodec codec : CODECS) {
+            if (codec.getName().equals(name)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Elige el primer codec conocido de una lista ofrecida por el otro extremo.
+     * @param offered Los nombres de los codecs ofrecidos, en orden de preferencia.
+     * @return El codec elegido; SERIAL si ninguno es conocido.
+     */
+    public static ChatCodec negotiate(String[] offered) {
+        for (String name : offered) {
+            ChatCodec codec = forName(name);
+            if (codec != null) {
+                return codec;
+            }
+        }
+        return SERIAL;
+    }
+
+    /**
+     * Regresa los nombres de los codecs soportados en orden de preferencia.
+     * @return Los nombres de los codecs.
+     */
+    public static String[] names() {
+        String[] names = new String[CODECS.length];
+
+        for (int i = 0; i < names.length; ++i) {
+            names[i] = CODECS[i].getName();
+        }
+
+        return names;
+    }
+
+    /**
+     * Crea los codecs con compresion. Los codecs de la tabla tienen los
+     * mismos identificadores que los codecs por omision, pero aplican sus
+     * propios limites de compresion.
+     * @param limits Los limites de la compresion.
+     * @return La tabla de codecs, por codec y compresion.
+     */
+    static ChatCodec[] createCompressed(ChatCompression.Limits limits) {
+        ChatCodec[] codecs = new ChatCodec[CODECS.length * (ChatCompression.COUNT - 1)];
+        ChatCompression[] compressions = { ChatCompression.FAST, ChatCompression.DEFLATE };
+
+        for (ChatCodec codec : CODECS) {
+            for (ChatCompression compression : compressions) {
+                int index = codec.getId() * (ChatCompression.COUNT - 1) + compression.getId() - 1;
+                codecs[index] = new ChatCompressedCodec(CODECS.length + index, codec, compression, limits);
+            }
+        }
+
+        return codecs;
+    }
+
+    /**
+     * Escribe la longitud de la trama en su encabezado.
+     * @param frame La trama con el espacio del encabezado reservado.
+     */
+    protected static void writeHeader(byte[] frame) {
+        int length = frame.length - HEADER_SIZE;
+
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>>  8);
+        frame[3] = (byte) (length);
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.io.IOException;
+
+/**
+ * Codec que comprime el contenido de las tramas de otro codec. El contenido
+ * de cada trama es:
+ * <pre>
+ *   comprimido 1 byte (0 o 1)
+ *   longitud   4 bytes con la longitud original (si esta comprimido)
+ *   contenido  el contenido de la trama del otro codec, comprimido o no
+ * </pre>
+ * Cada trama se comprime por separado, por lo que una trama comprimida
+ * una sola vez se puede enviar a varios clientes.
+ *
+ * @author wetteifer
+ */
+class ChatCompressedCodec extends ChatCodec {
+
+    private static final int RAW = 0;
+    private static final int COMPRESSED = 1;
+
+    private final ChatCodec base;
+    private final ChatCompression compression;
+    private final ChatCompression.Limits limits;
+
+    /**
+     * Crea el codec.
+     * @param id El identificador del codec.
+     * @param base El codec cuyas tramas se comprimen.
+     * @param compression La compresion.
+     * @param limits Los limites de la compresion.
+     */
+    ChatCompressedCodec(int id, ChatCodec base, ChatCompression compression, ChatCompression.Limits limits) {
+        super(id);
+        this.base = base;
+        this.compression = compression;
+        this.limits = limits;
+    }
+
+    @Override
+    public String getName() {
+        return base.getName() + "+" + compression.getName();
+    }
+
+    @Override
+    public ChatCodec getBase() {
+        return base;
+    }
+
+    @Override
+    public ChatCompression getCompression() {
+        return compression;
+    }
+
+    @Override
+    public byte[] encode(ChatMessage chat) throws IOException {
+        return compress(base.encode(chat));
+    }
+
+    @Override
+    public byte[] compress(byte[] frame) {
+        int length = frame.length - HEADER_SIZE;
+        byte[] compressed = compression.compress(frame, HEADER_SIZE, length, HEADER_SIZE + 5, limits);
+
+        // La trama no se comprimio; se envia con el contenido original.
+        if (compressed == null) {
+            byte[] raw = new byte[HEADER_SIZE + 1 + length];
+            raw[HEADER_SIZE] = RAW;
+            System.arraycopy(frame, HEADER_SIZE, raw, HEADER_SIZE + 1, length);
+            writeHeader(raw);
+
+            return raw;
+        }
+
+        compressed[HEADER_SIZE] = COMPRESSED;
+        compressed[HEADER_SIZE + 1] = (byte) (length >>> 24);
+        compressed[HEADER_SIZE + 2] = (byte) (length >>> 16);
+        compressed[HEADER_SIZE + 3] = (byte) (length >>>  8);
+        compressed[HEADER_SIZE + 4] = (byte) (length);
+        writeHeader(compressed);
+
+        return compressed;
+    }
+
+    @Override
+    public ChatMessage decode(byte[] buffer, int offset, int length) throws IOException {
+        if (length < 1) {
+            throw new IOException("Trama vacia.");
+        }
+
+        if (buffer[offset] == RAW) {
+            return base.decode(buffer, offset + 1, length - 1);
+        }
+
+        int original = getDecodedLength(buffer, offset, length);
+
+        if (buffer[offset] != COMPRESSED || length < 5 || !isValidLength(original)) {
+            throw new IOException("Trama comprimida invalida.");
+        }
+
+        byte[] decompressed = compression.decompress(buffer, offset + 5, length - 5, original);
+
+        return base.decode(decompressed, 0, original);
+    }
+
+    @Override
+    public int getDecodedLength(byte[] buffer, int offset, int length) {
+        if (length < 5 || buffer[offset] != COMPRESSED) {
+            return length - 1;
+        }
+
+        return ((buffer[offset + 1] & 0xFF) << 24) |
+               ((buffer[offset + 2] & 0xFF) << 16) |
+               ((buffer[offset + 3] & 0xFF) <<  8) |
+               ((buffer[offset + 4] & 0xFF));
+    }
+
+}
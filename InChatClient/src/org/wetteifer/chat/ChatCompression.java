@@ -0,0 +1,471 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresion del contenido de las tramas, acordada al iniciar sesion.
+ * <ul>
+ *   <li>none: sin compresion.</li>
+ *   <li>fast: Deflate en su nivel mas rapido.</li>
+ *   <li>deflate: Deflate con un diccionario compartido por el cliente y el
+ *       servidor, que ayuda a comprimir los mensajes cortos.</li>
+ * </ul>
+ * Solo se comprimen las tramas de al menos el tamaño minimo y mientras no
+ * se agote el presupuesto de tiempo de compresion de cada segundo (ver
+ * {@link Limits}); las demas tramas se envian sin comprimir.
+ *
+ * @author wetteifer
+ */
+public final class ChatCompression {
+
+    // Texto comun en los mensajes del chat. Debe ser el mismo en el cliente
+    // y en el servidor; si cambia, debe cambiar el nombre de la compresion.
+    private static final byte[] DICTIONARY = getBytes(
+            "binary,serial;attachment=chunk,resume,pull;compression=deflate,fast,none" +
+            "[Servidor] El usuario [] se ha conectado. se ha desconectado." +
+            "El servidor se ha cerrado. fue desconectado por no leer sus mensajes." +
+            "Haz enviado un mensaje de audio. Haz enviado una imagen. dice: " +
+            "hola, que tal, como estas? bien, gracias. si, no, por favor, de nada, " +
+            "adios, hasta luego, buenos dias, buenas tardes, buenas noches. " +
+            ".png .wav image/png audio/wav " +
+            "que de la el en y a los se del las un por con no una su para es al lo " +
+            "como mas pero sus le ya o este si porque esta entre cuando muy sin " +
+            "sobre tambien me hasta hay donde quien desde todo nos durante todos " +
+            "the and to of a in is you that it for on with this are be have not " +
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/=");
+
+    // Tamaño de la muestra con la que se decide si vale la pena comprimir
+    // una trama grande (por ejemplo, una parte de una imagen PNG).
+    private static final int SAMPLE_SIZE = 4 * 1024;
+    private static final int SAMPLE_THRESHOLD = 4 * SAMPLE_SIZE;
+
+    // Duracion del periodo del presupuesto de compresion.
+    private static final long BUDGET_PERIOD = 1000L * 1000 * 1000;
+
+    // Deflate no reduce un bloque a menos de 1/1032 de su tamaño; una
+    // longitud original mayor es falsa y se rechaza sin reservar memoria.
+    private static final int MAX_RATIO = 1032;
+
+    // Tamaño inicial del arreglo donde se descomprime; crece al doble
+    // conforme llegan los bytes, hasta la longitud original.
+    private static final int INFLATE_SIZE = 4 * 1024;
+
+    // Tamaño maximo del arreglo de trabajo que conserva cada compresor.
+    private static final int MAX_KEPT_BUFFER = 256 * 1024;
+
+    /**
+     * Sin compresion.
+     */
+    public static final ChatCompression NONE = new ChatCompression(0, "none", Deflater.NO_COMPRESSION, null);
+
+    /**
+     * Deflate en su nivel mas rapido.
+     */
+    public static final ChatCompression FAST = new ChatCompression(1, "fast", Deflater.BEST_SPEED, null);
+
+    /**
+     * Deflate con el diccionario compartido.
+     */
+    public static final ChatCompression DEFLATE = new ChatCompression(2, "deflate", Deflater.DEFAULT_COMPRESSION, DICTIONARY);
+
+    /**
+     * Compresiones soportadas en orden de preferencia.
+     */
+    private static final ChatCompression[] COMPRESSIONS = { DEFLATE, FAST, NONE };
+
+    /**
+     * Numero de compresiones soportadas.
+     */
+    public static final int COUNT = COMPRESSIONS.length;
+
+    private final int id;
+    private final String name;
+    private final int level;
+    private final byte[] dictionary;
+    private final Queue<Compressor> compressors;
+    private final Queue<Inflater> inflaters;
+
+    private ChatCompression(int id, String name, int level, byte[] dictionary) {
+        this.id = id;
+        this.name = name;
+        this.level = level;
+        this.dictionary = dictionary;
+        this.compressors = new ConcurrentLinkedQueue<Compressor>();
+        this.inflaters = new ConcurrentLinkedQueue<Inflater>();
+    }
+
+    /**
+     * Regresa el identificador numerico de la compresion.
+     * @return Un numero entre 0 y COUNT - 1; NONE es 0.
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Regresa el nombre con el que se anuncia la compresion al iniciar sesion.
+     * @return El nombre de la compresion.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Comprime un bloque de bytes si los limites de compresion lo permiten,
+     * y si el resultado es menor. El bloque se comprime en un arreglo de
+     * trabajo del compresor; solo se reserva el arreglo del resultado, y
+     * unicamente si el bloque se comprimio.
+     * @param input El arreglo con los bytes.
+     * @param offset La posicion del primer byte.
+     * @param length La cantidad de bytes.
+     * @param position Cuantos bytes se dejan libres al inicio del resultado.
+     * @param limits Los limites de la compresion.
+     * @return El resultado, con los bytes comprimidos a partir de position,
+     *         o null si el bloque no se comprimio.
+     */
+    public byte[] compress(byte[] input, int offset, int length, int position, Limits limits) {
+        if (this == NONE || length < limits.threshold || !limits.hasBudget()) {
+            limits.skipped.incrementAndGet();
+            return null;
+        }
+
+        long start = System.nanoTime();
+        Compressor compressor = takeCompressor();
+        Deflater deflater = compressor.deflater;
+
+        try {
+            // Si una muestra no se comprime bien, el bloque tampoco.
+            if (length >= SAMPLE_THRESHOLD) {
+                int sample = deflate(deflater, input, offset, SAMPLE_SIZE, compressor.getBuffer(SAMPLE_SIZE), SAMPLE_SIZE * 9 / 10);
+
+                deflater.reset();
+
+                if (sample < 0) {
+                    limits.skipped.incrementAndGet();
+                    return null;
+                }
+
+                if (dictionary != null) {
+                    deflater.setDictionary(dictionary);
+                }
+            }
+
+            byte[] buffer = compressor.getBuffer(length - 1);
+            int written = deflate(deflater, input, offset, length, buffer, length - 1);
+
+            if (written < 0) {
+                limits.skipped.incrementAndGet();
+                return null;
+            }
+
+            limits.compressed.incrementAndGet();
+
+            byte[] output = new byte[position + written];
+            System.arraycopy(buffer, 0, output, position, written);
+
+            return output;
+        } finally {
+            releaseCompressor(compressor);
+
+            long elapsed = System.nanoTime() - start;
+            limits.periodSpent.addAndGet(elapsed);
+            limits.spent.addAndGet(elapsed);
+        }
+    }
+
+    /**
+     * Descomprime un bloque de bytes. La longitud original la declara el
+     * otro extremo, por lo que no se confia en ella para reservar memoria:
+     * el resultado crece conforme se descomprime y nunca pasa de ella.
+     * @param input El arreglo con los bytes comprimidos.
+     * @param offset La posicion del primer byte.
+     * @param length La cantidad de bytes comprimidos.
+     * @param original La longitud original declarada.
+     * @return Un arreglo cuyos primeros original bytes son el bloque original.
+     * @throws IOException Si los bytes no son validos.
+     */
+    public byte[] decompress(byte[] input, int offset, int length, int original) throws IOException {
+        if (original < 0 || original > (long) length * MAX_RATIO + INFLATE_SIZE) {
+            throw new IOException("Trama comprimida invalida.");
+        }
+
+        Inflater inflater = inflaters.poll();
+
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+
+        try {
+            if (dictionary != null) {
+                inflater.setDictionary(dictionary);
+            }
+
+            inflater.setInput(input, offset, length);
+
+            byte[] output = new byte[Math.min(original, Math.max(INFLATE_SIZE, 4 * length))];
+            int readed = 0;
+
+            while (true) {
+                if (readed == output.length) {
+                    if (readed == original) break;
+
+                    output = Arrays.copyOf(output, (int) Math.min(original, 2L * output.length));
+                }
+
+                int count = inflater.inflate(output, readed, output.length - readed);
+
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+
+                readed += count;
+            }
+
+            if (readed != original) {
+                throw new IOException("Trama comprimida incompleta.");
+            }
+
+            return output;
+        } catch (DataFormatException e) {
+            throw new IOException("Trama comprimida invalida.");
+        } finally {
+            inflater.reset();
+            inflaters.offer(inflater);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * Regresa una compresion a partir de su nombre.
+     * @param name El nombre de la compresion.
+     * @return La compresion, o null si no se conoce.
+     */
+    public static ChatCompression forName(String name) {
+        for (ChatCompression compression : COMPRESSIONS) {
+            if (compression.name.equals(name)) {
+                return compression;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Elige la primera compresion de una lista ofrecida por el otro extremo
+     * que tambien este permitida.
+     * @param offered Los nombres ofrecidos, en orden de preferencia.
+     * @param allowed Los nombres permitidos.
+     * @return La compresion elegida; NONE si ninguna es conocida.
+     */
+    public static ChatCompression negotiate(String[] offered, String[] allowed) {
+        for (String name : offered) {
+            ChatCompression compression = forName(name);
+
+            if (compression == null) continue;
+
+            for (String permitted : allowed) {
+                if (name.equals(permitted)) {
+                    return compression;
+                }
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Regresa los nombres de las compresiones soportadas en orden de preferencia.
+     * @return Los nombres de las compresiones.
+     */
+    public static String[] names() {
+        String[] names = new String[COMPRESSIONS.length];
+
+        for (int i = 0; i < names.length; ++i) {
+            names[i] = COMPRESSIONS[i].getName();
+        }
+
+        return names;
+    }
+
+    /**
+     * Toma un compresor de la reserva o crea uno nuevo.
+     */
+    private Compressor takeCompressor() {
+        Compressor compressor = compressors.poll();
+
+        if (compressor == null) {
+            compressor = new Compressor(new Deflater(level, true));
+        }
+
+        if (dictionary != null) {
+            compressor.deflater.setDictionary(dictionary);
+        }
+
+        return compressor;
+    }
+
+    /**
+     * Regresa un compresor a la reserva. Los arreglos de trabajo muy grandes
+     * no se conservan.
+     */
+    private void releaseCompressor(Compressor compressor) {
+        compressor.deflater.reset();
+
+        if (compressor.buffer != null && compressor.buffer.length > MAX_KEPT_BUFFER) {
+            compressor.buffer = null;
+        }
+
+        compressors.offer(compressor);
+    }
+
+    /**
+     * Comprime un bloque sin exceder un tamaño maximo.
+     * @return La cantidad de bytes escritos, o -1 si se excedio el maximo.
+     */
+    private static int deflate(Deflater deflater, byte[] input, int offset, int length, byte[] output, int limit) {
+        deflater.setInput(input, offset, length);
+        deflater.finish();
+
+        int written = 0;
+
+        while (!deflater.finished() && written < limit) {
+            written += deflater.deflate(output, written, limit - written);
+        }
+
+        return deflater.finished() ? written : -1;
+    }
+
+    /**
+     * Convierte el diccionario a bytes.
+     */
+    private static byte[] getBytes(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Limites de la compresion: el tamaño minimo de las tramas que se
+     * comprimen y el tiempo de CPU que se puede usar cada segundo, junto con
+     * sus cuentas. Cada servidor tiene los suyos; el cliente usa DEFAULT.
+     */
+    public static final class Limits {
+
+        /**
+         * Limites por omision: tramas de al menos 128 bytes y la cuarta
+         * parte de un procesador.
+         */
+        public static final Limits DEFAULT = new Limits(128, 25);
+
+        private final int threshold;
+        private final long budget;
+        private final AtomicLong periodStart;
+        private final AtomicLong periodSpent;
+        private final AtomicLong compressed;
+        private final AtomicLong skipped;
+        private final AtomicLong spent;
+
+        /**
+         * Crea los limites.
+         * @param threshold El tamaño minimo en bytes de las tramas que se
+         *                  comprimen.
+         * @param percent El porcentaje de un procesador que se puede usar
+         *                para comprimir, entre 0 (no se comprime) y 100 (sin
+         *                limite).
+         */
+        public Limits(int threshold, int percent) {
+            percent = Math.max(0, Math.min(100, percent));
+
+            this.threshold = Math.max(1, threshold);
+            this.budget = (percent == 100) ? Long.MAX_VALUE : BUDGET_PERIOD * percent / 100;
+            this.periodStart = new AtomicLong(System.nanoTime());
+            this.periodSpent = new AtomicLong();
+            this.compressed = new AtomicLong();
+            this.skipped = new AtomicLong();
+            this.spent = new AtomicLong();
+        }
+
+        /**
+         * Regresa el numero de bloques comprimidos.
+         * @return El numero de bloques.
+         */
+        public long getCompressed() {
+            return compressed.get();
+        }
+
+        /**
+         * Regresa el numero de bloques que no se comprimieron por su tamaño,
+         * por el presupuesto o porque no se reducian.
+         * @return El numero de bloques.
+         */
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+        /**
+         * Regresa el tiempo total usado para comprimir.
+         * @return El tiempo en nanosegundos.
+         */
+        public long getSpent() {
+            return spent.get();
+        }
+
+        /**
+         * Verifica si queda tiempo de compresion en el periodo actual.
+         */
+        private boolean hasBudget() {
+            long now = System.nanoTime();
+            long start = periodStart.get();
+
+            // Comienza un nuevo periodo.
+            if (now - start >= BUDGET_PERIOD && periodStart.compareAndSet(start, now)) {
+                periodSpent.set(0);
+            }
+
+            return periodSpent.get() < budget;
+        }
+
+    }
+
+    /**
+     * Un compresor de la reserva con su arreglo de trabajo.
+     */
+    private static final class Compressor {
+
+        final Deflater deflater;
+        byte[] buffer;
+
+        Compressor(Deflater deflater) {
+            this.deflater = deflater;
+        }
+
+        /**
+         * Regresa el arreglo de trabajo, con al menos un tamaño.
+         */
+        byte[] getBuffer(int size) {
+            if (buffer == null || buffer.length < size) {
+                buffer = new byte[size];
+            }
+
+            return buffer;
+        }
+
+    }
+
+}
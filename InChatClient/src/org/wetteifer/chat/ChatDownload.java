@@ -0,0 +1,390 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Archivo adjunto que se esta recibiendo por partes.
+ * Cada parte se escribe en disco en cuanto llega, por lo que nunca se
+ * guarda el archivo completo en memoria. Mientras no se complete, el archivo
+ * tiene la extension ".part".
+ * Si se usa una bitacora, el archivo incompleto se conserva al perder la
+ * conexion y la descarga puede continuar desde la ultima parte guardada.
+ * Si el emisor indico el resumen del contenido, el archivo se verifica al
+ * terminar.
+ *
+ * @author wetteifer
+ */
+public class ChatDownload {
+
+    private static final String EXTENSION = ".download";
+
+    private final ChatMessage header;
+    private final File folder;
+    private final File partial;
+    private final File journal;
+    private final OutputStream output;
+    private final MessageDigest digest;
+    private long received;
+    private long fetched;
+
+    /**
+     * Crea el archivo temporal de una transferencia.
+     * @param header El mensaje AUDIO o IMAGE que inicia la transferencia.
+     * @param folder La carpeta donde se guardara el archivo.
+     * @param journal La carpeta de la bitacora, o null si la descarga no
+     *                se puede continuar despues de perder la conexion.
+     * @param owner El usuario que recibe el archivo.
+     * @throws IOException Si no se pudo crear el archivo.
+     */
+    public ChatDownload(ChatMessage header, File folder, File journal, String owner) throws IOException {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("No se pudo crear la carpeta " + folder);
+        }
+
+        this.header = header;
+        this.folder = folder;
+        this.fetched = -1;
+        this.digest = ChatBlobIndex.createDigest();
+
+        if (journal == null) {
+            this.partial = File.createTempFile("inchat-", ".part", folder);
+            this.journal = null;
+        } else {
+            // El nombre depende solo del emisor y del identificador para
+            // encontrar el archivo al volver a conectarse.
+            String name = hex(key(header));
+
+            this.partial = new File(journal, name + ".part");
+            this.journal = new File(journal, name + EXTENSION);
+
+            Properties properties = new Properties();
+            properties.setProperty("owner", owner);
+            properties.setProperty("type", header.getType().name());
+            properties.setProperty("sender", header.getSender());
+            properties.setProperty("name", String.valueOf(header.getMessage()));
+            properties.setProperty("id", header.getAttachment());
+            properties.setProperty("size", Long.toString(header.getSize()));
+
+            if (header.getReceiver() != null) {
+                properties.setProperty("receiver", header.getReceiver());
+            }
+
+            if (header.getHash() != null) {
+                properties.setProperty("hash", header.getHash());
+            }
+
+            writeJournal(this.journal, properties);
+        }
+
+        this.output = new FileOutputStream(partial);
+    }
+
+    /**
+     * Continua una descarga guardada en la bitacora.
+     */
+    private ChatDownload(ChatMessage header, File folder, File partial, File journal) throws IOException {
+        this.header = header;
+        this.folder = folder;
+        this.partial = partial;
+        this.journal = journal;
+        this.received = partial.length();
+        this.fetched = -1;
+        this.digest = ChatBlobIndex.createDigest();
+
+        // El resumen debe incluir las partes que ya se habian recibido.
+        InputStream in = new FileInputStream(partial);
+
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int readed;
+
+            while ((readed = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, readed);
+            }
+        } finally {
+            in.close();
+        }
+
+        this.output = new FileOutputStream(partial, true);
+    }
+
+    /**
+     * Carga las descargas pendientes de un usuario.
+     * @param folder La carpeta donde se guardan los archivos.
+     * @param journal La carpeta de la bitacora.
+     * @param owner El usuario.
+     * @return Las descargas pendientes.
+     */
+    public static List<ChatDownload> load(File folder, File journal, String owner) {
+        List<ChatDownload> downloads = new ArrayList<ChatDownload>();
+        File[] files = journal.listFiles();
+
+        if (files == null) {
+            return downloads;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+
+            if (!name.endsWith(EXTENSION)) continue;
+
+            Properties properties = readJournal(file);
+
+            if (properties == null || !owner.equals(properties.getProperty("owner"))) continue;
+
+            File partial = new File(journal, name.substring(0, name.length() - EXTENSION.length()) + ".part");
+
+            try {
+                ChatMessage header = new ChatMessage(
+                        ChatMessage.Type.valueOf(properties.getProperty("type")),
+                        properties.getProperty("sender"),
+                        properties.getProperty("receiver"),
+                        properties.getProperty("name"));
+
+                header.setAttachment(properties.getProperty("id"));
+                header.setHash(properties.getProperty("hash"));
+                header.setSize(Long.parseLong(properties.getProperty("size")));
+
+                downloads.add(new ChatDownload(header, folder, partial, file));
+            } catch (RuntimeException e) {
+                // La bitacora esta dañada.
+                file.delete();
+                partial.delete();
+            } catch (IOException e) {
+                file.delete();
+                partial.delete();
+            }
+        }
+
+        return downloads;
+    }
+
+    /**
+     * Regresa la llave con la que se identifican las partes del archivo.
+     * @param chat El encabezado o una parte de la transferencia.
+     * @return La llave, formada por el emisor y el identificador.
+     */
+    public static String key(ChatMessage chat) {
+        return chat.getSender() + "/" + chat.getAttachment();
+    }
+
+    /**
+     * Escribe una parte del archivo.
+     * @param chunk La parte recibida.
+     * @return true si la parte se escribio, false si no es la siguiente
+     *         parte del archivo o no se pudo escribir.
+     */
+    public boolean write(ChatMessage chunk) {
+        byte[] data = chunk.getData();
+
+        if (data == null || chunk.getOffset() != received || received + data.length > header.getSize()) {
+            return false;
+        }
+
+        try {
+            output.write(data);
+        } catch (IOException e) {
+            return false;
+        }
+
+        digest.update(data);
+        received += data.length;
+
+        return true;
+    }
+
+    /**
+     * Regresa la cantidad de bytes recibidos.
+     * @return La posicion de la siguiente parte.
+     */
+    public long getReceived() {
+        return received;
+    }
+
+    /**
+     * Registra que se pidio el archivo a partir de los bytes recibidos.
+     * @return true si aun no se habia pedido desde esta posicion.
+     */
+    public boolean startFetch() {
+        if (fetched == received) {
+            return false;
+        }
+
+        fetched = received;
+
+        return true;
+    }
+
+    /**
+     * Verifica si ya se recibio el archivo completo.
+     * @return true si se recibieron todos los bytes.
+     */
+    public boolean isComplete() {
+        return received == header.getSize();
+    }
+
+    /**
+     * Cierra el archivo y le da su nombre definitivo.
+     * @return El archivo recibido.
+     * @throws IOException Si no se pudo cerrar o renombrar el archivo, o si
+     *                     su contenido no coincide con el resumen.
+     */
+    public File finish() throws IOException {
+        output.close();
+
+        if (journal != null) {
+            journal.delete();
+        }
+
+        String hash = header.getHash();
+
+        if (hash != null && !hash.equals(ChatBlobIndex.toHex(digest.digest()))) {
+            partial.delete();
+            throw new IOException("El archivo " + header.getMessage() + " llego dañado.");
+        }
+
+        File file = createFile(folder, header.getMessage());
+
+        if (!partial.renameTo(file)) {
+            partial.delete();
+            throw new IOException("No se pudo guardar el archivo " + file);
+        }
+
+        return file;
+    }
+
+    /**
+     * Cierra el archivo incompleto sin eliminarlo, para continuar la
+     * descarga despues. Sin bitacora, el archivo se elimina.
+     */
+    public void suspend() {
+        if (journal == null) {
+            discard();
+            return;
+        }
+
+        try {
+            output.close();
+        } catch (IOException e) {}
+    }
+
+    /**
+     * Cierra y elimina el archivo incompleto.
+     */
+    public void discard() {
+        try {
+            output.close();
+        } catch (IOException e) {}
+
+        partial.delete();
+
+        if (journal != null) {
+            journal.delete();
+        }
+    }
+
+    /**
+     * Regresa el encabezado de la transferencia.
+     * @return El mensaje AUDIO o IMAGE que inicio la transferencia.
+     */
+    public ChatMessage getHeader() {
+        return header;
+    }
+
+    /**
+     * Crea un archivo que aun no existe dentro de una carpeta.
+     * El nombre viene de otro usuario, por lo que se descarta cualquier ruta.
+     * @param folder La carpeta.
+     * @param name El nombre sugerido.
+     * @return Un archivo que no existe.
+     */
+    static File createFile(File folder, String name) {
+        name = (name == null) ? "" : new File(name.replace('\\', '/')).getName();
+
+        if (name.isEmpty() || name.startsWith(".")) {
+            name = "adjunto" + name;
+        }
+
+        int dot = name.lastIndexOf('.');
+        String base = (dot > 0) ? name.substring(0, dot) : name;
+        String extension = (dot > 0) ? name.substring(dot) : "";
+
+        File file = new File(folder, name);
+
+        for (int i = 1; file.exists(); ++i) {
+            file = new File(folder, base + "-" + i + extension);
+        }
+
+        return file;
+    }
+
+    /**
+     * Lee una entrada de la bitacora.
+     * @param file El archivo de la entrada.
+     * @return Las propiedades de la entrada, o null si no se pudo leer.
+     */
+    static Properties readJournal(File file) {
+        Properties properties = new Properties();
+
+        try {
+            InputStream in = new FileInputStream(file);
+
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        return properties;
+    }
+
+    /**
+     * Escribe una entrada de la bitacora.
+     * @param file El archivo de la entrada.
+     * @param properties Las propiedades de la entrada.
+     * @throws IOException Si no se pudo escribir la entrada.
+     */
+    static void writeJournal(File file, Properties properties) throws IOException {
+        File folder = file.getParentFile();
+
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("No se pudo crear la carpeta " + folder);
+        }
+
+        OutputStream out = new FileOutputStream(file);
+
+        try {
+            properties.store(out, "InChat");
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Convierte una cadena en un nombre de archivo valido.
+     */
+    private static String hex(String text) {
+        try {
+            return ChatBlobIndex.toHex(text.getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.util.TimeZone;
+
+/**
+ * Formato con el que se muestran los mensajes del chat:
+ * <pre>
+ *   (12:30:05) > [juan] dice:
+ *       hola
+ * </pre>
+ * El servidor envia los mensajes con su hora y sin formato, y cada cliente
+ * les da formato al mostrarlos. Los metodos se pueden llamar desde varios
+ * hilos al mismo tiempo.
+ * La hora se formatea a lo mas una vez por segundo, y cada hilo arma sus
+ * lineas en el mismo buffer, por lo que solo se crea la cadena final.
+ *
+ * @author wetteifer
+ */
+public final class ChatFormat {
+
+    /**
+     * Sangria de las lineas de un mensaje.
+     */
+    public static final String PADDING = "    ";
+
+    // Las lineas mas largas no conservan su buffer.
+    private static final int MAX_BUFFER = 4 * 1024;
+
+    private static final ThreadLocal<StringBuilder> BUFFERS = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    // La hora del ultimo segundo formateado. Se reemplaza completa para que
+    // los hilos nunca vean un segundo con el texto de otro.
+    private static volatile Prefix prefix = new Prefix(Long.MIN_VALUE, null);
+
+    private ChatFormat() {}
+
+    /**
+     * Da formato a un mensaje de un usuario.
+     * @param chat El mensaje recibido.
+     * @return El texto para mostrar. Si el mensaje no tiene hora, el servidor
+     *         ya le dio formato y se regresa tal cual.
+     */
+    public static String formatMessage(ChatMessage chat) {
+        String message = chat.getMessage();
+
+        if (chat.getTime() == 0) {
+            return message;
+        }
+
+        StringBuilder builder = takeBuffer();
+
+        builder.append(formatTime(chat.getTime()));
+        builder.append('[').append(chat.getSender()).append("] dice:");
+        appendLines(builder, message);
+
+        return release(builder);
+    }
+
+    /**
+     * Da formato a un aviso: la hora seguida del texto.
+     * @param time Los milisegundos desde 1970.
+     * @param label Un texto antes del aviso (por ejemplo "ERROR: "), o null.
+     * @param text El aviso.
+     * @return El aviso con formato.
+     */
+    public static String formatNotice(long time, String label, String text) {
+        StringBuilder builder = takeBuffer();
+
+        builder.append(formatTime(time));
+
+        if (label != null) {
+            builder.append(label);
+        }
+
+        builder.append(text);
+
+        return release(builder);
+    }
+
+    /**
+     * Da formato a una hora. El resultado se guarda y se reutiliza mientras
+     * no cambie el segundo.
+     * @param time Los milisegundos desde 1970.
+     * @return La hora con el formato "(HH:mm:ss) > ".
+     */
+    public static String formatTime(long time) {
+        long second = time / 1000;
+        Prefix current = prefix;
+
+        if (current.second != second) {
+            StringBuilder builder = new StringBuilder(13);
+            appendTime(builder, time);
+
+            current = new Prefix(second, builder.toString());
+            prefix = current;
+        }
+
+        return current.text;
+    }
+
+    /**
+     * Da formato a las lineas de un mensaje: cada linea empieza en un
+     * renglon nuevo y con sangria.
+     * @param message El mensaje.
+     * @return Las lineas con formato.
+     */
+    public static String formatLines(String message) {
+        StringBuilder builder = takeBuffer();
+        appendLines(builder, message);
+        return release(builder);
+    }
+
+    /**
+     * Toma el buffer del hilo actual, vacio.
+     */
+    private static StringBuilder takeBuffer() {
+        StringBuilder builder = BUFFERS.get();
+        builder.setLength(0);
+        return builder;
+    }
+
+    /**
+     * Regresa el contenido del buffer, y lo descarta si crecio demasiado.
+     */
+    private static String release(StringBuilder builder) {
+        String text = builder.toString();
+
+        if (builder.capacity() > MAX_BUFFER) {
+            BUFFERS.remove();
+        }
+
+        return text;
+    }
+
+    /**
+     * Agrega la hora con el formato "(HH:mm:ss) > ", en la zona horaria local.
+     */
+    private static void appendTime(StringBuilder builder, long time) {
+        long local = time + TimeZone.getDefault().getOffset(time);
+        int seconds = (int) (((local / 1000) % 86400 + 86400) % 86400);
+
+        builder.append('(');
+        appendTwoDigits(builder, seconds / 3600);
+        builder.append(':');
+        appendTwoDigits(builder, seconds / 60 % 60);
+        builder.append(':');
+        appendTwoDigits(builder, seconds % 60);
+        builder.append(") > ");
+    }
+
+    private static void appendTwoDigits(StringBuilder builder, int value) {
+        builder.append((char) ('0' + value / 10)).append((char) ('0' + value % 10));
+    }
+
+    /**
+     * Un segundo y su hora formateada.
+     */
+    private static final class Prefix {
+
+        final long second;
+        final String text;
+
+        Prefix(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+
+    }
+
+    /**
+     * Agrega las lineas de un mensaje, sin usar expresiones regulares.
+     */
+    private static void appendLines(StringBuilder builder, String message) {
+        int start = 0;
+        int end;
+
+        while ((end = message.indexOf('\n', start)) >= 0) {
+            builder.append('\n').append(PADDING).append(message, start, end);
+            start = end + 1;
+        }
+
+        builder.append('\n').append(PADDING).append(message, start, message.length());
+    }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cola acotada de mensajes recibidos para el oyente del cliente.
+ * El hilo que lee del servidor solo deja el mensaje en la cola y sigue
+ * leyendo; otro hilo se lo entrega al oyente. Asi un oyente lento no deja
+ * de leer el socket, y el servidor no se detiene al escribirle a este
+ * cliente.
+ * Todos los mensajes pasan por la misma cola acotada, por lo que se entregan
+ * en el orden en que llegaron; los que no se pueden descartar esperan lugar
+ * aun con la politica DROP.
+ *
+ * @author wetteifer
+ */
+public class ChatInboundQueue implements Runnable {
+
+    public enum Policy {
+
+        /**
+         * Descarta el mensaje nuevo, salvo los que no se pueden descartar.
+         * Los mensajes descartados se cuentan y se avisan al oyente con un
+         * mensaje INFO.
+         */
+        DROP,
+
+        /**
+         * Detiene al hilo que lee del servidor hasta que haya lugar. Es la
+         * politica por omision: no se pierde ningun mensaje.
+         */
+        BLOCK
+
+    }
+
+    // Marca el final de los mensajes.
+    private static final Entry END = new Entry(null);
+
+    private final BlockingQueue<Entry> queue;
+    private final Policy policy;
+    private final AtomicLong dropped;
+    private volatile Thread thread;
+    private volatile ChatClientListener listener;
+    private volatile long delivered;
+    private volatile long lag;
+    private volatile long maxLag;
+    private volatile boolean closed;
+
+    /**
+     * Crea la cola de mensajes.
+     * @param capacity El numero maximo de mensajes pendientes.
+     * @param policy La politica a aplicar cuando la cola esta llena.
+     */
+    public ChatInboundQueue(int capacity, Policy policy) {
+        this.queue = new LinkedBlockingQueue<Entry>(Math.max(1, capacity));
+        this.policy = policy;
+        this.dropped = new AtomicLong();
+    }
+
+    /**
+     * Establece el oyente que recibe los mensajes.
+     * @param listener El oyente, o null para descartar los mensajes.
+     */
+    public void setListener(ChatClientListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Publica un mensaje recibido. Puede llamarse desde cualquier hilo.
+     * Con la cola llena, espera lugar si la politica es BLOCK o si el
+     * mensaje no se puede descartar (los que terminan la sesion, los
+     * archivos recibidos y los cambios de la lista de usuarios); en otro
+     * caso lo descarta. Despues de shutdown nunca espera.
+     * Si lo llama el oyente desde el hilo de la cola y la cola esta llena,
+     * el mensaje se entrega de inmediato en lugar de esperar.
+     * @param chat El mensaje.
+     * @return true si el mensaje se encolo o se entrego, false si se descarto.
+     */
+    public boolean publish(ChatMessage chat) {
+        Entry entry = new Entry(chat);
+
+        // El hilo de la cola no puede esperar a que el mismo haga lugar.
+        if (Thread.currentThread() == thread) {
+            if (!queue.offer(entry)) {
+                deliver(chat);
+                ++delivered;
+            }
+            return true;
+        }
+
+        // El hilo de la cola ya termino o esta por terminar; esperar lugar
+        // podria no terminar nunca.
+        if (closed || (Policy.DROP == policy && !isRequired(chat))) {
+            if (queue.offer(entry)) {
+                return true;
+            }
+
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        try {
+            queue.put(entry);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            dropped.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Entrega los mensajes pendientes y termina el hilo de la cola.
+     * Si la cola esta llena, espera a que el hilo de la cola haga lugar.
+     */
+    public void shutdown() {
+        closed = true;
+
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Regresa el numero de mensajes en la cola.
+     * @return Los mensajes recibidos que aun no se entregan.
+     */
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * Regresa el numero de mensajes entregados al oyente.
+     * @return El numero de mensajes.
+     */
+    public long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * Regresa el numero de mensajes descartados por tener la cola llena.
+     * @return El numero de mensajes.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Regresa cuanto espero en la cola el ultimo mensaje entregado.
+     * @return El tiempo en nanosegundos.
+     */
+    public long getLag() {
+        return lag;
+    }
+
+    /**
+     * Regresa lo maximo que ha esperado un mensaje en la cola.
+     * @return El tiempo en nanosegundos.
+     */
+    public long getMaxLag() {
+        return maxLag;
+    }
+
+    @Override
+    public void run() {
+        long reported = 0;
+        thread = Thread.currentThread();
+
+        while (true) {
+            Entry entry;
+
+            try {
+                entry = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (entry == END) {
+                break;
+            }
+
+            long waited = System.nanoTime() - entry.time;
+            lag = waited;
+
+            if (waited > maxLag) {
+                maxLag = waited;
+            }
+
+            deliver(entry.chat);
+            ++delivered;
+
+            long lost = dropped.get();
+
+            if (lost != reported) {
+                deliver(new ChatMessage(ChatMessage.Type.INFO,
+                        "Se descartaron " + (lost - reported) + " mensajes por tener la cola llena."));
+                reported = lost;
+            }
+        }
+    }
+
+    /**
+     * Entrega un mensaje al oyente. Un error del oyente no detiene la cola.
+     */
+    private void deliver(ChatMessage chat) {
+        ChatClientListener current = listener;
+
+        if (current == null) {
+            return;
+        }
+
+        try {
+            current.onMessageReceived(chat);
+        } catch (RuntimeException e) {
+            // Ignoramos el error para seguir entregando los demas mensajes.
+        }
+    }
+
+    /**
+     * Verifica si un mensaje no se puede descartar.
+     */
+    private static boolean isRequired(ChatMessage chat) {
+        switch (chat.getType()) {
+            case LOGOUT:
+            case SERVER_CLOSED:
+            case EXIT:
+            case AUDIO:
+            case IMAGE:
+            case CONNECTED_USERS:
+            case JOIN:
+            case LEAVE:
+            case PRESENCE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Un mensaje y el momento en que se encolo.
+     */
+    private static final class Entry {
+
+        final ChatMessage chat;
+        final long time;
+
+        Entry(ChatMessage chat) {
+            this.chat = chat;
+            this.time = System.nanoTime();
+        }
+
+    }
+
+}
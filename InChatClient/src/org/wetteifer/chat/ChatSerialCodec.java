@@ -0,0 +1,61 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Codec que usa la serializacion de Java para cada trama.
+ *
+ * @author wetteifer
+ */
+class ChatSerialCodec extends ChatCodec {
+
+    ChatSerialCodec() {
+        super(0);
+    }
+
+    @Override
+    public String getName() {
+        return "serial";
+    }
+
+    @Override
+    public byte[] encode(ChatMessage chat) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+
+        // Reservamos el espacio del encabezado.
+        bytes.write(new byte[HEADER_SIZE]);
+
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+        output.writeObject(chat);
+        output.close();
+
+        byte[] frame = bytes.toByteArray();
+        writeHeader(frame);
+
+        return frame;
+    }
+
+    @Override
+    public ChatMessage decode(byte[] buffer, int offset, int length) throws IOException {
+        ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(buffer, offset, length));
+
+        try {
+            return (ChatMessage) input.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Trama invalida.");
+        } catch (ClassCastException e) {
+            throw new IOException("Trama invalida.");
+        } finally {
+            input.close();
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.lang.reflect.Method;
+
+/**
+ * Crea los hilos que atienden las conexiones.
+ * Los hilos virtuales solo existen a partir de Java 21, por lo que se
+ * obtienen por reflexion; en versiones anteriores se usan hilos normales.
+ *
+ * @author wetteifer
+ */
+public final class ChatThreads {
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name      = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (Exception e) {
+            // La maquina virtual no soporta hilos virtuales.
+            ofVirtual = null;
+        }
+
+        OF_VIRTUAL = ofVirtual;
+        NAME       = name;
+        UNSTARTED  = unstarted;
+    }
+
+    private ChatThreads() {}
+
+    /**
+     * Verifica si la maquina virtual soporta hilos virtuales.
+     * @return true si se pueden crear hilos virtuales, false en caso contrario.
+     */
+    public static boolean isVirtualSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Crea un nuevo hilo sin iniciarlo.
+     * @param task La tarea que ejecutara el hilo.
+     * @param name El nombre del hilo.
+     * @param virtual true si se desea un hilo virtual (si estan disponibles).
+     * @return El hilo creado.
+     */
+    public static Thread newThread(Runnable task, String name, boolean virtual) {
+        if (virtual && isVirtualSupported()) {
+            try {
+                Object builder = OF_VIRTUAL.invoke(null);
+                builder = NAME.invoke(builder, name);
+                return (Thread) UNSTARTED.invoke(builder, task);
+            } catch (Exception e) {
+                // Si falla la reflexion usamos un hilo normal.
+            }
+        }
+
+        return new Thread(task, name);
+    }
+
+    /**
+     * Crea e inicia un nuevo hilo.
+     * @param task La tarea que ejecutara el hilo.
+     * @param name El nombre del hilo.
+     * @param virtual true si se desea un hilo virtual (si estan disponibles).
+     * @return El hilo iniciado.
+     */
+    public static Thread start(Runnable task, String name, boolean virtual) {
+        Thread thread = newThread(task, name, virtual);
+        thread.start();
+        return thread;
+    }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Archivo adjunto que se esta enviando por partes.
+ * Si se guarda en la bitacora, el envio puede continuar despues de perder
+ * la conexion, desde la ultima parte que el servidor confirmo.
+ *
+ * @author wetteifer
+ */
+public class ChatUpload {
+
+    // Valor de la confirmacion mientras no llega una nueva.
+    private static final long NONE = Long.MIN_VALUE;
+
+    private static final String EXTENSION = ".upload";
+
+    private final String owner;
+    private final String id;
+    private final ChatMessage.Type type;
+    private final String receiver;
+    private final File file;
+    private final long size;
+    private final long modified;
+    private final String hash;
+    private File journal;
+    private long acknowledged;
+
+    /**
+     * Crea un nuevo envio y calcula el resumen del contenido del archivo,
+     * con el que el servidor sabe si ya lo tiene.
+     * @param owner El usuario que envia el archivo.
+     * @param type El tipo de archivo (AUDIO o IMAGE).
+     * @param receiver El receptor, o null si el archivo es para todos.
+     * @param file El archivo a enviar.
+     * @throws IOException Si no se pudo leer el archivo.
+     */
+    public ChatUpload(String owner, ChatMessage.Type type, String receiver, File file) throws IOException {
+        this(owner, UUID.randomUUID().toString(), type, receiver, file, file.length(), file.lastModified(), ChatBlobIndex.hash(file));
+    }
+
+    private ChatUpload(String owner, String id, ChatMessage.Type type, String receiver, File file, long size, long modified, String hash) {
+        this.owner = owner;
+        this.id = id;
+        this.type = type;
+        this.receiver = receiver;
+        this.file = file;
+        this.size = size;
+        this.modified = modified;
+        this.hash = hash;
+        this.acknowledged = NONE;
+    }
+
+    /**
+     * Carga los envios pendientes de un usuario.
+     * @param folder La carpeta de la bitacora.
+     * @param owner El usuario.
+     * @return Los envios pendientes.
+     */
+    public static List<ChatUpload> load(File folder, String owner) {
+        List<ChatUpload> uploads = new ArrayList<ChatUpload>();
+        File[] journals = folder.listFiles();
+
+        if (journals == null) {
+            return uploads;
+        }
+
+        for (File journal : journals) {
+            if (!journal.getName().endsWith(EXTENSION)) continue;
+
+            Properties properties = ChatDownload.readJournal(journal);
+
+            if (properties == null || !owner.equals(properties.getProperty("owner"))) continue;
+
+            try {
+                ChatUpload upload = new ChatUpload(owner,
+                        properties.getProperty("id"),
+                        ChatMessage.Type.valueOf(properties.getProperty("type")),
+                        properties.getProperty("receiver"),
+                        new File(properties.getProperty("file")),
+                        Long.parseLong(properties.getProperty("size")),
+                        Long.parseLong(properties.getProperty("modified")),
+                        properties.getProperty("hash"));
+
+                upload.journal = journal;
+                uploads.add(upload);
+            } catch (RuntimeException e) {
+                // La bitacora esta dañada.
+                journal.delete();
+            }
+        }
+
+        return uploads;
+    }
+
+    /**
+     * Guarda el envio en la bitacora para poder continuarlo despues.
+     * @param folder La carpeta de la bitacora.
+     * @throws IOException Si no se pudo guardar la bitacora.
+     */
+    public void save(File folder) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("owner", owner);
+        properties.setProperty("id", id);
+        properties.setProperty("type", type.name());
+        properties.setProperty("file", file.getAbsolutePath());
+        properties.setProperty("size", Long.toString(size));
+        properties.setProperty("modified", Long.toString(modified));
+        properties.setProperty("hash", hash);
+
+        if (receiver != null) {
+            properties.setProperty("receiver", receiver);
+        }
+
+        journal = new File(folder, id + EXTENSION);
+        ChatDownload.writeJournal(journal, properties);
+    }
+
+    /**
+     * Elimina el envio de la bitacora.
+     */
+    public void delete() {
+        if (journal != null) {
+            journal.delete();
+        }
+    }
+
+    /**
+     * Verifica que el archivo no haya cambiado desde que comenzo el envio.
+     * @return true si el envio se puede continuar.
+     */
+    public boolean isValid() {
+        return file.isFile() && file.length() == size && file.lastModified() == modified;
+    }
+
+    /**
+     * Crea el mensaje que inicia (o continua) la transferencia.
+     * @return El mensaje AUDIO o IMAGE con el nombre, el tamaño y el
+     *         identificador del archivo.
+     */
+    public ChatMessage createHeader() {
+        ChatMessage header = new ChatMessage(type, owner, receiver, file.getName());
+        header.setAttachment(id);
+        header.setHash(hash);
+        header.setSize(size);
+
+        return header;
+    }
+
+    /**
+     * Registra la confirmacion del servidor.
+     * @param offset La cantidad de bytes que tiene el servidor.
+     */
+    public synchronized void acknowledge(long offset) {
+        acknowledged = offset;
+        notifyAll();
+    }
+
+    /**
+     * Espera la siguiente confirmacion del servidor.
+     * @param timeout El tiempo maximo de espera en milisegundos.
+     * @return La cantidad de bytes que tiene el servidor, o -1 si no llego
+     *         la confirmacion a tiempo.
+     * @throws InterruptedException Si el hilo fue interrumpido.
+     */
+    public synchronized long awaitAcknowledge(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+
+        while (acknowledged == NONE && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+
+        long offset = (acknowledged == NONE) ? -1 : acknowledged;
+        acknowledged = NONE;
+
+        return offset;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+}
@@ -4,26 +4,28 @@
  */
 package org.wetteifer.chat.gui;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
-import java.awt.image.BufferedImage;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
-import javax.imageio.ImageIO;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.filechooser.FileNameExtensionFilter;
-import javax.xml.bind.DatatypeConverter;
 import org.wetteifer.chat.ChatClient;
+import org.wetteifer.chat.ChatClientConfig;
 import org.wetteifer.chat.ChatClientListener;
 import org.wetteifer.chat.ChatException;
+import org.wetteifer.chat.ChatFormat;
 import org.wetteifer.chat.ChatMessage;
 
 /**
@@ -36,30 +38,77 @@ public class ChatClientWindow extends javax.swing.JFrame implements ChatClientLi
     
     private static final String WINDOW_TITLE = "InChat";
     
-    // Formato para el nombre de un archivo recibido.
-    private static final SimpleDateFormat FILENAME_FORMAT = new SimpleDateFormat("yyyyMMdd-HHmmss");
-    
     // Directorio donde se guardaran los archivos enviados.
     private static final File ATTACHMENTS_FOLDER = new File(
             System.getProperty("user.dir")       +
             System.getProperty("file.separator") +
             "attachments");
+    
+    // Veces por segundo que se muestran los mensajes recibidos.
+    private static final int FRAMES_PER_SECOND = 30;
+    
+    // Numero maximo de mensajes que se muestran en un cuadro; los demas
+    // esperan al siguiente para no detener al hilo de Swing.
+    private static final int MESSAGES_PER_FRAME = 500;
 
     private ChatClient client;
     private Map<String, ChatPrivateDialog> conversations;
     private String username;
     private String address;
     private boolean closing;
+    
+    // Mensajes recibidos que aun no se muestran. El hilo del cliente los
+    // agrega y el hilo de Swing los saca en cada cuadro.
+    private final Queue<ChatMessage> inbox = new ConcurrentLinkedQueue<ChatMessage>();
+    
+    // Historial de mensajes; reemplaza al area de texto del formulario.
+    private ChatMessageView messages;
+    
+    // Temporizador que muestra los mensajes recibidos.
+    private Timer dispatcher;
+    
+    // Lo que se mostrara al terminar el cuadro actual. Solo se usan desde
+    // el hilo de Swing.
+    private final Set<ChatPrivateDialog> pendingPrivate = new LinkedHashSet<ChatPrivateDialog>();
+    private String[] pendingUsers;
+    private boolean pendingPresence;
+    private boolean pendingRequest;
+    private boolean requesting;
 
     /**
      * Creates new form ChatClientWindow.
      */
     public ChatClientWindow(String username, String address) throws ChatException {
         initComponents();
+        initMessages();
+        initDispatcher();
         initClient(username, address);
         setLocationRelativeTo(null);        
     }
     
+    /**
+     * Muestra el historial en una vista que solo dibuja los mensajes
+     * visibles, en lugar del area de texto.
+     */
+    private void initMessages() {
+        messages = new ChatMessageView();
+        jScrollPane2.setViewportView(messages);
+    }
+    
+    /**
+     * Inicia el temporizador que muestra los mensajes recibidos por lotes,
+     * con una sola actualizacion de cada componente por cuadro.
+     */
+    private void initDispatcher() {
+        dispatcher = new Timer(1000 / FRAMES_PER_SECOND, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                dispatchMessages();
+            }
+        });
+        dispatcher.start();
+    }
+    
     /**
      * Inicializa el cliente.
      * @param user El nombre de usuario del cliente.
@@ -70,7 +119,11 @@ public class ChatClientWindow extends javax.swing.JFrame implements ChatClientLi
         username = user;
         address  = addr;
         
-        client = new ChatClient(address);
+        // Los archivos recibidos se guardan en la carpeta de adjuntos.
+        ChatClientConfig config = ChatClientConfig.fromSystemProperties();
+        config.setAttachmentsFolder(ATTACHMENTS_FOLDER);
+        
+        client = new ChatClient(address, config);
         client.setUsername(username);
         client.setChatClientListener(this);
         client.open();
@@ -81,11 +134,37 @@ public class ChatClientWindow extends javax.swing.JFrame implements ChatClientLi
     }
     
     /**
-     * Se encarga de recibir los mensajes del servidor.
+     * Se encarga de recibir los mensajes del servidor. Se llama desde el
+     * hilo del cliente, por lo que solo encola el mensaje; se muestra en el
+     * siguiente cuadro.
      * @param chat El mensaje recibido.
      */
     @Override
     public void onMessageReceived(ChatMessage chat) {
+        inbox.offer(chat);
+    }
+    
+    /**
+     * Muestra los mensajes recibidos desde el cuadro anterior, hasta
+     * MESSAGES_PER_FRAME. Se llama desde el hilo de Swing.
+     */
+    private void dispatchMessages() {
+        ChatMessage chat;
+        int count = 0;
+        
+        while (count < MESSAGES_PER_FRAME && (chat = inbox.poll()) != null) {
+            dispatchMessage(chat);
+            ++count;
+        }
+        
+        flush();
+    }
+    
+    /**
+     * Atiende un mensaje recibido.
+     * @param chat El mensaje recibido.
+     */
+    private void dispatchMessage(ChatMessage chat) {
         switch (chat.getType()) {
             case LOGOUT:
                 onReceiveLogout();
@@ -99,6 +178,11 @@ public class ChatClientWindow extends javax.swing.JFrame implements ChatClientLi
             case INFO:
                 onReceiveInfo(chat);
                 break;
+            case JOIN:
+            case LEAVE:
+            case PRESENCE:
+                onReceivePresence(chat);
+                break;
             case MESSAGE:
                 onReceiveMessage(chat);
                 break;
@@ -118,6 +202,7 @@ public class ChatClientWindow extends javax.swing.JFrame implements ChatClientLi
      * Accion a realizar cuando se recibe el mensaje de cierre de sesion del servidor.
      */
     private void onReceiveLogout() {
+        flush();
         close();
         enableControls(false);
         if (closing) System.exit(0);
@@ -127,6 +212,7 @@ public class ChatClientWindow extends javax.swing.JFrame implements ChatClientLi
      * Accion a realizar cuando el servidor ha sido cerrado.
      */
     private void onReceiveServerClosed() {
+        flush();
         close();
         enableControls(false);
     }
@@ -135,6 +221,7 @@ public class ChatClientWindow extends javax.swing.JFrame implements ChatClientLi
      * Accion a realizar cuando la conexion al servidor ha sido rechazada.
      */
     private void onReceiveExit() {
+        flush();
         close();
         enableControls(false);
         showErrorDialog("Conexión rechazada.");
@@ -142,26 +229,61 @@ public class ChatClientWindow extends javax.swing.JFrame implements ChatClientLi
     
     /**
      * Accion a realizar cuando se recibe un mensaje de informacion del servidor.
+     * La lista de usuarios conectados se solicita una sola vez por cuadro.
      * @param chat El mensaje recibido.
      */
     private void onReceiveInfo(ChatMessage chat) {
         append(chat.getMessage());
-        
+        pendingRequest = true;
+    }
+    
+    /**
+     * Solicita la lista de usuarios conectados desde otro hilo, porque
+     * enviar la solicitud puede esperar al socket. Solo hay una solicitud
+     * a la vez.
+     */
+    private void requestConnectedUsers() {
         // Evitar solicitar la lista de usuarios conectados si el cliente esta cerrado.
         if (client.isClosed()) {
             return;
         }
         
-        try {
-            client.requestConnectedUsers();
-        } catch (ChatException e) {
-            // Esta excepcion ocurrira cuando el usuario cierre sesion,
-            // puesto que el servidor envia un mensaje de tipo INFO avisando
-            // a los clientes de la desconexion de un usuario. Dado que siempre
-            // que se reciba este tipo de mensaje se solicita la lista de usuarios
-            // conectados, la solicitud fallara debido a que el servidor
-            // ha cerrado nuestra conexion.
-        }
+        requesting = true;
+        
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() {
+                try {
+                    client.requestConnectedUsers();
+                } catch (ChatException e) {
+                    // Esta excepcion ocurrira cuando el usuario cierre sesion,
+                    // puesto que el servidor envia un mensaje de tipo INFO avisando
+                    // a los clientes de la desconexion de un usuario. Dado que siempre
+                    // que se reciba este tipo de mensaje se solicita la lista de usuarios
+                    // conectados, la solicitud fallara debido a que el servidor
+                    // ha cerrado nuestra conexion.
+                }
+                return null;
+            }
+            
+            @Override
+            protected void done() {
+                requesting = false;
+            }
+        }.execute();
+    }
+    
+    /**
+     * Accion a realizar cuando uno o varios usuarios entran o salen del chat.
+     * El cliente ya actualizo su lista de usuarios conectados.
+     * @param chat El mensaje recibido.
+     */
+    private void onReceivePresence(ChatMessage chat) {
+        append(chat.getMessage());
+        
+        // Solo se muestra la lista mas reciente del cuadro.
+        pendingUsers = null;
+        pendingPresence = true;
     }
     
     /**
@@ -169,7 +291,7 @@ public class ChatClientWindow extends javax.swing.JFrame implements ChatClientLi
      * @param chat El mensaje recibido.
      */
     private void onReceiveMessage(ChatMessage chat) {
-        String message = chat.getMessage();
+        String message = ChatFormat.formatMessage(chat);
         
         // Nos llego un mensaje privado.
         if (chat.isPrivateMessage()) {
@@ -180,9 +302,11 @@ public class ChatClientWindow extends javax.swing.JFrame implements ChatClientLi
             // una ventana con la conversacion privada.
             if (sender.equals(username)) {
                 dialog = conversations.get(chat.getReceiver());
-                dialog.setVisible(true);
-                dialog.toFront();
-                dialog.append(message);
+                
+                // La conversacion se cerro antes de mostrar el mensaje.
+                if (dialog == null) return;
+                
+                appendPrivate(dialog, message);
             }
 
             // Un usuario nos envio un mensaje privado. 
@@ -197,18 +321,10 @@ public class ChatClientWindow extends javax.swing.JFrame implements ChatClientLi
 
                     // Agregamos la ventana de conversacion a la lista.
                     conversations.put(sender, dialog);
-
-                    dialog.setVisible(true);
-                    dialog.toFront();
-                    dialog.append(message);
                 }
 
-                // La ventana existe; le agregamos el mensaje.
-                else {
-                    dialog.setVisible(true);
-                    dialog.toFront();
-                    dialog.append(message);
-                }
+                // Le agregamos el mensaje a la ventana.
+                appendPrivate(dialog, message);
             }
         }
 
@@ -223,7 +339,9 @@ public class ChatClientWindow extends javax.swing.JFrame implements ChatClientLi
      * @param chat El mensaje recibido.
      */
     private void onReceiveConnectedUsers(ChatMessage chat) {
-        lstConnectedUsers.setListData(chat.getMessage().split(", "));
+        // Solo se muestra la lista mas reciente del cuadro.
+        pendingUsers = chat.getMessage().split(", ");
+        pendingPresence = false;
     }
     
     /**
@@ -231,7 +349,7 @@ public class ChatClientWindow extends javax.swing.JFrame implements ChatClientLi
      * @param chat El mensaje recibido.
      */
     private void onReceiveAudio(ChatMessage chat) {
-        startFileDecode(ChatMessage.Type.AUDIO, chat);
+        showReceivedFile(ChatMessage.Type.AUDIO, chat);
     }
     
     /**
@@ -239,16 +357,58 @@ public class ChatClientWindow extends javax.swing.JFrame implements ChatClientLi
      * @param chat El mensaje recibido.
      */
     private void onReceiveImage(ChatMessage chat) {
-        startFileDecode(ChatMessage.Type.IMAGE, chat);
+        showReceivedFile(ChatMessage.Type.IMAGE, chat);
     }
     
     /**
-     * Inserta el mensaje al final del area de mensajes.
+     * Inserta el mensaje al final del historial. La vista se acomoda una
+     * sola vez por cuadro.
      * @param message El mensaje a insertar.
      */
     private void append(String message) {
-        txtMessages.append(message);
-        txtMessages.append("\n");
+        messages.append(message);
+    }
+    
+    /**
+     * Inserta el mensaje al final de una conversacion privada. La ventana
+     * se muestra al terminar el cuadro actual.
+     * @param dialog La ventana de la conversacion.
+     * @param message El mensaje a insertar.
+     */
+    private void appendPrivate(ChatPrivateDialog dialog, String message) {
+        dialog.append(message);
+        pendingPrivate.add(dialog);
+    }
+    
+    /**
+     * Muestra lo acumulado en el cuadro actual: cada conversacion privada
+     * se trae al frente una sola vez y la lista de usuarios se actualiza
+     * solo con su ultimo valor.
+     */
+    private void flush() {
+        if (!pendingPrivate.isEmpty()) {
+            for (ChatPrivateDialog dialog : pendingPrivate) {
+                dialog.setVisible(true);
+                dialog.toFront();
+            }
+            
+            pendingPrivate.clear();
+        }
+        
+        if (pendingPresence) {
+            lstConnectedUsers.setListData(client.getConnectedUsers());
+        } else if (pendingUsers != null) {
+            lstConnectedUsers.setListData(pendingUsers);
+        }
+        
+        pendingUsers = null;
+        pendingPresence = false;
+        
+        // Si ya hay una solicitud en curso, esta espera al siguiente cuadro.
+        if (pendingRequest && !requesting) {
+            pendingRequest = false;
+            requestConnectedUsers();
+        }
     }
     
     /**
@@ -308,10 +468,20 @@ public class ChatClientWindow extends javax.swing.JFrame implements ChatClientLi
      * Cierra el cliente y todas sus conversaciones privadas.
      */
     private void close() {
+        dispatcher.stop();
         client.close();
         conversations.clear();
     }
     
+    /**
+     * Cierra la ventana y detiene el temporizador de los mensajes.
+     */
+    @Override
+    public void dispose() {
+        dispatcher.stop();
+        super.dispose();
+    }
+    
     /**
      * Crea una ventana para iniciar la conversacion privada con un usuario.
      */
@@ -399,103 +569,91 @@ public class ChatClientWindow extends javax.swing.JFrame implements ChatClientLi
     }
     
     /**
-     * Inicia el procedo de decodificacion de un archivo.
-     * @param type El tipo de archivo a decodificar.
+     * Notifica al usuario de un archivo recibido. Si el archivo solo se
+     * anuncio, se le pregunta al usuario si desea descargarlo; en otro caso
+     * el cliente ya guardo el archivo en la carpeta de adjuntos y el mensaje
+     * es su ruta.
+     * @param type El tipo de archivo recibido.
      * @param chat El mensaje obtenido.
      */
-    private void startFileDecode(final ChatMessage.Type type, final ChatMessage chat) {
+    private void showReceivedFile(ChatMessage.Type type, ChatMessage chat) {
         String sender = chat.getSender();
         
-        // Evitar decodificar el archivo si nosotros lo estamos mandando.
-        if (sender.equals(username)) {
+        // Ignorar los archivos que nosotros mismos enviamos.
+        if (username.equals(sender)) {
+            return;
+        }
+        
+        // El archivo aun no se descarga.
+        if (chat.getAttachment() != null) {
+            append(sender + " ha mandado el archivo " + chat.getMessage() + " (" + (chat.getSize() / 1024) + " KB).");
+            askDownload(chat);
             return;
         }
         
         // Notificar al usuario del envio del archivo.
         append(sender + " ha mandado un archivo.");
         
-        // Crear el directorio de mensajes adjuntos si aun no existe.
-        if (!ATTACHMENTS_FOLDER.exists()) {
-            ATTACHMENTS_FOLDER.mkdir();
+        switch (type) {
+            case AUDIO:
+                append("Se ha guardado el audio en la siguiente ruta: " + chat.getMessage());
+                break;
+            case IMAGE:
+                messages.append("Se ha guardado la imagen en la siguiente ruta: " + chat.getMessage(), new File(chat.getMessage()));
+                break;
         }
-        
-        // Creamos un nuevo hilo para decodificar y crear el archivo recibido.
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                byte[] bytes = DatatypeConverter.parseBase64Binary(chat.getMessage());                
-                switch (type) {
-                    case AUDIO:
-                        saveAudio(bytes);
-                        break;
-                    case IMAGE:
-                        saveImage(bytes);
-                        break;
-                }
-            }
-        }).start();
     }
     
     /**
-     * Guarda la imagen en el disco duro.
-     * @param bytes El arreglo de bytes de la imagen.
+     * Pregunta al usuario si desea descargar un archivo anunciado. El cuadro
+     * de dialogo se muestra despues para no detener la recepcion de mensajes,
+     * y la descarga se pide desde otro hilo, porque crea el archivo y puede
+     * esperar al socket.
+     * @param chat El mensaje con el encabezado del archivo.
      */
-    private void saveImage(byte[] bytes) {
-        try {
-            BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
-            final File file = new File(createFilename() + ".png");
-            ImageIO.write(image, "png", file);
-            image.flush();
-            SwingUtilities.invokeLater(new Runnable() {
-                @Override
-                public void run() {
-                    append("Se ha guardado la imagen en la siguiente ruta: " + file.getAbsolutePath());
-                }
-            });
-        } catch (IOException e) {
-            SwingUtilities.invokeLater(new Runnable() {
-                @Override
-                public void run() {
-                    showErrorDialog("No se pudo guardar la imagen.");
+    private void askDownload(final ChatMessage chat) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                int option = JOptionPane.showConfirmDialog(
+                        ChatClientWindow.this,
+                        "¿Desea descargar el archivo " + chat.getMessage() + " de " + chat.getSender() + "?",
+                        WINDOW_TITLE,
+                        JOptionPane.YES_NO_OPTION);
+                
+                if (JOptionPane.YES_OPTION != option || client.isClosed()) {
+                    return;
                 }
-            });
-        }
+                
+                download(chat);
+            }
+        });
     }
     
     /**
-     * Guarda el audio en el disco duro.
-     * @param bytes El arreglo de bytes del audio.
+     * Descarga un archivo anunciado desde otro hilo, y muestra el error si
+     * no se pudo pedir.
+     * @param chat El mensaje con el encabezado del archivo.
      */
-    private void saveAudio(byte[] bytes) {
-        try {
-            final File file = new File(createFilename() + ".wav");
-            BufferedOutputStream output = new BufferedOutputStream(new FileOutputStream(file));
-            output.write(bytes, 0, bytes.length);
-            output.close();
-            SwingUtilities.invokeLater(new Runnable() {
-                @Override
-                public void run() {
-                    append("Se ha guardado el audio en la siguiente ruta: " + file.getAbsolutePath());
-                }
-            });
-        } catch (IOException e) {
-            SwingUtilities.invokeLater(new Runnable() {
-                @Override
-                public void run() {
-                    showErrorDialog("No se pudo guardar el audio.");
+    private void download(final ChatMessage chat) {
+        new SwingWorker<Void, Void>() {
+            @Override
+            protected Void doInBackground() throws ChatException {
+                client.download(chat);
+                return null;
+            }
+            
+            @Override
+            protected void done() {
+                try {
+                    get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    showErrorDialog(e.getCause().getMessage());
                 }
-            });
-        }
-    }
-    
-    /**
-     * Crea un nombre aleatorio para un nuevo archivo.
-     * @return El nombre para un nuevo archivo.
-     */
-    private String createFilename() {
-        return ATTACHMENTS_FOLDER.getAbsolutePath() +
-               System.getProperty("file.separator") +
-               FILENAME_FORMAT.format(new Date());
+            }
+        }.execute();
     }
     
     /**
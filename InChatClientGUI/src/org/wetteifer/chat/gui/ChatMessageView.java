@@ -0,0 +1,716 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat.gui;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Toolkit;
+import java.awt.datatransfer.StringSelection;
+import java.awt.event.ActionEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import javax.imageio.ImageIO;
+import javax.swing.AbstractAction;
+import javax.swing.Action;
+import javax.swing.JComponent;
+import javax.swing.JPopupMenu;
+import javax.swing.KeyStroke;
+import javax.swing.Scrollable;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.UIManager;
+import javax.swing.event.PopupMenuEvent;
+import javax.swing.event.PopupMenuListener;
+
+/**
+ * Muestra el historial de mensajes del chat.
+ * A diferencia de un area de texto, solo guarda el texto de cada mensaje y
+ * la posicion vertical donde empieza; al dibujar, busca el primer mensaje
+ * visible y dibuja unicamente los renglones que caben en la ventana. Los
+ * renglones de cada mensaje y las miniaturas de las imagenes se guardan en
+ * caches pequenos, por lo que el costo de agregar y de desplazarse no
+ * depende del tamano del historial.
+ * El texto se selecciona con el raton y se copia con Ctrl+C o con el menu
+ * del boton derecho.
+ * Solo debe usarse desde el hilo de Swing.
+ *
+ * @author wetteifer
+ */
+public class ChatMessageView extends JComponent implements Scrollable {
+
+    private static final long serialVersionUID = 3419530527915337145L;
+
+    // Numero maximo de mensajes del historial; al pasarlo se descartan los
+    // mas antiguos de un solo golpe.
+    private static final int MAX_MESSAGES = 250000;
+
+    // Tamano maximo de las miniaturas.
+    private static final int THUMBNAIL_SIZE = 96;
+
+    // Numero de mensajes y de miniaturas que se conservan ya preparados.
+    private static final int CACHED_LAYOUTS = 512;
+    private static final int CACHED_THUMBNAILS = 32;
+
+    private static final int MARGIN = 4;
+
+    private static final String[] NO_LINES = new String[0];
+
+    private String[] texts;
+    private File[] images;
+    private int[] tops;
+    private int count;
+    private int width;
+    private int lineHeight;
+    private int ascent;
+
+    // Altura del historial la ultima vez que se acomodo la vista.
+    private int shownHeight;
+    private boolean pending;
+
+    // La seleccion va del ancla al cursor; cada extremo es un mensaje y una
+    // posicion dentro de su texto.
+    private int anchorMessage;
+    private int anchorOffset;
+    private int caretMessage;
+    private int caretOffset;
+
+    private final Action copyAction;
+
+    private final Map<String, String[]> layouts;
+    private final Map<File, Image> thumbnails;
+    private final Set<File> loading;
+
+    /**
+     * Crea una vista vacia, con la fuente y los colores de un area de texto.
+     */
+    public ChatMessageView() {
+        this.texts = new String[256];
+        this.images = new File[256];
+        this.tops = new int[257];
+        this.layouts = new Cache<String, String[]>(CACHED_LAYOUTS);
+        this.thumbnails = new Cache<File, Image>(CACHED_THUMBNAILS);
+        this.loading = new HashSet<File>();
+
+        setOpaque(true);
+        setFont(UIManager.getFont("TextArea.font"));
+        setForeground(UIManager.getColor("TextArea.foreground"));
+        setBackground(UIManager.getColor("TextArea.background"));
+
+        FontMetrics metrics = getFontMetrics(getFont());
+        lineHeight = metrics.getHeight();
+        ascent = metrics.getAscent();
+
+        copyAction = new AbstractAction("Copiar") {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                copy();
+            }
+        };
+
+        installSelection();
+    }
+
+    /**
+     * Permite seleccionar texto con el raton y copiarlo con el teclado o con
+     * el menu del boton derecho.
+     */
+    private void installSelection() {
+        setFocusable(true);
+        setAutoscrolls(true);
+
+        MouseAdapter mouse = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                requestFocusInWindow();
+
+                // El boton derecho conserva la seleccion para copiarla.
+                if (!SwingUtilities.isLeftMouseButton(e) || count == 0) {
+                    return;
+                }
+
+                int[] position = getPosition(e.getY(), e.getX());
+
+                if (e.getClickCount() == 2) {
+                    // Doble clic: todo el mensaje.
+                    select(position[0], 0, position[0], texts[position[0]].length());
+                } else if (e.isShiftDown()) {
+                    select(anchorMessage, anchorOffset, position[0], position[1]);
+                } else {
+                    select(position[0], position[1], position[0], position[1]);
+                }
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if (!SwingUtilities.isLeftMouseButton(e) || count == 0) {
+                    return;
+                }
+
+                int[] position = getPosition(e.getY(), e.getX());
+                select(anchorMessage, anchorOffset, position[0], position[1]);
+                scrollRectToVisible(new Rectangle(e.getX(), e.getY(), 1, 1));
+            }
+        };
+
+        addMouseListener(mouse);
+        addMouseMotionListener(mouse);
+
+        int shortcut = Toolkit.getDefaultToolkit().getMenuShortcutKeyMask();
+        getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_C, shortcut), "copy");
+        getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_COPY, 0), "copy");
+        getActionMap().put("copy", copyAction);
+
+        final JPopupMenu menu = new JPopupMenu();
+        menu.add(copyAction);
+        menu.addPopupMenuListener(new PopupMenuListener() {
+            @Override
+            public void popupMenuWillBecomeVisible(PopupMenuEvent e) {
+                copyAction.setEnabled(hasSelection());
+            }
+
+            @Override
+            public void popupMenuWillBecomeInvisible(PopupMenuEvent e) {}
+
+            @Override
+            public void popupMenuCanceled(PopupMenuEvent e) {}
+        });
+
+        setComponentPopupMenu(menu);
+    }
+
+    /**
+     * Agrega un mensaje al final del historial. El mensaje puede tener
+     * varios renglones.
+     * @param message El mensaje.
+     */
+    public void append(String message) {
+        append(message, null);
+    }
+
+    /**
+     * Agrega un mensaje con la miniatura de una imagen debajo.
+     * @param message El mensaje.
+     * @param image El archivo de la imagen, o null.
+     */
+    public void append(String message, File image) {
+        if (count == texts.length) {
+            texts = Arrays.copyOf(texts, count * 2);
+            images = Arrays.copyOf(images, count * 2);
+            tops = Arrays.copyOf(tops, count * 2 + 1);
+        }
+
+        FontMetrics metrics = getFontMetrics(getFont());
+        int lines = 1;
+        int start = 0;
+        int end;
+
+        // Medimos los renglones sin guardarlos; se separan al dibujarlos.
+        while ((end = message.indexOf('\n', start)) >= 0) {
+            width = Math.max(width, metrics.stringWidth(message.substring(start, end)));
+            start = end + 1;
+            ++lines;
+        }
+
+        width = Math.max(width, metrics.stringWidth(message.substring(start)));
+
+        int height = lines * lineHeight;
+
+        if (image != null) {
+            height += THUMBNAIL_SIZE + MARGIN;
+            width = Math.max(width, THUMBNAIL_SIZE);
+        }
+
+        texts[count] = message;
+        images[count] = image;
+        tops[count + 1] = tops[count] + height;
+        ++count;
+
+        if (count > MAX_MESSAGES) {
+            removeOldest(count - MAX_MESSAGES + MAX_MESSAGES / 10);
+        }
+
+        changed();
+    }
+
+    /**
+     * Borra todo el historial.
+     */
+    public void clear() {
+        Arrays.fill(texts, 0, count, null);
+        Arrays.fill(images, 0, count, null);
+        count = 0;
+        width = 0;
+        layouts.clear();
+        anchorMessage = anchorOffset = caretMessage = caretOffset = 0;
+        changed();
+    }
+
+    /**
+     * Verifica si hay texto seleccionado.
+     * @return true si hay una seleccion.
+     */
+    public boolean hasSelection() {
+        return anchorMessage != caretMessage || anchorOffset != caretOffset;
+    }
+
+    /**
+     * Regresa el texto seleccionado. Los mensajes se separan con un salto
+     * de renglon.
+     * @return El texto, o una cadena vacia si no hay seleccion.
+     */
+    public String getSelectedText() {
+        if (!hasSelection()) {
+            return "";
+        }
+
+        boolean forward = isForward();
+        int first = forward ? anchorMessage : caretMessage;
+        int start = forward ? anchorOffset : caretOffset;
+        int last = forward ? caretMessage : anchorMessage;
+        int end = forward ? caretOffset : anchorOffset;
+
+        StringBuilder builder = new StringBuilder();
+
+        for (int i = first; i <= last; ++i) {
+            String text = texts[i];
+
+            if (i > first) {
+                builder.append('\n');
+            }
+
+            builder.append(text, (i == first) ? start : 0, (i == last) ? end : text.length());
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Verifica si el ancla de la seleccion esta antes del cursor.
+     */
+    private boolean isForward() {
+        return anchorMessage < caretMessage || (anchorMessage == caretMessage && anchorOffset < caretOffset);
+    }
+
+    /**
+     * Copia el texto seleccionado al portapapeles.
+     */
+    public void copy() {
+        if (hasSelection()) {
+            StringSelection selection = new StringSelection(getSelectedText());
+            Toolkit.getDefaultToolkit().getSystemClipboard().setContents(selection, selection);
+        }
+    }
+
+    /**
+     * Cambia la seleccion y vuelve a dibujar la vista.
+     */
+    private void select(int fromMessage, int fromOffset, int toMessage, int toOffset) {
+        anchorMessage = fromMessage;
+        anchorOffset = fromOffset;
+        caretMessage = toMessage;
+        caretOffset = toOffset;
+        repaint();
+    }
+
+    /**
+     * Regresa el mensaje y la posicion dentro de su texto que estan en un
+     * punto de la vista. Los puntos fuera del texto se ajustan al caracter
+     * mas cercano.
+     */
+    private int[] getPosition(int y, int x) {
+        if (count == 0) {
+            return new int[] { 0, 0 };
+        }
+
+        if (y < MARGIN) {
+            return new int[] { 0, 0 };
+        }
+
+        int index = find(y - MARGIN);
+        String[] lines = layout(texts[index]);
+        int line = (y - MARGIN - tops[index]) / lineHeight;
+
+        // Debajo del ultimo renglon (por ejemplo, en la miniatura).
+        if (line >= lines.length) {
+            return new int[] { index, texts[index].length() };
+        }
+
+        int offset = 0;
+
+        for (int i = 0; i < line; ++i) {
+            offset += lines[i].length() + 1;
+        }
+
+        return new int[] { index, offset + getColumn(lines[line], x - MARGIN) };
+    }
+
+    /**
+     * Regresa el caracter de un renglon mas cercano a una posicion
+     * horizontal.
+     */
+    private int getColumn(String line, int x) {
+        FontMetrics metrics = getFontMetrics(getFont());
+        int left = 0;
+
+        for (int i = 0; i < line.length(); ++i) {
+            int right = left + metrics.charWidth(line.charAt(i));
+
+            if (x < (left + right) / 2) {
+                return i;
+            }
+
+            left = right;
+        }
+
+        return line.length();
+    }
+
+    /**
+     * Regresa el numero de mensajes del historial.
+     * @return El numero de mensajes.
+     */
+    public int getMessageCount() {
+        return count;
+    }
+
+    /**
+     * Descarta los mensajes mas antiguos.
+     */
+    private void removeOldest(int removed) {
+        int offset = tops[removed];
+        int kept = count - removed;
+
+        System.arraycopy(texts, removed, texts, 0, kept);
+        System.arraycopy(images, removed, images, 0, kept);
+        Arrays.fill(texts, kept, count, null);
+        Arrays.fill(images, kept, count, null);
+
+        for (int i = 0; i <= kept; ++i) {
+            tops[i] = tops[i + removed] - offset;
+        }
+
+        count = kept;
+
+        // La seleccion se recorre con los mensajes; lo descartado se pierde.
+        anchorMessage -= removed;
+        caretMessage -= removed;
+
+        if (anchorMessage < 0) {
+            anchorMessage = anchorOffset = 0;
+        }
+
+        if (caretMessage < 0) {
+            caretMessage = caretOffset = 0;
+        }
+    }
+
+    /**
+     * Acomoda la vista una sola vez por todos los mensajes agregados en el
+     * mismo evento. Si la vista estaba al final, se mantiene al final.
+     */
+    private void changed() {
+        if (pending) {
+            return;
+        }
+
+        pending = true;
+
+        Rectangle visible = getVisibleRect();
+        final boolean follow = visible.y + visible.height >= shownHeight - lineHeight;
+
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                pending = false;
+                shownHeight = getPreferredSize().height;
+
+                revalidate();
+
+                if (getParent() != null) {
+                    getParent().validate();
+                }
+
+                if (follow) {
+                    scrollRectToVisible(new Rectangle(0, shownHeight - 1, 1, 1));
+                }
+
+                repaint();
+            }
+        });
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        if (isPreferredSizeSet()) {
+            return super.getPreferredSize();
+        }
+
+        return new Dimension(width + 2 * MARGIN, tops[count] + 2 * MARGIN);
+    }
+
+    @Override
+    protected void paintComponent(Graphics graphics) {
+        Graphics2D g = (Graphics2D) graphics;
+        Rectangle clip = g.getClipBounds();
+
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+
+        Object hints = Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+
+        if (hints instanceof Map) {
+            g.addRenderingHints((Map<?, ?>) hints);
+        }
+
+        g.setFont(getFont());
+
+        int bottom = clip.y + clip.height;
+
+        if (hasSelection()) {
+            paintSelection(g, clip.y, bottom);
+        }
+
+        for (int i = find(clip.y - MARGIN); i < count && MARGIN + tops[i] < bottom; ++i) {
+            paintMessage(g, i, clip.y, bottom);
+        }
+    }
+
+    /**
+     * Dibuja los renglones visibles de un mensaje y su miniatura.
+     */
+    private void paintMessage(Graphics2D g, int index, int top, int bottom) {
+        String[] lines = layout(texts[index]);
+        int y = MARGIN + tops[index];
+
+        g.setColor(getForeground());
+
+        for (String line : lines) {
+            if (y + lineHeight > top && y < bottom) {
+                g.drawString(line, MARGIN, y + ascent);
+            }
+
+            y += lineHeight;
+        }
+
+        if (images[index] == null) {
+            return;
+        }
+
+        Image thumbnail = thumbnail(images[index]);
+
+        if (thumbnail != null) {
+            g.drawImage(thumbnail, MARGIN, y, null);
+        } else {
+            g.setColor(Color.LIGHT_GRAY);
+            g.drawRect(MARGIN, y, THUMBNAIL_SIZE - 1, THUMBNAIL_SIZE - 1);
+        }
+    }
+
+    /**
+     * Dibuja el fondo de los renglones seleccionados que estan visibles.
+     */
+    private void paintSelection(Graphics2D g, int top, int bottom) {
+        boolean forward = isForward();
+        int first = forward ? anchorMessage : caretMessage;
+        int start = forward ? anchorOffset : caretOffset;
+        int last = forward ? caretMessage : anchorMessage;
+        int end = forward ? caretOffset : anchorOffset;
+
+        FontMetrics metrics = g.getFontMetrics();
+        g.setColor(UIManager.getColor("TextArea.selectionBackground"));
+
+        for (int i = Math.max(first, find(top - MARGIN)); i <= last && MARGIN + tops[i] < bottom; ++i) {
+            String[] lines = layout(texts[i]);
+            int from = (i == first) ? start : 0;
+            int to = (i == last) ? end : texts[i].length();
+            int y = MARGIN + tops[i];
+            int offset = 0;
+
+            for (String line : lines) {
+                int lineStart = Math.max(from - offset, 0);
+                int lineEnd = Math.min(to - offset, line.length());
+
+                // Los renglones seleccionados hasta su final incluyen el salto.
+                if (lineStart <= line.length() && lineEnd >= lineStart && y + lineHeight > top && y < bottom &&
+                        (lineEnd > lineStart || to > offset + line.length())) {
+                    int x = MARGIN + metrics.stringWidth(line.substring(0, lineStart));
+                    int w = metrics.stringWidth(line.substring(lineStart, lineEnd));
+
+                    if (to > offset + line.length()) {
+                        w += metrics.charWidth(' ');
+                    }
+
+                    g.fillRect(x, y, w, lineHeight);
+                }
+
+                offset += line.length() + 1;
+                y += lineHeight;
+            }
+        }
+    }
+
+    /**
+     * Busca el ultimo mensaje que empieza antes de una altura.
+     */
+    private int find(int y) {
+        int low = 0;
+        int high = count - 1;
+
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+
+            if (tops[middle] <= y) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return low;
+    }
+
+    /**
+     * Regresa los renglones de un mensaje, separandolos solo si no estan en
+     * el cache.
+     */
+    private String[] layout(String message) {
+        String[] lines = layouts.get(message);
+
+        if (lines == null) {
+            lines = (message.indexOf('\n') < 0) ? new String[] { message } : message.split("\n", -1);
+            layouts.put(message, lines);
+        }
+
+        return lines;
+    }
+
+    /**
+     * Regresa la miniatura de una imagen. Si aun no se tiene, se carga en
+     * otro hilo y la vista se vuelve a dibujar al terminar.
+     * @return La miniatura, o null mientras se carga o si no se pudo leer.
+     */
+    private Image thumbnail(final File file) {
+        Image thumbnail = thumbnails.get(file);
+
+        if (thumbnail != null || thumbnails.containsKey(file) || !loading.add(file)) {
+            return thumbnail;
+        }
+
+        new SwingWorker<Image, Void>() {
+            @Override
+            protected Image doInBackground() throws Exception {
+                return createThumbnail(file);
+            }
+
+            @Override
+            protected void done() {
+                Image result = null;
+
+                try {
+                    result = get();
+                } catch (Exception e) {
+                    // La imagen no se pudo leer; se deja el recuadro vacio.
+                }
+
+                loading.remove(file);
+                thumbnails.put(file, result);
+                repaint();
+            }
+        }.execute();
+
+        return null;
+    }
+
+    /**
+     * Lee una imagen y la reduce para que quepa en la miniatura.
+     */
+    private static Image createThumbnail(File file) throws Exception {
+        BufferedImage image = ImageIO.read(file);
+
+        if (image == null) {
+            return null;
+        }
+
+        double scale = Math.min(1.0, (double) THUMBNAIL_SIZE / Math.max(image.getWidth(), image.getHeight()));
+        int w = Math.max(1, (int) (image.getWidth() * scale));
+        int h = Math.max(1, (int) (image.getHeight() * scale));
+
+        BufferedImage thumbnail = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = thumbnail.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, w, h, null);
+        g.dispose();
+
+        return thumbnail;
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return new Dimension(320, 12 * lineHeight);
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visible, int orientation, int direction) {
+        return (SwingConstants.VERTICAL == orientation) ? lineHeight : lineHeight * 2;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visible, int orientation, int direction) {
+        return (SwingConstants.VERTICAL == orientation) ? visible.height - lineHeight : visible.width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return getParent() != null && getParent().getWidth() > getPreferredSize().width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        return getParent() != null && getParent().getHeight() > getPreferredSize().height;
+    }
+
+    /**
+     * Cache que descarta lo que se uso hace mas tiempo.
+     */
+    private static final class Cache<K, V> extends LinkedHashMap<K, V> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Cache(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > capacity;
+        }
+
+    }
+
+}
@@ -21,6 +21,7 @@ public class ChatPrivateDialog extends javax.swing.JDialog {
     
     private ChatClient client;
     private String username;
+    private ChatMessageView messages;
 
     /**
      * Creates new form ChatPrivateDialog.
@@ -28,6 +29,7 @@ public class ChatPrivateDialog extends javax.swing.JDialog {
     public ChatPrivateDialog(ChatClient client, String username) {
         initComponents();
         initDialog(client, username);
+        initMessages();
         setLocationRelativeTo(null);
     }
     
@@ -46,13 +48,21 @@ public class ChatPrivateDialog extends javax.swing.JDialog {
         setTitle(WINDOW_TITLE + " con " + username);
     }
     
+    /**
+     * Muestra la conversacion en una vista que solo dibuja los mensajes
+     * visibles, en lugar del area de texto.
+     */
+    private void initMessages() {
+        messages = new ChatMessageView();
+        jScrollPane4.setViewportView(messages);
+    }
+    
     /**
      * Inserta un mensaje en el area de mensajes.
      * @param message El mensaje a insertar.
      */
     public void append(String message) {
-        txtMessages.append(message);
-        txtMessages.append("\n");
+        messages.append(message);
     }
     
     /**
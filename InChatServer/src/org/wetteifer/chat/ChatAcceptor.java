@@ -0,0 +1,56 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Hilo que acepta conexiones de un socket de servidor y las entrega al
+ * servidor de chat. Varios hilos pueden aceptar del mismo socket.
+ *
+ * @author wetteifer
+ */
+public class ChatAcceptor extends Thread {
+
+    private final ChatServer server;
+    private final ServerSocket socket;
+
+    /**
+     * Crea un nuevo hilo aceptador.
+     * @param server El servidor de chat.
+     * @param socket El socket de servidor ya enlazado.
+     * @param id El numero del hilo aceptador.
+     */
+    public ChatAcceptor(ChatServer server, ServerSocket socket, int id) {
+        super("ChatAcceptor-" + id);
+        this.server = server;
+        this.socket = socket;
+    }
+
+    /**
+     * Cola para el ingreso de nuevos clientes.
+     */
+    @Override
+    public void run() {
+        while (!socket.isClosed()) {
+            Socket client;
+
+            // Esperar a obtener una conexion.
+            try {
+                client = socket.accept();
+            } catch (IOException e) {
+                // Si ocurre un error al aceptar un nuevo cliente,
+                // debe ser porque el servidor fue cerrado; continuamos
+                // para que el ciclo verifique el estado del servidor.
+                continue;
+            }
+
+            server.accept(client);
+        }
+    }
+
+}
@@ -0,0 +1,365 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Codec binario compacto. El contenido de cada trama es:
+ * <pre>
+ *   tipo     1 byte (ChatMessage.Type)
+ *   campos   varint (bits de los campos presentes)
+ *   emisor   varint con la longitud + bytes UTF-8 (si esta presente)
+ *   receptor varint con la longitud + bytes UTF-8 (si esta presente)
+ *   mensaje  varint con la longitud + bytes UTF-8 (si esta presente)
+ *   adjunto  varint con la longitud + bytes UTF-8 (si esta presente)
+ *   resumen  varint con la longitud + bytes UTF-8 (si esta presente)
+ *   tamaño   varint (si no es cero)
+ *   posicion varint (si no es cero)
+ *   hora     varint (si no es cero)
+ *   datos    varint con la longitud + bytes (si estan presentes)
+ * </pre>
+ *
+ * @author wetteifer
+ */
+class ChatBinaryCodec extends ChatCodec {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final ChatMessage.Type[] TYPES = ChatMessage.Type.values();
+
+    // Bits de los campos presentes en la trama.
+    private static final int SENDER     = 1;
+    private static final int RECEIVER   = 2;
+    private static final int MESSAGE    = 4;
+    private static final int ATTACHMENT = 8;
+    private static final int SIZE       = 16;
+    private static final int OFFSET     = 32;
+    private static final int DATA       = 64;
+    private static final int HASH       = 128;
+    private static final int TIME       = 256;
+
+    ChatBinaryCodec() {
+        super(1);
+    }
+
+    @Override
+    public String getName() {
+        return "binary";
+    }
+
+    @Override
+    public byte[] encode(ChatMessage chat) throws IOException {
+        if (chat.getType() == null) {
+            throw new IOException("El mensaje no tiene tipo.");
+        }
+
+        String sender   = chat.getSender();
+        String receiver = chat.getReceiver();
+        String message  = chat.getMessage();
+        String attachment = chat.getAttachment();
+        String hash = chat.getHash();
+        byte[] data     = chat.getData();
+
+        // Calculamos el tamaño exacto de la trama para reservarla una sola vez.
+        int senderLength   = utf8Length(sender);
+        int receiverLength = utf8Length(receiver);
+        int messageLength  = utf8Length(message);
+        int attachmentLength = utf8Length(attachment);
+        int hashLength = utf8Length(hash);
+
+        int fields = (sender     != null ? SENDER     : 0) |
+                     (receiver   != null ? RECEIVER   : 0) |
+                     (message    != null ? MESSAGE    : 0) |
+                     (attachment != null ? ATTACHMENT : 0) |
+                     (hash       != null ? HASH       : 0) |
+                     (chat.getSize()   != 0 ? SIZE   : 0) |
+                     (chat.getOffset() != 0 ? OFFSET : 0) |
+                     (chat.getTime()   != 0 ? TIME   : 0) |
+                     (data       != null ? DATA       : 0);
+
+        // Los campos se escriben como varint; ocupan un solo byte salvo
+        // en los mensajes con hora.
+        long size = HEADER_SIZE + 1 + varintSize(fields) +
+                    fieldSize(senderLength) +
+                    fieldSize(receiverLength) +
+                    fieldSize(messageLength) +
+                    fieldSize(attachmentLength) +
+                    fieldSize(hashLength) +
+                    (chat.getSize()   != 0 ? varintSize(chat.getSize())   : 0) +
+                    (chat.getOffset() != 0 ? varintSize(chat.getOffset()) : 0) +
+                    (chat.getTime()   != 0 ? varintSize(chat.getTime())   : 0) +
+                    (data != null ? fieldSize(data.length) : 0);
+
+        if (size - HEADER_SIZE > MAX_FRAME_SIZE) {
+            throw new IOException("El mensaje es demasiado grande.");
+        }
+
+        byte[] frame = new byte[(int) size];
+        int position = HEADER_SIZE;
+
+        frame[position++] = (byte) chat.getType().ordinal();
+        position = writeVarint(frame, position, fields);
+
+        position = writeString(frame, position, sender, senderLength);
+        position = writeString(frame, position, receiver, receiverLength);
+        position = writeString(frame, position, message, messageLength);
+        position = writeString(frame, position, attachment, attachmentLength);
+        position = writeString(frame, position, hash, hashLength);
+
+        if (chat.getSize() != 0) {
+            position = writeVarint(frame, position, chat.getSize());
+        }
+
+        if (chat.getOffset() != 0) {
+            position = writeVarint(frame, position, chat.getOffset());
+        }
+
+        if (chat.getTime() != 0) {
+            position = writeVarint(frame, position, chat.getTime());
+        }
+
+        if (data != null) {
+            position = writeVarint(frame, position, data.length);
+            System.arraycopy(data, 0, frame, position, data.length);
+        }
+
+        writeHeader(frame);
+
+        return frame;
+    }
+
+    @Override
+    public ChatMessage decode(byte[] buffer, int offset, int length) throws IOException {
+        Reader reader = new Reader(buffer, offset, offset + length);
+
+        int type = reader.readByte();
+
+        if (type >= TYPES.length) {
+            throw new IOException("Tipo de mensaje invalido: " + type);
+        }
+
+        int fields = (int) reader.readVarint();
+
+        String sender   = (fields & SENDER)   != 0 ? reader.readString() : null;
+        String receiver = (fields & RECEIVER) != 0 ? reader.readString() : null;
+        String message  = (fields & MESSAGE)  != 0 ? reader.readString() : null;
+
+        ChatMessage chat = new ChatMessage(TYPES[type], sender, receiver, message);
+
+        if ((fields & ATTACHMENT) != 0) {
+            chat.setAttachment(reader.readString());
+        }
+
+        if ((fields & HASH) != 0) {
+            chat.setHash(reader.readString());
+        }
+
+        if ((fields & SIZE) != 0) {
+            chat.setSize(reader.readVarint());
+        }
+
+        if ((fields & OFFSET) != 0) {
+            chat.setOffset(reader.readVarint());
+        }
+
+        if ((fields & TIME) != 0) {
+            chat.setTime(reader.readVarint());
+        }
+
+        if ((fields & DATA) != 0) {
+            chat.setData(reader.readBytes());
+        }
+
+        return chat;
+    }
+
+    /**
+     * Calcula el numero de bytes que ocupa un campo en la trama.
+     * @param length La longitud en UTF-8 del campo, o -1 si no esta presente.
+     * @return El numero de bytes del campo.
+     */
+    private static int fieldSize(int length) {
+        return length < 0 ? 0 : varintSize(length) + length;
+    }
+
+    /**
+     * Calcula el numero de bytes que ocupa un entero como varint.
+     * @param value El valor no negativo.
+     * @return El numero de bytes.
+     */
+    private static int varintSize(long value) {
+        int size = 1;
+
+        while ((value >>>= 7) != 0) {
+            ++size;
+        }
+
+        return size;
+    }
+
+    /**
+     * Calcula la longitud en bytes de una cadena codificada en UTF-8.
+     * @param text La cadena.
+     * @return La longitud en bytes, o -1 si la cadena es nula.
+     */
+    private static int utf8Length(String text) {
+        if (text == null) {
+            return -1;
+        }
+
+        int length = 0;
+
+        for (int i = 0, n = text.length(); i < n; ++i) {
+            char c = text.charAt(i);
+
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                ++i;
+            } else if (c >= '\uD800' && c <= '\uDFFF') {
+                // Los sustitutos sin pareja se escriben como '?'.
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * Escribe un campo de texto en la trama.
+     * @param frame La trama.
+     * @param position La posicion donde se escribira el campo.
+     * @param text La cadena a escribir (puede ser nula).
+     * @param length La longitud en UTF-8 de la cadena.
+     * @return La posicion siguiente al campo.
+     */
+    private static int writeString(byte[] frame, int position, String text, int length) {
+        if (text == null) {
+            return position;
+        }
+
+        // Longitud del campo.
+        position = writeVarint(frame, position, length);
+
+        // Bytes del texto en UTF-8.
+        for (int i = 0, n = text.length(); i < n; ++i) {
+            char c = text.charAt(i);
+
+            if (c < 0x80) {
+                frame[position++] = (byte) c;
+            } else if (c < 0x800) {
+                frame[position++] = (byte) (0xC0 | (c >> 6));
+                frame[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int code = Character.toCodePoint(c, text.charAt(++i));
+                frame[position++] = (byte) (0xF0 | (code >> 18));
+                frame[position++] = (byte) (0x80 | ((code >> 12) & 0x3F));
+                frame[position++] = (byte) (0x80 | ((code >> 6) & 0x3F));
+                frame[position++] = (byte) (0x80 | (code & 0x3F));
+            } else if (c >= '\uD800' && c <= '\uDFFF') {
+                frame[position++] = (byte) '?';
+            } else {
+                frame[position++] = (byte) (0xE0 | (c >> 12));
+                frame[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                frame[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        return position;
+    }
+
+    /**
+     * Escribe un entero no negativo como varint.
+     * @param frame La trama.
+     * @param position La posicion donde se escribira el entero.
+     * @param value El valor a escribir.
+     * @return La posicion siguiente al entero.
+     */
+    private static int writeVarint(byte[] frame, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            frame[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        frame[position++] = (byte) value;
+
+        return position;
+    }
+
+    /**
+     * Lector secuencial del contenido de una trama.
+     */
+    private static final class Reader {
+
+        private final byte[] buffer;
+        private final int end;
+        private int position;
+
+        Reader(byte[] buffer, int position, int end) {
+            this.buffer = buffer;
+            this.position = position;
+            this.end = end;
+        }
+
+        int readByte() throws IOException {
+            if (position >= end) {
+                throw new IOException("Trama incompleta.");
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+
+            throw new IOException("Varint invalido.");
+        }
+
+        int readLength() throws IOException {
+            long length = readVarint();
+
+            if (length < 0 || length > end - position) {
+                throw new IOException("Trama incompleta.");
+            }
+
+            return (int) length;
+        }
+
+        String readString() throws IOException {
+            int length = readLength();
+
+            String text = new String(buffer, position, length, UTF8);
+            position += length;
+
+            return text;
+        }
+
+        byte[] readBytes() throws IOException {
+            int length = readLength();
+
+            byte[] bytes = new byte[length];
+            System.arraycopy(buffer, position, bytes, 0, length);
+            position += length;
+
+            return bytes;
+        }
+
+    }
+
+}
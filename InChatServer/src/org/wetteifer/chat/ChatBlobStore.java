@@ -0,0 +1,153 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Carpeta donde el servidor guarda los archivos adjuntos completos segun
+ * el resumen SHA-256 de su contenido. Un archivo que se envia varias veces
+ * se guarda una sola vez. El emisor siempre envia el archivo completo; el
+ * resumen solo se confia despues de verificarlo contra los bytes recibidos.
+ *
+ * @author wetteifer
+ */
+public class ChatBlobStore {
+
+    private final File folder;
+    private final AtomicLong stored;
+    private final AtomicLong deduplicated;
+
+    /**
+     * Crea la carpeta de archivos.
+     * @param folder La carpeta.
+     * @throws IOException Si no se pudo crear la carpeta.
+     */
+    public ChatBlobStore(File folder) throws IOException {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("No se pudo crear la carpeta " + folder);
+        }
+
+        this.folder = folder;
+        this.stored = new AtomicLong();
+        this.deduplicated = new AtomicLong();
+    }
+
+    /**
+     * Guarda un archivo recibido. Si ya existia un archivo con el mismo
+     * contenido, el archivo recibido se elimina.
+     * @param file El archivo recibido, que ya no debe estar abierto.
+     * @param hash El resumen de su contenido.
+     * @return El archivo guardado.
+     * @throws IOException Si no se pudo guardar el archivo.
+     */
+    public File store(File file, String hash) throws IOException {
+        if (!isValid(hash)) {
+            throw new IOException("Resumen invalido: " + hash);
+        }
+
+        File blob = getFile(hash);
+        File parent = blob.getParentFile();
+
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("No se pudo crear la carpeta " + parent);
+        }
+
+        synchronized (this) {
+            if (blob.isFile() && blob.length() == file.length()) {
+                file.delete();
+                deduplicated.incrementAndGet();
+                return blob;
+            }
+
+            if (!file.renameTo(blob)) {
+                throw new IOException("No se pudo guardar el archivo " + blob);
+            }
+        }
+
+        stored.incrementAndGet();
+
+        return blob;
+    }
+
+    /**
+     * Regresa el numero de archivos guardados desde que inicio el servidor.
+     * @return El numero de archivos.
+     */
+    public long getStored() {
+        return stored.get();
+    }
+
+    /**
+     * Regresa el numero de archivos recibidos que no se volvieron a guardar
+     * porque el servidor ya los tenia.
+     * @return El numero de archivos.
+     */
+    public long getDeduplicated() {
+        return deduplicated.get();
+    }
+
+    /**
+     * Crea un objeto para calcular el resumen SHA-256 de un archivo.
+     * @return El objeto.
+     */
+    public static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Todas las maquinas virtuales deben soportar SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Convierte un resumen a hexadecimal.
+     * @param digest El resumen.
+     * @return El resumen en hexadecimal.
+     */
+    public static String toHex(byte[] digest) {
+        StringBuilder builder = new StringBuilder(digest.length * 2);
+
+        for (byte b : digest) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Regresa la ruta de un archivo. Los archivos se reparten en carpetas
+     * segun los dos primeros digitos de su resumen.
+     */
+    private File getFile(String hash) {
+        return new File(new File(folder, hash.substring(0, 2)), hash);
+    }
+
+    /**
+     * Verifica que un resumen sea SHA-256 en hexadecimal; el resumen viene
+     * del cliente y se usa como nombre de archivo.
+     */
+    private static boolean isValid(String hash) {
+        if (hash == null || hash.length() != 64) {
+            return false;
+        }
+
+        for (int i = 0; i < hash.length(); ++i) {
+            char c = hash.charAt(i);
+
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+}
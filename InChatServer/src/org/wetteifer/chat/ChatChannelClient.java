@@ -0,0 +1,310 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Cliente del servidor atendido por un ciclo de eventos con E/S no bloqueante.
+ * La lectura y escritura del canal solo se realiza desde el hilo del ciclo de
+ * eventos; los demas hilos unicamente encolan tramas para enviar.
+ * Las tramas pendientes se escriben juntas con una escritura de varios buffers.
+ *
+ * @author wetteifer
+ */
+public class ChatChannelClient extends ChatClient {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final ChatEventLoop loop;
+    private final SocketChannel channel;
+    private final AtomicBoolean flushScheduled;
+    private final List<byte[]> frames;
+    private final ByteBuffer[] output;
+    private ByteBuffer input;
+    private int first;
+    private int count;
+    private boolean waiting;
+    private long deadline;
+    private SelectionKey key;
+    private volatile boolean closing;
+
+    /**
+     * Crea un nuevo cliente para el servidor de chat.
+     * @param server El servidor de chat.
+     * @param loop El ciclo de eventos que atendera al cliente.
+     * @param channel El canal del cliente.
+     */
+    public ChatChannelClient(ChatServer server, ChatEventLoop loop, SocketChannel channel) {
+        super(server);
+        this.loop = loop;
+        this.channel = channel;
+        this.flushScheduled = new AtomicBoolean();
+        this.frames = new ArrayList<byte[]>();
+        this.output = new ByteBuffer[coalescer.getMaxFrames()];
+        this.input = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /**
+     * Registra el canal del cliente en el selector del ciclo de eventos.
+     * @param selector El selector del ciclo de eventos.
+     * @throws IOException Si el canal no se pudo registrar.
+     */
+    void register(Selector selector) throws IOException {
+        channel.configureBlocking(false);
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+    }
+
+    /**
+     * Lee los datos disponibles del canal y procesa las tramas completas.
+     * Solo debe llamarse desde el hilo del ciclo de eventos.
+     */
+    void read() {
+        int readed;
+
+        try {
+            readed = channel.read(input);
+        } catch (IOException e) {
+            readed = -1;
+        }
+
+        // Perdimos la conexion con el cliente.
+        if (readed < 0) {
+            disconnected();
+            return;
+        }
+
+        // Ignoramos lo que llegue mientras el cliente se esta cerrando.
+        if (closing) {
+            input.clear();
+            return;
+        }
+
+        input.flip();
+
+        // Cantidad de bytes necesarios para completar la siguiente trama.
+        int required = 0;
+
+        while (input.remaining() >= ChatCodec.HEADER_SIZE) {
+            int length = input.getInt(input.position());
+
+            if (!ChatCodec.isValidLength(length)) {
+                disconnected();
+                return;
+            }
+
+            // La trama aun no esta completa.
+            if (input.remaining() < ChatCodec.HEADER_SIZE + length) {
+                required = ChatCodec.HEADER_SIZE + length;
+                break;
+            }
+
+            ChatCodec codec = getCodec();
+            int offset = input.arrayOffset() + input.position() + ChatCodec.HEADER_SIZE;
+            ChatMessage chat;
+
+            traffic.received(ChatCodec.HEADER_SIZE + codec.getDecodedLength(input.array(), offset, length),
+                    ChatCodec.HEADER_SIZE + length);
+
+            try {
+                chat = codec.decode(input.array(), offset, length);
+            } catch (IOException e) {
+                disconnected();
+                return;
+            }
+
+            input.position(input.position() + ChatCodec.HEADER_SIZE + length);
+
+            receive(chat);
+
+            if (isClosed()) {
+                return;
+            }
+        }
+
+        input.compact();
+
+        // Crecemos el buffer si la trama pendiente no cabe en el, o regresamos
+        // al tamaño inicial si ya no hay datos pendientes.
+        if (required > input.capacity()) {
+            resize(required);
+        } else if (input.position() == 0 && input.capacity() > BUFFER_SIZE) {
+            input = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Escribe en el canal las tramas pendientes. Durante una rafaga, la
+     * escritura se pospone un poco para juntar mas tramas.
+     * Solo debe llamarse desde el hilo del ciclo de eventos.
+     */
+    void flush() {
+        flushScheduled.set(false);
+
+        if (key == null || !channel.isOpen()) {
+            return;
+        }
+
+        try {
+            while (true) {
+                // Tomamos las siguientes tramas de la cola de salida.
+                if (count == 0) {
+                    int queued = outbox.size();
+
+                    if (queued == 0) break;
+
+                    if (delay(queued)) return;
+
+                    outbox.drainTo(frames, output.length, coalescer.getMaxBytes());
+
+                    for (byte[] frame : frames) {
+                        output[count++] = ByteBuffer.wrap(frame);
+                    }
+
+                    frames.clear();
+                    first = 0;
+                }
+
+                channel.write(output, first, count - first);
+
+                while (first < count && !output[first].hasRemaining()) {
+                    output[first++] = null;
+                }
+
+                // El socket esta lleno; esperamos a que se pueda escribir.
+                if (first < count) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+
+                coalescer.written(count);
+                count = 0;
+            }
+        } catch (IOException e) {
+            abort();
+            return;
+        }
+
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+
+        // Si se solicito el cierre, ya podemos cerrar el canal.
+        if (outbox.isDone()) {
+            abort();
+        }
+    }
+
+    @Override
+    public void close() {
+        closing = true;
+        outbox.close();
+        scheduleFlush();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closing || !channel.isOpen();
+    }
+
+    @Override
+    public void abort() {
+        closing = true;
+
+        if (key != null) {
+            key.cancel();
+        }
+
+        try {
+            channel.close();
+        } catch (IOException e) {}
+
+        outbox.clear();
+    }
+
+    @Override
+    protected void requestFlush() {
+        scheduleFlush();
+    }
+
+    /**
+     * Procesa un mensaje recibido del cliente.
+     * El primer mensaje debe de ser el de inicio de sesion.
+     * @param chat El mensaje recibido.
+     */
+    private void receive(ChatMessage chat) {
+        if (getUsername() == null) {
+            if (!login(chat) || !server.login(this)) {
+                close();
+            }
+            return;
+        }
+
+        dispatch(chat);
+    }
+
+    /**
+     * Decide si la escritura debe esperar a que lleguen mas tramas.
+     * La primera vez que se decide esperar, se programa la escritura en el
+     * ciclo de eventos para cuando se cumpla el plazo.
+     * @param queued El numero de tramas pendientes.
+     * @return true si todavia se debe esperar.
+     */
+    private boolean delay(int queued) {
+        if (closing || queued >= output.length) {
+            waiting = false;
+            return false;
+        }
+
+        long now = System.nanoTime();
+
+        if (!waiting) {
+            long delay = coalescer.getDelay(queued);
+
+            if (delay == 0) {
+                return false;
+            }
+
+            waiting = true;
+            deadline = now + delay;
+            loop.delay(this, deadline);
+        }
+
+        if (now - deadline < 0) {
+            return true;
+        }
+
+        waiting = false;
+        return false;
+    }
+
+    /**
+     * Solicita al ciclo de eventos que escriba las tramas pendientes.
+     */
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.schedule(this);
+        }
+    }
+
+    /**
+     * Cambia el tamaño del buffer de lectura conservando su contenido.
+     * @param capacity La nueva capacidad del buffer.
+     */
+    private void resize(int capacity) {
+        ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        input.flip();
+        buffer.put(input);
+        input = buffer;
+    }
+
+}
@@ -5,148 +5,521 @@
 package org.wetteifer.chat;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 /**
+ * Representa a un cliente conectado al servidor de chat.
+ * Las subclases definen como se leen y escriben las tramas del cliente.
  *
  * @author wetteifer
  */
-public class ChatClient extends Thread {
+public abstract class ChatClient {
     
-    private ChatServer server;
-    private Socket client;    
-    private ObjectOutputStream output;
-    private ObjectInputStream input;    
+    // Numero maximo de archivos que un cliente puede enviar al mismo tiempo.
+    private static final int MAX_TRANSFERS = 8;
+
+    protected final ChatServer server;
+    protected final ChatOutbox outbox;
+    protected final ChatTraffic traffic;
+    protected final ChatCoalescer coalescer;
     private String username;
-    
+    private ChatOptions options;
+    private volatile ChatCodec codec;
+    private volatile boolean online;
+    private volatile Future<?> deadline;
+    private final long created;
+    private final Map<String, ChatTransfer> transfers;
+    private final ChatSerialExecutor files;
+
     /**
      * Crea un nuevo cliente para el servidor de chat.
      * @param server El servidor de chat.
-     * @param client El socket del cliente.
      */
-    public ChatClient(ChatServer server, Socket client) {
+    protected ChatClient(ChatServer server) {
         this.server = server;
-        this.client = client;
+        this.outbox = server.createOutbox();
+        this.traffic = new ChatTraffic();
+        this.coalescer = server.createCoalescer();
+        this.codec = ChatCodec.SERIAL;
+        this.created = System.nanoTime();
+        this.transfers = new HashMap<String, ChatTransfer>();
+        this.files = server.createFileExecutor();
     }
-    
+
     /**
-     * Cola para los mensajes recibidos del cliente.
+     * Regresa el nombre de usuario del cliente.
+     * @return El nombre de usuario del cliente, o null si aun no inicia sesion.
      */
-    @Override
-    public void run() {
-        while (!client.isClosed()) {
-            // Leemos un mensaje.
-            ChatMessage chat = receive();
-            
-            // Si el mensaje no se pudo leer, perdimos la conexion
-            // con el cliente.
-            if (chat == null) {
-                close();
-                break;
-            }
-            
-            // Verificamos el tipo de mensaje recibido.
-            switch (chat.getType()) {                
-                case MESSAGE:
-                case AUDIO:
-                case IMAGE:
-                    server.send(chat);
-                    break;
-                case LOGOUT:
-                    server.sendLogout(chat);
-                    break;
-                case CONNECTED_USERS:
-                    server.sendConnectedUsers(chat);
-                    break;
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Envia un mensaje al cliente.
+     * @param chat El mensaje que se enviara.
+     * @return true si el mensaje pudo ser enviado, false en caso contrario.
+     */
+    public boolean send(ChatMessage chat) {
+        return send(new ChatFrame(chat));
+    }
+
+    /**
+     * Envia un mensaje al cliente reutilizando su codificacion si ya existe.
+     * La trama solo se encola; el escritor del cliente la enviara despues.
+     * @param frame La trama que se enviara.
+     * @return true si el mensaje pudo ser encolado, false si el cliente
+     *         esta cerrado o fue desconectado por tener la cola llena.
+     */
+    public boolean send(ChatFrame frame) {
+        if (isClosed()) {
+            return false;
+        }
+
+        // Los clientes anteriores reciben el texto formateado por el servidor.
+        ChatFrame encoded = frame;
+
+        if (frame.getMessage().getTime() != 0 && !isRenderSupported()) {
+            encoded = frame.getFormatted();
+        }
+
+        ChatCodec codec = this.codec;
+        byte[] bytes;
+        int raw;
+
+        try {
+            bytes = encoded.getBytes(codec);
+            raw = (codec.getBase() == codec) ? bytes.length : encoded.getBytes(codec.getBase()).length;
+        } catch (IOException e) {
+            return false;
+        }
+
+        if (!outbox.offer(bytes, encoded.isAttachment(), encoded.isRequired())) {
+            // La cola esta llena y la politica es desconectar al cliente.
+            if (!isClosed()) {
+                server.overflow(this);
+                abort();
             }
+            return false;
         }
+
+        traffic.sent(raw, bytes.length);
+        frame.sent(bytes.length);
+        requestFlush();
+
+        return true;
+    }
+
+    /**
+     * Cierra el cliente despues de enviar las tramas pendientes.
+     */
+    public abstract void close();
+
+    /**
+     * Cierra el cliente de inmediato, descartando las tramas pendientes.
+     */
+    public abstract void abort();
+
+    /**
+     * Cierra el cliente porque se perdio su conexion, y le avisa al servidor
+     * para que libere su nombre de usuario.
+     */
+    protected void disconnected() {
+        abort();
+        server.disconnect(this);
+    }
+
+    /**
+     * Cierra el cliente porque uno de sus mensajes provoco un error, y le
+     * avisa al servidor para que libere su nombre de usuario.
+     * @param error El error ocurrido.
+     */
+    protected void failed(RuntimeException error) {
+        server.failure(this, error);
+        disconnected();
+    }
+
+    /**
+     * Verifica si el cliente esta cerrado.
+     * @return true si el cliente esta cerrado, false en caso contrario.
+     */
+    public abstract boolean isClosed();
+
+    /**
+     * Regresa los bytes enviados y recibidos por el cliente.
+     * @return El trafico del cliente.
+     */
+    public ChatTraffic getTraffic() {
+        return traffic;
+    }
+
+    /**
+     * Regresa la politica de escritura del cliente, con su tiempo de ida y
+     * vuelta y el promedio de tramas por escritura.
+     * @return La politica de escritura del cliente.
+     */
+    public ChatCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    /**
+     * Regresa el numero de tramas descartadas porque la cola estaba llena.
+     * @return El numero de tramas descartadas.
+     */
+    public long getDroppedFrames() {
+        return outbox.getDropped();
+    }
+
+    /**
+     * Avisa al escritor del cliente que hay tramas nuevas en la cola.
+     */
+    protected abstract void requestFlush();
+
+    /**
+     * Regresa el momento en que se acepto la conexion del cliente.
+     * @return El valor de System.nanoTime() al crear el cliente.
+     */
+    long getCreated() {
+        return created;
+    }
+
+    /**
+     * Verifica si el cliente ya completo su inicio de sesion.
+     * @return true si el cliente esta registrado en el servidor.
+     */
+    boolean isOnline() {
+        return online;
+    }
+
+    /**
+     * Marca al cliente como registrado en el servidor y cancela el plazo
+     * para iniciar sesion.
+     */
+    void setOnline() {
+        online = true;
+
+        Future<?> task = deadline;
+
+        if (task != null) {
+            task.cancel(false);
+            deadline = null;
+        }
+    }
+
+    /**
+     * Guarda la tarea que cierra al cliente si no inicia sesion a tiempo.
+     * @param deadline La tarea programada.
+     */
+    void setDeadline(Future<?> deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Regresa el codec con el que se leen y escriben las tramas del cliente.
+     * @return El codec del cliente.
+     */
+    public ChatCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Verifica si el cliente puede recibir archivos adjuntos por partes.
+     * @return true si el cliente lo indico al iniciar sesion.
+     */
+    public boolean isChunkSupported() {
+        return hasOption("attachment", "chunk");
     }
     
     /**
-     * Inicializa los flujos de E/S del cliente.
-     * @throws ChatException Si hubo algun error al inicializar los flujos.
+     * Verifica si el cliente puede continuar envios y descargas interrumpidos
+     * (mensajes ACK y FETCH).
+     * @return true si el cliente lo indico al iniciar sesion.
      */
-    public void init() throws ChatException {
-        try {
-            output = new ObjectOutputStream(client.getOutputStream());
-            input  = new ObjectInputStream(client.getInputStream()); 
-        } catch (IOException e) {
-            throw new ChatException("No se pudo inicializar el cliente.");
+    public boolean isResumeSupported() {
+        return isChunkSupported() && hasOption("attachment", "resume");
+    }
+    
+    /**
+     * Verifica si el cliente pide los archivos adjuntos solo cuando los
+     * necesita. A estos clientes se les envia unicamente el encabezado del
+     * archivo y las partes se envian cuando las solicitan con FETCH.
+     * @return true si el cliente lo indico al iniciar sesion.
+     */
+    public boolean isPullSupported() {
+        return isResumeSupported() && hasOption("attachment", "pull");
+    }
+    
+    /**
+     * Verifica si el cliente responde PING, con lo que el servidor mide el
+     * tiempo de ida y vuelta de la conexion.
+     * @return true si el cliente lo indico al iniciar sesion.
+     */
+    public boolean isPingSupported() {
+        return hasOption("heartbeat", "ping");
+    }
+    
+    /**
+     * Verifica si el cliente lleva su propia lista de usuarios conectados.
+     * A estos clientes se les envia la lista completa al iniciar sesion y
+     * despues solo los cambios (JOIN y LEAVE) en lugar de INFO.
+     * @return true si el cliente lo indico al iniciar sesion.
+     */
+    public boolean isPresenceSupported() {
+        return hasOption("presence", "delta");
+    }
+    
+    /**
+     * Verifica si el cliente da formato a los mensajes con la hora del
+     * servidor. A los demas clientes se les envian los mensajes formateados.
+     * @return true si el cliente lo indico al iniciar sesion.
+     */
+    public boolean isRenderSupported() {
+        return hasOption("render", "client");
+    }
+    
+    /**
+     * Envia un PING al cliente para medir el tiempo de ida y vuelta.
+     * La marca de tiempo es relativa a la conexion para que sea positiva.
+     */
+    void ping() {
+        if (!isOnline() || !isPingSupported()) {
+            return;
         }
+        
+        ChatMessage ping = new ChatMessage(ChatMessage.Type.PING);
+        ping.setOffset(System.nanoTime() - created + 1);
+        
+        send(ping);
     }
     
     /**
-     * Regresa el nombre de usuario del cliente.
-     * Este metodo debe de ser el primero en llamarse en el lado del servidor.
-     * @return El nombre de usuario del cliente.
+     * Verifica si el cliente indico un valor de una opcion al iniciar sesion.
+     * @param key El nombre de la opcion.
+     * @param value El valor buscado.
+     * @return true si el cliente soporta el valor.
      */
-    public String getUsername() {
-        if (username == null) {
-            try {
-                // Lee un mensaje.
-                ChatMessage chat = receive();
-                
-                // Verificar que sea valido el mensaje.
-                if (chat == null) return null;
-                
-                // Si el tipo del mensaje es de ingreso, entonces podemos
-                // obtener el nombre de usuario.
-                if (ChatMessage.Type.LOGIN == chat.getType()) {
-                    username = chat.getMessage();  
-                }           
-            } catch (Exception e) {
-                // Se regresara null si se llega aqui.
+    private boolean hasOption(String key, String value) {
+        if (options == null) {
+            return false;
+        }
+        
+        for (String supported : options.get(key)) {
+            if (value.equals(supported)) {
+                return true;
             }
         }
-        return username;
+        
+        return false;
     }
     
     /**
-     * Envia un mensaje al cliente.
-     * @param chat El mensaje que se enviara.
-     * @return true si el mensaje pudo ser enviado, false en caso contrario.
+     * Registra un archivo que el cliente comenzo a enviar.
+     * Solo debe llamarse desde las tareas de archivos del cliente.
+     * @param transfer La transferencia.
+     * @return true si se registro, false si el cliente ya envia demasiados archivos.
      */
-    public boolean send(ChatMessage chat) {
-        if (!client.isConnected()) {
+    boolean startTransfer(ChatTransfer transfer) {
+        if (transfers.size() >= MAX_TRANSFERS && !transfers.containsKey(transfer.getId())) {
             return false;
         }
         
-        // Envia el objeto al cliente.
-        try {
-            output.writeObject(chat);
-        } catch (IOException e) {
+        transfers.put(transfer.getId(), transfer);
+        
+        return true;
+    }
+    
+    /**
+     * Obtiene el nombre de usuario y las opciones de un mensaje de inicio de sesion.
+     * @param chat El primer mensaje recibido del cliente.
+     * @return true si el mensaje era de inicio de sesion, false en caso contrario.
+     */
+    protected boolean login(ChatMessage chat) {
+        if (chat == null || ChatMessage.Type.LOGIN != chat.getType()) {
             return false;
         }
+
+        // Los clientes que no negocian opciones envian su nombre como mensaje.
+        if (chat.getSender() == null) {
+            username = chat.getMessage();
+        } else {
+            username = chat.getSender();
+            options  = ChatOptions.parse(chat.getMessage());
+        }
+
+        return username != null;
+    }
+
+    /**
+     * Confirma el inicio de sesion al cliente con las opciones elegidas por
+     * el servidor. A partir de este punto las tramas usan el codec acordado.
+     * @return true si se pudo enviar la confirmacion, false en caso contrario.
+     */
+    boolean accept() {
+        // El cliente no negocia opciones; seguimos con el codec inicial.
+        if (options == null) {
+            return true;
+        }
+
+        ChatCodec chosen = ChatCodec.negotiate(options.get("codec"));
+        ChatCompression compression = ChatCompression.negotiate(options.get("compression"), server.getCompressions());
+
+        ChatOptions accepted = new ChatOptions();
+        accepted.put("codec", chosen.getName());
         
+        // Los clientes anteriores no ofrecen compresion.
+        if (options.get("compression").length > 0) {
+            accepted.put("compression", compression.getName());
+        }
+        
+        if (isPullSupported()) {
+            accepted.put("attachment", "chunk", "resume", "pull");
+        } else if (isResumeSupported()) {
+            accepted.put("attachment", "chunk", "resume");
+        } else if (isChunkSupported()) {
+            accepted.put("attachment", "chunk");
+        }
+        
+        if (isPingSupported()) {
+            accepted.put("heartbeat", "ping");
+        }
+        
+        if (isPresenceSupported()) {
+            accepted.put("presence", "delta");
+        }
+        
+        if (isRenderSupported()) {
+            accepted.put("render", "client");
+        }
+
+        if (!send(new ChatMessage(ChatMessage.Type.LOGIN, null, null, accepted.toString()))) {
+            return false;
+        }
+
+        codec = server.getCodec(chosen, compression);
+
         return true;
     }
-    
+
     /**
-     * Lee un mensaje del cliente.
-     * @return El mensaje leido del cliente o null si no se pudo leer un mensaje.
+     * Procesa un mensaje recibido del cliente.
+     * @param chat El mensaje recibido.
      */
-    private ChatMessage receive() {
-        try {
-            return (ChatMessage) input.readObject();
-        } catch (Exception e) {
-            return null;
+    protected void dispatch(final ChatMessage chat) {
+        // Una trama sin tipo no es un mensaje valido.
+        if (chat.getType() == null) {
+            disconnected();
+            return;
+        }
+
+        // Los archivos adjuntos se leen y escriben en disco fuera del hilo
+        // de red; mientras haya tareas pendientes, los demas mensajes se
+        // encolan detras de ellas para conservar el orden.
+        if (ChatMessage.Type.PONG != chat.getType() && (isFileWork(chat) || files.size() > 0)) {
+            files.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handle(chat);
+                    } catch (RuntimeException e) {
+                        fileFailed(chat, e);
+                    }
+                }
+            });
+        } else {
+            handle(chat);
         }
     }
-    
+
     /**
-     * Cierra el cliente y sus flujos de entrada y salida.
+     * Verifica si atender un mensaje puede leer o escribir en disco.
      */
-    public void close() {
-        try {
-            client.close();
-        } catch (IOException e) {}
+    private static boolean isFileWork(ChatMessage chat) {
+        switch (chat.getType()) {
+            case AUDIO:
+            case IMAGE:
+                return chat.getAttachment() != null;
+            case CHUNK:
+            case FETCH:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Atiende un mensaje recibido.
+     * @param chat El mensaje.
+     */
+    private void handle(ChatMessage chat) {
+        // Verificamos el tipo de mensaje recibido.
+        switch (chat.getType()) {
+            case MESSAGE:
+            case AUDIO:
+            case IMAGE:
+                server.send(chat);
+                break;
+            case CHUNK:
+                sendChunk(chat);
+                break;
+            case FETCH:
+                server.fetch(this, chat);
+                break;
+            case LOGOUT:
+                server.sendLogout(chat);
+                break;
+            case CONNECTED_USERS:
+                server.sendConnectedUsers(chat);
+                break;
+            case PONG:
+                if (chat.getOffset() > 0) {
+                    coalescer.setRoundTrip(System.nanoTime() - created + 1 - chat.getOffset());
+                }
+                break;
+        }
+    }
+
+    /**
+     * Atiende el error de una tarea de archivos: el servidor lo registra y
+     * cancela la transferencia afectada. Un error en otro mensaje encolado
+     * detras de los archivos cierra al cliente.
+     * @param chat El mensaje que provoco el error.
+     * @param error El error ocurrido.
+     */
+    private void fileFailed(ChatMessage chat, RuntimeException error) {
+        if (!isFileWork(chat)) {
+            failed(error);
+            return;
+        }
+
+        transfers.remove(chat.getAttachment());
+        server.abortTransfer(this, chat, error);
+    }
+
+    /**
+     * Guarda una parte de un archivo y la reenvia a los receptores de su
+     * transferencia.
+     * @param chunk La parte recibida.
+     */
+    private void sendChunk(ChatMessage chunk) {
+        ChatTransfer transfer = transfers.get(chunk.getAttachment());
+        
+        if (transfer == null) return;
+        
+        // Los receptores identifican la transferencia por el emisor.
+        chunk.setSender(username);
+        chunk.setReceiver(null);
+        
+        server.sendChunk(this, transfer, chunk);
+        
+        if (transfer.isComplete()) {
+            transfers.remove(transfer.getId());
+        }
     }
     
     @Override
     public String toString() {
         return username;
     }
-    
+
 }
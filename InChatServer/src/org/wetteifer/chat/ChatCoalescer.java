@@ -0,0 +1,119 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+/**
+ * Decide cuanto tiempo espera el escritor de un cliente para juntar varias
+ * tramas en una sola escritura. Un cliente sin trafico reciente recibe sus
+ * tramas de inmediato; durante una rafaga, el escritor espera a lo mas el
+ * retraso configurado, menos si la cola ya tiene varias tramas o si el
+ * tiempo de ida y vuelta de la conexion es corto.
+ *
+ * @author wetteifer
+ */
+public class ChatCoalescer {
+
+    private final long maxDelay;
+    private final int maxFrames;
+    private final int maxBytes;
+    private volatile long rtt;
+    private volatile long writes;
+    private volatile long frames;
+    private long lastWrite;
+
+    /**
+     * Crea la politica de escritura de un cliente.
+     * @param maxDelay El retraso maximo que se agrega a una trama, en
+     *                 nanosegundos; 0 para no esperar nunca.
+     * @param maxFrames El numero maximo de tramas por escritura.
+     * @param maxBytes El numero maximo de bytes por escritura.
+     */
+    public ChatCoalescer(long maxDelay, int maxFrames, int maxBytes) {
+        this.maxDelay = maxDelay;
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+        this.lastWrite = System.nanoTime() - maxDelay - 1;
+    }
+
+    /**
+     * Regresa cuanto debe esperar el escritor antes de escribir.
+     * Solo debe llamarse desde el escritor del cliente.
+     * @param queued El numero de tramas pendientes.
+     * @return El tiempo de espera en nanosegundos, o 0 para escribir ya.
+     */
+    public long getDelay(int queued) {
+        if (maxDelay == 0 || queued >= maxFrames) {
+            return 0;
+        }
+
+        // Sin una rafaga en curso, la trama se escribe de inmediato.
+        if (System.nanoTime() - lastWrite > maxDelay) {
+            return 0;
+        }
+
+        // La espera debe ser pequeña comparada con el tiempo de ida y vuelta.
+        long delay = (rtt > 0) ? Math.min(maxDelay, rtt / 4) : maxDelay;
+
+        // Entre mas tramas haya en la cola, menos se espera.
+        return delay * (maxFrames - queued) / maxFrames;
+    }
+
+    /**
+     * Registra una escritura.
+     * Solo debe llamarse desde el escritor del cliente.
+     * @param count El numero de tramas escritas.
+     */
+    public void written(int count) {
+        lastWrite = System.nanoTime();
+        writes++;
+        frames += count;
+    }
+
+    /**
+     * Registra una medicion del tiempo de ida y vuelta de la conexion.
+     * @param nanos El tiempo en nanosegundos.
+     */
+    public void setRoundTrip(long nanos) {
+        long current = rtt;
+
+        // Promedio movil, como el que usa TCP.
+        rtt = (current == 0) ? nanos : current + (nanos - current) / 8;
+    }
+
+    /**
+     * Regresa el tiempo de ida y vuelta promedio de la conexion.
+     * @return El tiempo en nanosegundos, o 0 si aun no se mide.
+     */
+    public long getRoundTrip() {
+        return rtt;
+    }
+
+    /**
+     * Regresa el numero promedio de tramas por escritura.
+     * @return El promedio, o 0 si no se ha escrito nada.
+     */
+    public double getFramesPerWrite() {
+        long count = writes;
+        return (count == 0) ? 0 : (double) frames / count;
+    }
+
+    @Override
+    public String toString() {
+        long roundTrip = rtt;
+        long average = Math.round(getFramesPerWrite() * 10);
+
+        return (average / 10) + "." + (average % 10) + " tramas por escritura, ida y vuelta " +
+               ((roundTrip == 0) ? "sin medir" : (roundTrip / 1000000) + "." + (roundTrip / 100000 % 10) + " ms");
+    }
+
+    public int getMaxFrames() {
+        return maxFrames;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+}
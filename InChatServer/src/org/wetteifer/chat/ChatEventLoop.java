@@ -0,0 +1,231 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Ciclo de eventos que atiende a un grupo de clientes con un solo hilo
+ * mediante un selector. Tambien atiende las escrituras pospuestas de sus
+ * clientes; el selector solo espera en milisegundos, por lo que un plazo
+ * menor se redondea a un milisegundo cuando el ciclo no tiene otros eventos.
+ *
+ * @author wetteifer
+ */
+public class ChatEventLoop extends Thread {
+
+    private final Selector selector;
+    private final Queue<ChatChannelClient> registrations;
+    private final Queue<ChatChannelClient> flushes;
+    private final PriorityQueue<Delayed> delayed;
+    private volatile boolean closed;
+
+    /**
+     * Crea un nuevo ciclo de eventos.
+     * @param id El numero del ciclo de eventos.
+     * @throws IOException Si no se pudo abrir el selector.
+     */
+    public ChatEventLoop(int id) throws IOException {
+        super("ChatEventLoop-" + id);
+        this.selector = Selector.open();
+        this.registrations = new ConcurrentLinkedQueue<ChatChannelClient>();
+        this.flushes = new ConcurrentLinkedQueue<ChatChannelClient>();
+        this.delayed = new PriorityQueue<Delayed>();
+    }
+
+    /**
+     * Cola de eventos de los clientes.
+     */
+    @Override
+    public void run() {
+        while (!closed) {
+            try {
+                long timeout = getTimeout();
+
+                if (timeout < 0) {
+                    selector.selectNow();
+                } else if (timeout == 0) {
+                    selector.select();
+                } else {
+                    selector.select(timeout);
+                }
+            } catch (IOException e) {
+                break;
+            }
+
+            processRegistrations();
+            processDelayed();
+            processFlushes();
+
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+
+                if (!key.isValid()) continue;
+
+                ChatChannelClient client = (ChatChannelClient) key.attachment();
+
+                // Un error al atender a un cliente solo debe cerrar a ese
+                // cliente, no al ciclo que atiende a los demas.
+                try {
+                    if (key.isReadable()) {
+                        client.read();
+                    }
+
+                    if (key.isValid() && key.isWritable()) {
+                        client.flush();
+                    }
+                } catch (RuntimeException e) {
+                    client.failed(e);
+                }
+            }
+
+            // Escribimos lo que se haya encolado al procesar las lecturas.
+            processFlushes();
+        }
+
+        // Enviamos lo que sea posible antes de cerrar los canales.
+        processFlushes();
+
+        for (SelectionKey key : selector.keys()) {
+            ((ChatChannelClient) key.attachment()).abort();
+        }
+
+        try {
+            selector.close();
+        } catch (IOException e) {}
+    }
+
+    /**
+     * Asigna un nuevo cliente a este ciclo de eventos.
+     * @param client El cliente del canal aceptado.
+     */
+    public void register(ChatChannelClient client) {
+        registrations.add(client);
+        selector.wakeup();
+    }
+
+    /**
+     * Detiene el ciclo de eventos y cierra todos sus canales.
+     */
+    public void shutdown() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Programa la escritura de las tramas pendientes de un cliente.
+     * @param client El cliente con tramas pendientes.
+     */
+    void schedule(ChatChannelClient client) {
+        flushes.add(client);
+
+        // Si estamos dentro del ciclo, las escrituras se haran al terminar
+        // de procesar los eventos actuales.
+        if (Thread.currentThread() != this) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Programa la escritura pospuesta de un cliente.
+     * Solo debe llamarse desde el hilo del ciclo de eventos.
+     * @param client El cliente.
+     * @param deadline El momento de la escritura, segun System.nanoTime().
+     */
+    void delay(ChatChannelClient client, long deadline) {
+        delayed.add(new Delayed(client, deadline));
+    }
+
+    /**
+     * Calcula cuanto puede esperar el selector sin atrasar las escrituras
+     * pospuestas.
+     * @return El tiempo en milisegundos, 0 para esperar sin limite, o -1
+     *         si ya hay escrituras pendientes.
+     */
+    private long getTimeout() {
+        Delayed next = delayed.peek();
+
+        if (next == null) {
+            return 0;
+        }
+
+        long nanos = next.deadline - System.nanoTime();
+
+        // El plazo ya se cumplio; solo revisamos si hay eventos.
+        if (nanos <= 0) {
+            return -1;
+        }
+
+        return (nanos + 999999) / 1000000;
+    }
+
+    /**
+     * Escribe las tramas de los clientes cuyo plazo ya se cumplio.
+     */
+    private void processDelayed() {
+        long now = System.nanoTime();
+
+        while (!delayed.isEmpty() && now - delayed.peek().deadline >= 0) {
+            delayed.poll().client.flush();
+        }
+    }
+
+    /**
+     * Registra en el selector los canales recien aceptados.
+     */
+    private void processRegistrations() {
+        ChatChannelClient client;
+
+        while ((client = registrations.poll()) != null) {
+            try {
+                client.register(selector);
+            } catch (IOException e) {
+                client.abort();
+            }
+        }
+    }
+
+    /**
+     * Escribe las tramas pendientes de los clientes programados.
+     */
+    private void processFlushes() {
+        ChatChannelClient client;
+
+        while ((client = flushes.poll()) != null) {
+            client.flush();
+        }
+    }
+
+    /**
+     * Una escritura pospuesta.
+     */
+    private static final class Delayed implements Comparable<Delayed> {
+
+        final ChatChannelClient client;
+        final long deadline;
+
+        Delayed(ChatChannelClient client, long deadline) {
+            this.client = client;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            long difference = deadline - other.deadline;
+            return (difference < 0) ? -1 : (difference > 0) ? 1 : 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,346 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cola acotada de eventos del servidor para sus oyentes.
+ * Los hilos de red solo dejan el evento en un arreglo circular, sin
+ * candados; este hilo los entrega a los oyentes por lotes. Asi una consola
+ * o una ventana lenta no detienen el reenvio de mensajes.
+ * Cada oyente recibe solo los tipos de evento que indico.
+ * Con la politica BLOCK, quien publica con la cola llena espera en una
+ * condicion que este hilo señala al liberar lugar; el candado solo se usa
+ * cuando alguien espera.
+ *
+ * @author wetteifer
+ */
+public class ChatEventQueue extends Thread {
+
+    public enum Policy {
+
+        /**
+         * Descarta el evento nuevo. Los eventos descartados se cuentan y se
+         * avisan con un ERROR cuando vuelve a haber lugar.
+         */
+        DROP,
+
+        /**
+         * Detiene al hilo que publica hasta que haya lugar.
+         */
+        BLOCK
+
+    }
+
+    // Numero maximo de eventos que se sacan de la cola de una vez.
+    private static final int BATCH_SIZE = 256;
+
+    // Tiempo maximo que duerme el hilo sin eventos, por si se pierde un aviso.
+    private static final long IDLE_PARK = 100L * 1000 * 1000;
+
+    private static final Registration[] NONE = new Registration[0];
+
+    private final AtomicReferenceArray<ChatServerEvent> slots;
+    private final int mask;
+    private final Policy policy;
+    private final AtomicLong tail;
+    private final AtomicLong dropped;
+    private final ReentrantLock space;
+    private final Condition notFull;
+    private volatile int waiting;
+    private volatile long head;
+    private volatile long delivered;
+    private volatile boolean sleeping;
+    private volatile boolean closed;
+    private volatile Registration[] listeners;
+    private volatile int interest;
+
+    /**
+     * Crea la cola de eventos.
+     * @param capacity El numero maximo de eventos pendientes; se redondea a
+     *                 la siguiente potencia de dos.
+     * @param policy La politica a aplicar cuando la cola esta llena.
+     */
+    public ChatEventQueue(int capacity, Policy policy) {
+        super("ChatServerEvents");
+        setDaemon(true);
+
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+
+        this.slots = new AtomicReferenceArray<ChatServerEvent>(size);
+        this.mask = size - 1;
+        this.policy = policy;
+        this.tail = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.space = new ReentrantLock();
+        this.notFull = space.newCondition();
+        this.listeners = NONE;
+    }
+
+    /**
+     * Agrega un oyente.
+     * @param listener El oyente.
+     */
+    public synchronized void addListener(ChatServerEventListener listener) {
+        int kinds = 0;
+
+        for (ChatServerEvent.Kind kind : listener.getEvents()) {
+            kinds |= 1 << kind.ordinal();
+        }
+
+        Registration[] current = Arrays.copyOf(listeners, listeners.length + 1);
+        current[current.length - 1] = new Registration(listener, kinds);
+
+        listeners = current;
+        interest |= kinds;
+    }
+
+    /**
+     * Quita un oyente.
+     * @param listener El oyente.
+     */
+    public synchronized void removeListener(ChatServerEventListener listener) {
+        Registration[] current = new Registration[listeners.length];
+        int count = 0;
+        int kinds = 0;
+
+        for (Registration registration : listeners) {
+            if (registration.listener != listener) {
+                current[count++] = registration;
+                kinds |= registration.mask;
+            }
+        }
+
+        listeners = Arrays.copyOf(current, count);
+        interest = kinds;
+    }
+
+    /**
+     * Verifica si algun oyente quiere los eventos de un tipo. Sirve para no
+     * crear los eventos que nadie va a recibir.
+     * @param kind El tipo de evento.
+     * @return true si algun oyente lo quiere.
+     */
+    public boolean accepts(ChatServerEvent.Kind kind) {
+        return (interest & (1 << kind.ordinal())) != 0;
+    }
+
+    /**
+     * Publica un evento. Puede llamarse desde cualquier hilo.
+     * @param event El evento.
+     * @return true si el evento se encolo, false si se descarto.
+     */
+    public boolean publish(ChatServerEvent event) {
+        while (true) {
+            long position = tail.get();
+
+            if (position - head > mask) {
+                // El hilo de la cola no puede esperarse a si mismo.
+                if (Policy.DROP == policy || closed || Thread.currentThread() == this) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+
+                awaitSpace();
+                continue;
+            }
+
+            if (tail.compareAndSet(position, position + 1)) {
+                slots.set((int) position & mask, event);
+
+                if (sleeping) {
+                    LockSupport.unpark(this);
+                }
+
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Entrega los eventos pendientes y termina el hilo.
+     * Espera un momento a que se entreguen, salvo si lo llama el oyente.
+     */
+    public void shutdown() {
+        closed = true;
+        LockSupport.unpark(this);
+        signalSpace();
+
+        if (Thread.currentThread() != this) {
+            try {
+                join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Regresa el numero de eventos en la cola.
+     * @return Los eventos publicados que aun no se entregan.
+     */
+    public int size() {
+        return (int) (tail.get() - head);
+    }
+
+    /**
+     * Regresa el numero de eventos entregados a los oyentes.
+     * @return El numero de eventos.
+     */
+    public long getDelivered() {
+        return delivered;
+    }
+
+    /**
+     * Regresa el numero de eventos descartados por tener la cola llena.
+     * @return El numero de eventos.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void run() {
+        ChatServerEvent[] events = new ChatServerEvent[BATCH_SIZE];
+        long reported = 0;
+
+        while (true) {
+            long position = head;
+            int count = 0;
+
+            // Sacamos los eventos publicados, en orden, hasta el primero que
+            // aun se esta escribiendo.
+            while (count < BATCH_SIZE) {
+                int index = (int) position & mask;
+                ChatServerEvent event = slots.get(index);
+
+                if (event == null) break;
+
+                slots.lazySet(index, null);
+                events[count++] = event;
+                ++position;
+            }
+
+            // Liberamos el lugar antes de entregar el lote.
+            head = position;
+
+            if (count > 0 && waiting > 0) {
+                signalSpace();
+            }
+
+            if (count > 0) {
+                deliver(events, count);
+
+                long lost = dropped.get();
+
+                if (lost != reported) {
+                    deliver(ChatServerEvent.error("Se descartaron " + (lost - reported) + " eventos por tener la cola llena."));
+                    reported = lost;
+                }
+
+                continue;
+            }
+
+            if (closed && tail.get() == position) {
+                break;
+            }
+
+            sleeping = true;
+
+            if (slots.get((int) position & mask) == null && !closed) {
+                LockSupport.parkNanos(this, IDLE_PARK);
+            }
+
+            sleeping = false;
+        }
+    }
+
+    /**
+     * Espera a que este hilo libere lugar en la cola o a que se cierre.
+     */
+    private void awaitSpace() {
+        space.lock();
+
+        try {
+            // Primero nos anotamos y despues revisamos la cola; este hilo
+            // mueve head y despues revisa si alguien espera, asi que
+            // alguno de los dos ve el cambio del otro.
+            ++waiting;
+
+            while (tail.get() - head > mask && !closed) {
+                LockSupport.unpark(this);
+                notFull.awaitUninterruptibly();
+            }
+        } finally {
+            --waiting;
+            space.unlock();
+        }
+    }
+
+    /**
+     * Despierta a quienes esperan lugar en la cola.
+     */
+    private void signalSpace() {
+        space.lock();
+
+        try {
+            notFull.signalAll();
+        } finally {
+            space.unlock();
+        }
+    }
+
+    /**
+     * Entrega un lote de eventos a los oyentes.
+     */
+    private void deliver(ChatServerEvent[] events, int count) {
+        for (int i = 0; i < count; ++i) {
+            deliver(events[i]);
+            events[i] = null;
+        }
+
+        delivered += count;
+    }
+
+    /**
+     * Entrega un evento a los oyentes que lo quieren. Un error de un
+     * oyente no detiene la cola.
+     */
+    private void deliver(ChatServerEvent event) {
+        int bit = 1 << event.getKind().ordinal();
+
+        for (Registration registration : listeners) {
+            if ((registration.mask & bit) == 0) continue;
+
+            try {
+                registration.listener.onEvent(event);
+            } catch (RuntimeException e) {
+                // Ignoramos el error para seguir entregando los demas eventos.
+            }
+        }
+    }
+
+    /**
+     * Un oyente y los tipos de evento que quiere.
+     */
+    private static final class Registration {
+
+        final ChatServerEventListener listener;
+        final int mask;
+
+        Registration(ChatServerEventListener listener, int mask) {
+            this.listener = listener;
+            this.mask = mask;
+        }
+
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Un mensaje listo para enviarse a varios clientes.
+ * El mensaje se codifica una sola vez por codec y los mismos bytes se
+ * escriben a todos los receptores, en lugar de codificarlo por cada cliente.
+ * Lo mismo ocurre con la compresion: la trama se comprime una sola vez a
+ * partir de la trama sin comprimir.
+ * El mensaje no debe modificarse despues de crear la trama.
+ * Los mensajes con hora se envian sin formato; para los clientes que no
+ * les dan formato, la trama crea una sola vez otra trama con el texto ya
+ * formateado, y solo si alguno de esos clientes la necesita.
+ *
+ * @author wetteifer
+ */
+public final class ChatFrame {
+
+    private final ChatMessage chat;
+    private final AtomicReferenceArray<byte[]> encoded;
+    private volatile ChatFrame formatted;
+    private final boolean counted;
+    private int recipients;
+    private long sentBytes;
+
+    /**
+     * Crea una trama para un mensaje.
+     * @param chat El mensaje de la trama.
+     */
+    public ChatFrame(ChatMessage chat) {
+        this(chat, false);
+    }
+
+    /**
+     * Crea una trama para un mensaje.
+     * @param chat El mensaje de la trama.
+     * @param counted true si la trama lleva la cuenta de sus receptores.
+     *                Solo debe usarse en tramas que envia un solo hilo,
+     *                como las de un reenvio; las tramas compartidas entre
+     *                hilos no llevan cuentas.
+     */
+    public ChatFrame(ChatMessage chat, boolean counted) {
+        this.chat = chat;
+        this.encoded = new AtomicReferenceArray<byte[]>(ChatCodec.COUNT);
+        this.counted = counted;
+    }
+
+    /**
+     * Regresa el mensaje de la trama.
+     * @return El mensaje.
+     */
+    public ChatMessage getMessage() {
+        return chat;
+    }
+
+    /**
+     * Regresa la trama para los clientes que no dan formato a los mensajes.
+     * @return Una trama con el texto formateado y sin hora, o esta misma
+     *         trama si el mensaje no tiene hora.
+     */
+    public ChatFrame getFormatted() {
+        if (chat.getTime() == 0) {
+            return this;
+        }
+
+        ChatFrame frame = formatted;
+
+        // Si otro hilo la crea al mismo tiempo, ambas tramas son iguales.
+        if (frame == null) {
+            frame = new ChatFrame(new ChatMessage(chat.getType(), chat.getSender(), chat.getReceiver(), ChatFormat.formatMessage(chat)));
+            formatted = frame;
+        }
+
+        return frame;
+    }
+
+    /**
+     * Registra que la trama se encolo a un cliente, si la trama lleva
+     * cuentas. Las cuentas las lleva el unico hilo que envia la trama.
+     * @param bytes Los bytes encolados.
+     */
+    void sent(int bytes) {
+        if (!counted) return;
+
+        ++recipients;
+        sentBytes += bytes;
+    }
+
+    /**
+     * Regresa a cuantos clientes se encolo la trama.
+     * @return El numero de clientes, o 0 si la trama no lleva cuentas.
+     */
+    public int getRecipients() {
+        return recipients;
+    }
+
+    /**
+     * Regresa cuantos bytes se encolaron en total, con el codec de cada
+     * receptor.
+     * @return El numero de bytes, o 0 si la trama no lleva cuentas.
+     */
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    /**
+     * Verifica si la trama es un archivo adjunto.
+     * @return true si el mensaje es de audio, de imagen o una parte de un archivo.
+     */
+    public boolean isAttachment() {
+        ChatMessage.Type type = chat.getType();
+        return ChatMessage.Type.AUDIO == type ||
+               ChatMessage.Type.IMAGE == type ||
+               ChatMessage.Type.CHUNK == type;
+    }
+
+    /**
+     * Verifica si la trama no se puede descartar de la cola de salida: los
+     * cambios de la lista de usuarios, con los que el cliente arma la suya,
+     * y las tramas de control, como las confirmaciones que espera el emisor
+     * de un archivo o las que terminan la sesion.
+     * @return true si el mensaje es de la lista de usuarios o de control.
+     */
+    public boolean isRequired() {
+        switch (chat.getType()) {
+            case CONNECTED_USERS:
+            case JOIN:
+            case LEAVE:
+            case PRESENCE:
+            case LOGIN:
+            case LOGOUT:
+            case EXIT:
+            case SERVER_CLOSED:
+            case ACK:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Regresa los bytes de la trama con el codec indicado.
+     * El arreglo regresado es compartido y no debe modificarse.
+     * @param codec El codec del receptor.
+     * @return Los bytes de la trama, incluyendo el encabezado.
+     * @throws IOException Si el mensaje no se pudo codificar.
+     */
+    public byte[] getBytes(ChatCodec codec) throws IOException {
+        int id = codec.getId();
+        byte[] bytes = encoded.get(id);
+
+        if (bytes == null) {
+            ChatCodec base = codec.getBase();
+            bytes = (base == codec) ? codec.encode(chat) : codec.compress(getBytes(base));
+
+            // Si otro hilo lo codifico al mismo tiempo, usamos su resultado.
+            if (!encoded.compareAndSet(id, null, bytes)) {
+                bytes = encoded.get(id);
+            }
+        }
+
+        return bytes;
+    }
+
+}
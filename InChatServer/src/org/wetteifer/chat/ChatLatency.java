@@ -0,0 +1,141 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latencias en microsegundos. Cada potencia de dos se divide
+ * en 8 intervalos, por lo que los percentiles tienen un error menor al 13%.
+ * Registrar una muestra no usa candados.
+ *
+ * @author wetteifer
+ */
+public class ChatLatency {
+
+    // Numero de intervalos por cada potencia de dos (2 ^ SUB_BITS).
+    private static final int SUB_BITS = 3;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+    private final AtomicLongArray buckets;
+    private final AtomicLong count;
+    private final AtomicLong max;
+
+    /**
+     * Crea un histograma vacio.
+     */
+    public ChatLatency() {
+        this.buckets = new AtomicLongArray(BUCKETS);
+        this.count = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * Registra una muestra.
+     * @param nanos La latencia en nanosegundos.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+
+        buckets.incrementAndGet(index(micros));
+        count.incrementAndGet();
+
+        long current;
+
+        while (micros > (current = max.get())) {
+            if (max.compareAndSet(current, micros)) break;
+        }
+    }
+
+    /**
+     * Regresa el numero de muestras registradas.
+     * @return El numero de muestras.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Regresa la latencia maxima registrada.
+     * @return La latencia en microsegundos.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Regresa un percentil de las latencias registradas.
+     * @param percentile El percentil, entre 0 y 100.
+     * @return La latencia en microsegundos, o 0 si no hay muestras.
+     */
+    public long getPercentile(double percentile) {
+        long total = count.get();
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += buckets.get(i);
+
+            if (seen >= rank) {
+                return Math.min(upperBound(i), getMax());
+            }
+        }
+
+        return getMax();
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + getCount() +
+               ", p50=" + format(getPercentile(50)) +
+               ", p90=" + format(getPercentile(90)) +
+               ", p99=" + format(getPercentile(99)) +
+               ", p99.9=" + format(getPercentile(99.9)) +
+               ", max=" + format(getMax());
+    }
+
+    /**
+     * Regresa el intervalo al que pertenece una latencia.
+     */
+    private static int index(long micros) {
+        if (micros < SUB_COUNT) {
+            return (int) micros;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /**
+     * Regresa la mayor latencia que cae en un intervalo.
+     */
+    private static long upperBound(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+
+        int exponent = index / SUB_COUNT + SUB_BITS - 1;
+        long lower = (long) (SUB_COUNT + index % SUB_COUNT) << (exponent - SUB_BITS);
+
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * Da formato a una latencia en milisegundos.
+     */
+    private static String format(long micros) {
+        return (micros / 1000) + "." + (micros % 1000 / 100) + " ms";
+    }
+
+}
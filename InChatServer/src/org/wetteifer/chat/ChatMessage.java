@@ -18,7 +18,9 @@ public class ChatMessage implements Serializable {
         
         /**
          * Para el inicio de sesion.
-         * No necesita mensaje.
+         * El emisor es el nombre de usuario y el mensaje las opciones que
+         * soporta el cliente (por ejemplo: codec=binary,serial). El servidor
+         * responde con otro LOGIN cuyo mensaje son las opciones elegidas.
          */
         LOGIN,
         
@@ -43,25 +45,34 @@ public class ChatMessage implements Serializable {
         
         /**
          * Para solicitar al servidor una lista con los usuarios conectados.
-         * No necesita mensaje.
+         * No necesita mensaje. Para pedir solo una pagina, el mensaje es un
+         * prefijo opcional, el receptor el ultimo nombre de la pagina
+         * anterior y el tamaño el numero maximo de nombres. La respuesta
+         * tiene los nombres separados por comas, y posicion 1 si hay mas.
          */
         CONNECTED_USERS,
         
         /**
          * Para un mensaje enviado de un cliente a hacia uno o todos los clientes.
-         * Mensaje requerido.
+         * Mensaje requerido. El servidor le agrega la hora en que lo recibio
+         * y lo reenvia sin formato a los clientes que lo indicaron al iniciar
+         * sesion; los demas lo reciben ya formateado y sin hora.
          */
         MESSAGE,
         
         /**
          * Para un mensaje de audio.
          * Mensaje requerido. Debe de ser la ruta del audio.
+         * En una transferencia por partes, el mensaje es el nombre del archivo
+         * y se indican el identificador de la transferencia y su tamaño; el
+         * contenido llega despues en mensajes CHUNK.
          */
         AUDIO,
         
         /**
          * Para un mensaje con imagen.
          * Mensaje requerido. Debe de ser la ruta de la imagen.
+         * Las transferencias por partes funcionan igual que en AUDIO.
          */
         IMAGE,
         
@@ -69,7 +80,62 @@ public class ChatMessage implements Serializable {
          * Para el cierre de sesion.
          * No necesita mensaje.
          */
-        LOGOUT
+        LOGOUT,
+        
+        /**
+         * Para una parte del contenido de un archivo adjunto.
+         * No necesita mensaje. Requiere el identificador de la transferencia,
+         * la posicion de la parte dentro del archivo y sus bytes.
+         */
+        CHUNK,
+        
+        /**
+         * Para confirmar cuantos bytes de un archivo adjunto tiene el servidor.
+         * El emisor es el dueño del archivo, y la posicion es la cantidad de
+         * bytes guardados (o -1 si el archivo ya no existe). Si el receptor
+         * es nulo, confirma un envio; en otro caso, indica al receptor hasta
+         * donde llego la descarga que solicito con FETCH.
+         */
+        ACK,
+        
+        /**
+         * Para solicitar al servidor las partes de un archivo adjunto a partir
+         * de una posicion. El receptor es el dueño del archivo.
+         */
+        FETCH,
+        
+        /**
+         * Para medir el tiempo de ida y vuelta de la conexion. El servidor
+         * lo envia con una marca de tiempo en la posicion, solo a los
+         * clientes que lo indicaron al iniciar sesion.
+         */
+        PING,
+        
+        /**
+         * Para responder a PING. La posicion es la misma que la de PING.
+         */
+        PONG,
+        
+        /**
+         * Para avisar que un usuario inicio sesion, en lugar de INFO, a los
+         * clientes que llevan su propia lista de usuarios conectados.
+         * El emisor es el usuario y el mensaje el aviso para mostrar.
+         */
+        JOIN,
+        
+        /**
+         * Para avisar que un usuario cerro sesion o perdio la conexion.
+         * Funciona igual que JOIN.
+         */
+        LEAVE,
+        
+        /**
+         * Para avisar de varios inicios y cierres de sesion juntos, cuando
+         * hubo demasiados en poco tiempo. El mensaje es el aviso para
+         * mostrar, y los datos son los nombres en UTF-8, uno por linea, con
+         * + si el usuario entro y - si salio.
+         */
+        PRESENCE
         
     }
     
@@ -77,6 +143,12 @@ public class ChatMessage implements Serializable {
     private String sender;
     private String receiver;
     private String message;
+    private String attachment;
+    private String hash;
+    private long size;
+    private long offset;
+    private long time;
+    private byte[] data;
     
     /**
      * Contructor para enviar un mensaje privado a un usuario.
@@ -151,6 +223,79 @@ public class ChatMessage implements Serializable {
         this.message = message;
     }
     
+    /**
+     * Regresa el identificador de la transferencia de un archivo adjunto.
+     * @return El identificador, o null si el mensaje no es parte de una transferencia.
+     */
+    public String getAttachment() {
+        return attachment;
+    }
+    
+    public void setAttachment(String attachment) {
+        this.attachment = attachment;
+    }
+    
+    /**
+     * Regresa el resumen SHA-256 del contenido del archivo adjunto.
+     * @return El resumen en hexadecimal, o null si no se conoce.
+     */
+    public String getHash() {
+        return hash;
+    }
+    
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+    
+    /**
+     * Regresa el tamaño total en bytes del archivo adjunto.
+     * @return El tamaño del archivo.
+     */
+    public long getSize() {
+        return size;
+    }
+    
+    public void setSize(long size) {
+        this.size = size;
+    }
+    
+    /**
+     * Regresa la posicion de los bytes de esta parte dentro del archivo.
+     * @return La posicion de la parte.
+     */
+    public long getOffset() {
+        return offset;
+    }
+    
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+    
+    /**
+     * Regresa los bytes de esta parte del archivo.
+     * @return Los bytes, o null si el mensaje no los tiene.
+     */
+    public byte[] getData() {
+        return data;
+    }
+    
+    public void setData(byte[] data) {
+        this.data = data;
+    }
+    
+    /**
+     * Regresa la hora en que el servidor recibio el mensaje.
+     * @return Los milisegundos desde 1970, o 0 si el mensaje no tiene hora
+     *         (por ejemplo, si el servidor ya le dio formato al texto).
+     */
+    public long getTime() {
+        return time;
+    }
+    
+    public void setTime(long time) {
+        this.time = time;
+    }
+    
     public boolean isPrivateMessage() {
         return receiver != null;
     }
@@ -0,0 +1,100 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Opciones que se acuerdan entre el cliente y el servidor al iniciar sesion.
+ * Se escriben como texto con el formato "clave=valor1,valor2;clave=valor".
+ *
+ * @author wetteifer
+ */
+public class ChatOptions {
+
+    private static final String[] EMPTY = new String[0];
+
+    private final Map<String, String[]> options;
+
+    /**
+     * Crea un conjunto de opciones vacio.
+     */
+    public ChatOptions() {
+        options = new LinkedHashMap<String, String[]>();
+    }
+
+    /**
+     * Lee las opciones de un texto.
+     * @param text El texto con las opciones (puede ser nulo).
+     * @return Las opciones leidas.
+     */
+    public static ChatOptions parse(String text) {
+        ChatOptions result = new ChatOptions();
+
+        if (text == null) {
+            return result;
+        }
+
+        for (String option : text.split(";")) {
+            int separator = option.indexOf('=');
+
+            if (separator <= 0) continue;
+
+            String key = option.substring(0, separator).trim();
+            String[] values = option.substring(separator + 1).split(",");
+
+            for (int i = 0; i < values.length; ++i) {
+                values[i] = values[i].trim();
+            }
+
+            result.options.put(key, values);
+        }
+
+        return result;
+    }
+
+    /**
+     * Regresa los valores de una opcion.
+     * @param key El nombre de la opcion.
+     * @return Los valores de la opcion, o un arreglo vacio si no existe.
+     */
+    public String[] get(String key) {
+        String[] values = options.get(key);
+        return values != null ? values : EMPTY;
+    }
+
+    /**
+     * Establece los valores de una opcion.
+     * @param key El nombre de la opcion.
+     * @param values Los valores de la opcion.
+     */
+    public void put(String key, String... values) {
+        options.put(key, values);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+
+        for (Map.Entry<String, String[]> entry : options.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(';');
+            }
+
+            builder.append(entry.getKey()).append('=');
+
+            String[] values = entry.getValue();
+
+            for (int i = 0; i < values.length; ++i) {
+                if (i > 0) builder.append(',');
+                builder.append(values[i]);
+            }
+        }
+
+        return builder.toString();
+    }
+
+}
@@ -0,0 +1,350 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cola acotada de tramas pendientes de enviar a un cliente.
+ * Quien envia un mensaje solo encola la trama; el escritor del cliente la
+ * saca de la cola y la escribe en el socket. Asi un cliente lento no
+ * detiene a los demas.
+ * Las politicas que descartan tramas nunca descartan las tramas requeridas:
+ * los cambios de la lista de usuarios, porque el cliente arma su lista con
+ * ellos, y las de control (confirmaciones y fin de sesion). Si la cola se
+ * llena solo con tramas requeridas, el cliente se desconecta.
+ *
+ * @author wetteifer
+ */
+public class ChatOutbox {
+
+    public enum Policy {
+
+        /**
+         * Descarta las tramas mas antiguas hasta que la nueva quepa, salvo
+         * las requeridas.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Descarta primero los archivos adjuntos (de los mas antiguos a los
+         * mas nuevos) y despues las tramas mas antiguas.
+         */
+        DROP_ATTACHMENTS,
+
+        /**
+         * Desconecta al cliente.
+         */
+        DISCONNECT
+
+    }
+
+    private final int capacity;
+    private final long maxBytes;
+    private final Policy policy;
+    private final ArrayDeque<Entry> entries;
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+    private long bytes;
+    private long dropped;
+    private int awaited;
+    private boolean closed;
+
+    /**
+     * Crea una cola de salida.
+     * @param capacity El numero maximo de tramas en la cola.
+     * @param maxBytes El numero maximo de bytes en la cola.
+     * @param policy La politica a aplicar cuando la cola esta llena.
+     */
+    public ChatOutbox(int capacity, long maxBytes, Policy policy) {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.entries = new ArrayDeque<Entry>();
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+        this.awaited = 1;
+    }
+
+    /**
+     * Agrega una trama al final de la cola.
+     * @param frame Los bytes de la trama.
+     * @param attachment true si la trama es un archivo adjunto.
+     * @param required true si la trama nunca se debe descartar.
+     * @return false si la cola esta llena y el cliente debe desconectarse,
+     *         true en caso contrario (aunque la trama se haya descartado).
+     */
+    public boolean offer(byte[] frame, boolean attachment, boolean required) {
+        lock.lock();
+
+        try {
+            if (closed) {
+                return false;
+            }
+
+            if (!fits(frame.length)) {
+                switch (policy) {
+                    case DISCONNECT:
+                        return false;
+                    case DROP_ATTACHMENTS:
+                        dropAttachments(frame.length);
+
+                        // Si aun no cabe, preferimos descartar el nuevo adjunto.
+                        if (attachment && !fits(frame.length)) {
+                            ++dropped;
+                            return true;
+                        }
+                        break;
+                }
+
+                dropOldest(frame.length);
+
+                // Solo quedan tramas requeridas. Una trama normal se
+                // descarta; una requerida se encola de todos modos, hasta
+                // el doble de la capacidad.
+                if (!fits(frame.length)) {
+                    if (!required) {
+                        ++dropped;
+                        return true;
+                    }
+
+                    if (entries.size() >= 2 * capacity) {
+                        return false;
+                    }
+                }
+            }
+
+            entries.addLast(new Entry(frame, attachment, required));
+            bytes += frame.length;
+
+            // Solo despertamos al escritor cuando ya tiene lo que espera.
+            if (entries.size() >= awaited) {
+                notEmpty.signal();
+            }
+
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Saca la primera trama de la cola sin esperar.
+     * @return La trama, o null si la cola esta vacia.
+     */
+    public byte[] poll() {
+        lock.lock();
+
+        try {
+            return remove();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Saca varias tramas de la cola sin esperar, para escribirlas juntas.
+     * @param frames La lista donde se agregan las tramas.
+     * @param maxFrames El numero maximo de tramas a sacar.
+     * @param maxBytes El numero maximo de bytes a sacar; la primera trama
+     *                 se saca aunque sea mas grande.
+     * @return El numero de tramas agregadas a la lista.
+     */
+    public int drainTo(List<byte[]> frames, int maxFrames, long maxBytes) {
+        lock.lock();
+
+        try {
+            int count = 0;
+            long total = 0;
+
+            while (count < maxFrames) {
+                Entry entry = entries.peekFirst();
+
+                if (entry == null || (count > 0 && total + entry.frame.length > maxBytes)) {
+                    break;
+                }
+
+                frames.add(remove());
+                total += entry.frame.length;
+                ++count;
+            }
+
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Espera a que la cola tenga varias tramas, para escribirlas juntas.
+     * Solo el escritor del cliente debe esperar en la cola.
+     * @param frames El numero de tramas esperado.
+     * @param nanos El tiempo maximo de espera en nanosegundos.
+     * @throws InterruptedException Si el hilo fue interrumpido.
+     */
+    public void await(int frames, long nanos) throws InterruptedException {
+        lock.lock();
+
+        try {
+            awaited = frames;
+
+            while (entries.size() < frames && !closed && nanos > 0) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+        } finally {
+            awaited = 1;
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cierra la cola. Las tramas pendientes aun se pueden sacar, pero ya no
+     * se aceptan tramas nuevas.
+     */
+    public void close() {
+        lock.lock();
+
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Descarta todas las tramas pendientes y cierra la cola.
+     */
+    public void clear() {
+        lock.lock();
+
+        try {
+            entries.clear();
+            bytes = 0;
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Verifica si la cola esta cerrada y ya no tiene tramas pendientes.
+     * @return true si ya no hay nada que escribir.
+     */
+    public boolean isDone() {
+        lock.lock();
+
+        try {
+            return closed && entries.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Regresa el numero de tramas pendientes.
+     * @return El numero de tramas en la cola.
+     */
+    public int size() {
+        lock.lock();
+
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Regresa el numero de tramas descartadas por falta de espacio.
+     * @return El numero de tramas descartadas.
+     */
+    public long getDropped() {
+        lock.lock();
+
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Verifica si una trama del tamaño indicado cabe en la cola.
+     */
+    private boolean fits(int length) {
+        return entries.size() < capacity && (entries.isEmpty() || bytes + length <= maxBytes);
+    }
+
+    /**
+     * Descarta los archivos adjuntos pendientes, del mas antiguo al mas
+     * nuevo, hasta que quepa una trama del tamaño indicado.
+     */
+    private void dropAttachments(int length) {
+        for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext() && !fits(length);) {
+            Entry entry = iterator.next();
+
+            if (entry.attachment) {
+                iterator.remove();
+                bytes -= entry.frame.length;
+                ++dropped;
+            }
+        }
+    }
+
+    /**
+     * Descarta las tramas mas antiguas, salvo las requeridas, hasta que
+     * quepa una del tamaño indicado.
+     */
+    private void dropOldest(int length) {
+        for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext() && !fits(length);) {
+            Entry entry = iterator.next();
+
+            if (!entry.required) {
+                iterator.remove();
+                bytes -= entry.frame.length;
+                ++dropped;
+            }
+        }
+    }
+
+    /**
+     * Saca la primera trama de la cola. Se debe tener el candado.
+     */
+    private byte[] remove() {
+        Entry entry = entries.pollFirst();
+
+        if (entry == null) {
+            return null;
+        }
+
+        bytes -= entry.frame.length;
+
+        return entry.frame;
+    }
+
+    /**
+     * Una trama encolada.
+     */
+    private static final class Entry {
+
+        final byte[] frame;
+        final boolean attachment;
+        final boolean required;
+
+        Entry(byte[] frame, boolean attachment, boolean required) {
+            this.frame = frame;
+            this.attachment = attachment;
+            this.required = required;
+        }
+
+    }
+
+}
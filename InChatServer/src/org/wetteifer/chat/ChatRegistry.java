@@ -0,0 +1,166 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Registro de los clientes conectados al servidor.
+ * Las busquedas por nombre de usuario no usan candados, y quien envia un
+ * mensaje a todos los clientes recorre una copia inmutable del registro.
+ * La copia solo se reconstruye cuando un cliente entra o sale.
+ * Los nombres de usuario tambien se guardan en orden alfabetico, para leer
+ * la lista de usuarios por paginas o por prefijo sin copiarla ni ordenarla.
+ *
+ * @author wetteifer
+ */
+public class ChatRegistry {
+
+    private static final ChatClient[] EMPTY = new ChatClient[0];
+
+    private final ConcurrentMap<String, ChatClient> clients;
+    private final NavigableSet<String> usernames;
+    private final AtomicInteger version;
+    private volatile Snapshot snapshot;
+
+    /**
+     * Crea un registro vacio.
+     */
+    public ChatRegistry() {
+        this.clients  = new ConcurrentHashMap<String, ChatClient>();
+        this.usernames = new ConcurrentSkipListSet<String>();
+        this.version  = new AtomicInteger();
+        this.snapshot = new Snapshot(0, EMPTY);
+    }
+
+    /**
+     * Agrega un cliente si su nombre de usuario no esta ocupado.
+     * @param client El cliente a agregar.
+     * @return true si el cliente fue agregado, false si el nombre ya existe.
+     */
+    public boolean add(ChatClient client) {
+        // Los cambios se hacen con el candado para que el indice de nombres
+        // no se desordene si un nombre se libera y se ocupa al mismo tiempo.
+        synchronized (usernames) {
+            if (clients.putIfAbsent(client.getUsername(), client) != null) {
+                return false;
+            }
+
+            usernames.add(client.getUsername());
+        }
+
+        version.incrementAndGet();
+
+        return true;
+    }
+
+    /**
+     * Elimina a un cliente del registro. Si otro cliente ocupa ahora el
+     * mismo nombre de usuario, el registro no cambia.
+     * @param client El cliente a eliminar.
+     * @return true si el cliente fue eliminado, false en caso contrario.
+     */
+    public boolean remove(ChatClient client) {
+        synchronized (usernames) {
+            if (!clients.remove(client.getUsername(), client)) {
+                return false;
+            }
+
+            usernames.remove(client.getUsername());
+        }
+
+        version.incrementAndGet();
+
+        return true;
+    }
+
+    /**
+     * Busca a un cliente por su nombre de usuario.
+     * @param username El nombre de usuario.
+     * @return El cliente, o null si no esta conectado.
+     */
+    public ChatClient get(String username) {
+        return username == null ? null : clients.get(username);
+    }
+
+    /**
+     * Regresa el numero de clientes conectados.
+     * @return El numero de clientes.
+     */
+    public int size() {
+        return clients.size();
+    }
+
+    /**
+     * Recorre los nombres de usuario en orden alfabetico a partir de una
+     * posicion. Encontrar el primer nombre toma O(log n) y el recorrido no
+     * copia la lista.
+     * Los nombres que empiezan con un prefijo estan juntos: basta empezar en
+     * el prefijo y terminar en el primer nombre que ya no lo tiene.
+     * @param from El primer nombre posible, o null para empezar desde el
+     *             principio.
+     * @param inclusive true si el recorrido incluye a from.
+     * @return Los nombres, en orden alfabetico.
+     */
+    public Iterator<String> usernames(String from, boolean inclusive) {
+        NavigableSet<String> range = (from == null) ? usernames : usernames.tailSet(from, inclusive);
+
+        return range.iterator();
+    }
+
+    /**
+     * Regresa una copia de los clientes conectados. El arreglo no debe
+     * modificarse, ya que se comparte entre todos los que lo solicitan.
+     * @return Los clientes conectados.
+     */
+    public ChatClient[] snapshot() {
+        int current = version.get();
+        Snapshot cached = snapshot;
+
+        if (cached.version == current) {
+            return cached.clients;
+        }
+
+        // El registro cambio; reconstruimos la copia. Si otro hilo lo
+        // modifica mientras tanto, la siguiente llamada la reconstruira.
+        ChatClient[] copy = clients.values().toArray(EMPTY);
+        snapshot = new Snapshot(current, copy);
+
+        return copy;
+    }
+
+    /**
+     * Elimina a todos los clientes del registro.
+     */
+    public void clear() {
+        synchronized (usernames) {
+            clients.clear();
+            usernames.clear();
+        }
+
+        version.incrementAndGet();
+    }
+
+    /**
+     * Una copia de los clientes junto con la version del registro que representa.
+     */
+    private static final class Snapshot {
+
+        final int version;
+        final ChatClient[] clients;
+
+        Snapshot(int version, ChatClient[] clients) {
+            this.version = version;
+            this.clients = clients;
+        }
+
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ejecuta las tareas de un cliente en el orden en que llegan, una a la vez,
+ * sobre un grupo de hilos compartido. Asi las partes de un archivo se
+ * guardan en orden aunque el grupo tenga varios hilos, y las tareas de
+ * distintos clientes se ejecutan al mismo tiempo.
+ *
+ * @author wetteifer
+ */
+class ChatSerialExecutor implements Executor {
+
+    private final Executor executor;
+    private final Queue<Runnable> tasks;
+    private final AtomicBoolean running;
+    private final AtomicInteger pending;
+
+    /**
+     * Crea el ejecutor.
+     * @param executor El grupo de hilos compartido.
+     */
+    ChatSerialExecutor(Executor executor) {
+        this.executor = executor;
+        this.tasks = new ConcurrentLinkedQueue<Runnable>();
+        this.running = new AtomicBoolean();
+        this.pending = new AtomicInteger();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        pending.incrementAndGet();
+        tasks.offer(task);
+        schedule();
+    }
+
+    /**
+     * Regresa el numero de tareas que aun no terminan, incluida la que se
+     * esta ejecutando.
+     * @return El numero de tareas.
+     */
+    int size() {
+        return pending.get();
+    }
+
+    /**
+     * Pide un hilo para ejecutar las tareas pendientes, si no hay uno ya.
+     */
+    private void schedule() {
+        if (tasks.isEmpty() || !running.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // El servidor se esta cerrando; las tareas se descartan.
+            while (tasks.poll() != null) {
+                pending.decrementAndGet();
+            }
+
+            running.set(false);
+        }
+    }
+
+    /**
+     * Ejecuta las tareas pendientes. Las tareas deben atender sus propios
+     * errores; si una falla, el error llega al grupo de hilos y las
+     * siguientes se ejecutan en otro hilo.
+     */
+    private void drain() {
+        try {
+            Runnable task;
+
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } finally {
+                    pending.decrementAndGet();
+                }
+            }
+        } finally {
+            running.set(false);
+
+            // Una tarea pudo llegar despues de vaciar la cola, o quedar
+            // pendiente porque la anterior fallo.
+            schedule();
+        }
+    }
+
+}
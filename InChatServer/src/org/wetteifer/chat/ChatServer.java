@@ -5,14 +5,34 @@
 package org.wetteifer.chat;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.text.SimpleDateFormat;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.EnumSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *
@@ -20,83 +40,563 @@ import java.util.Map;
  */
 public class ChatServer extends Thread {
     
-    private static final SimpleDateFormat TIME_FORMAT = new SimpleDateFormat("HH:mm:ss");
-    private static final String MESSAGE_PADDING = "    ";
     private static final String SERVER_USERNAME = "Servidor InChat";
-    private static final int SERVER_PORT = 8080;
     
-    private final ServerSocket server;
-    private final Map<String, ChatClient> clients;
+    // Tamaño de las partes que se leen de la carpeta de transferencias, y
+    // cantidad de bytes que se envian por cada solicitud FETCH.
+    private static final int FETCH_CHUNK_SIZE = 64 * 1024;
+    private static final long FETCH_WINDOW = 1024 * 1024;
     
-    private ChatServerListener callback;
+    // Mensajes constantes del servidor, codificados una sola vez.
+    private static final ChatFrame EXIT = new ChatFrame(new ChatMessage(ChatMessage.Type.EXIT));
+    private static final ChatFrame LOGOUT = new ChatFrame(new ChatMessage(ChatMessage.Type.LOGOUT));
+    private static final ChatFrame SERVER_CLOSED = new ChatFrame(new ChatMessage(ChatMessage.Type.SERVER_CLOSED));
+    private static final ChatFrame AUDIO_SENT = new ChatFrame(new ChatMessage(ChatMessage.Type.MESSAGE, "Haz enviado un mensaje de audio."));
+    private static final ChatFrame IMAGE_SENT = new ChatFrame(new ChatMessage(ChatMessage.Type.MESSAGE, "Haz enviado una imagen."));
+    
+    private final ServerSocket[] listeners;
+    private final ChatAcceptor[] acceptors;
+    private final ChatRegistry clients;
+    private final ChatServerConfig config;
+    private final ChatEventLoop[] loops;
+    private final boolean virtual;
+    private final ThreadPoolExecutor handshakes;
+    private final ThreadPoolExecutor writers;
+    private final ScheduledThreadPoolExecutor deadlines;
+    private final ThreadPoolExecutor files;
+    private final ChatLatency handshakeLatency;
+    private final AtomicLong expiredHandshakes;
+    private final AtomicLong rejectedHandshakes;
+    private final ChatStaging staging;
+    private final ChatBlobStore blobs;
+    private final ChatCompression.Limits compressionLimits;
+    private final ChatCodec[] compressedCodecs;
+    
+    private final AtomicInteger nextLoop;
+    
+    // Ordena los cambios de la lista de usuarios y los avisos que generan,
+    // para que cada cliente reciba su lista completa antes que los cambios.
+    private final Object presence = new Object();
+    
+    // Avisos de la lista de usuarios armados con el candado y pendientes de
+    // enviar, en el mismo orden; se envian ya sin el candado.
+    private final Queue<Runnable> announcements = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean announcing = new AtomicBoolean();
+    
+    // Cambios de la lista de usuarios que se avisaran juntos al terminar el
+    // periodo actual (true si el usuario entro), y avisos del periodo.
+    private final Map<String, Boolean> presenceDigest = new LinkedHashMap<String, Boolean>();
+    private int presenceEvents;
+    
+    private final ChatEventQueue events;
+    private ChatServerEventListener console;
+    private volatile boolean closed;
     
     /**
-     * Crea el servidor de chat en el puerto 8080.
+     * Crea el servidor de chat con la configuracion indicada en las
+     * propiedades del sistema (por defecto escucha en el puerto 8080).
      * @throws ChatException Si no se pudo iniciar el servidor.
      */
     public ChatServer() throws ChatException {
+        this(ChatServerConfig.fromSystemProperties());
+    }
+    
+    /**
+     * Crea el servidor de chat en las direcciones indicadas en la configuracion.
+     * @param config La configuracion del servidor.
+     * @throws ChatException Si no se pudo iniciar el servidor.
+     */
+    public ChatServer(ChatServerConfig config) throws ChatException {
+        this.config = config;
+        
         try {
-            server = new ServerSocket(SERVER_PORT);
-            clients = Collections.synchronizedMap(new HashMap<String, ChatClient>());
+            List<ServerSocket> sockets = new ArrayList<ServerSocket>();
+            List<ChatAcceptor> threads = new ArrayList<ChatAcceptor>();
+            
+            bind(sockets, threads);
+            
+            listeners = sockets.toArray(new ServerSocket[sockets.size()]);
+            acceptors = threads.toArray(new ChatAcceptor[threads.size()]);
+            
+            if (ChatServerConfig.Engine.NIO == config.getEngine()) {
+                loops = new ChatEventLoop[config.getEventLoops()];
+                
+                for (int i = 0; i < loops.length; ++i) {
+                    loops[i] = new ChatEventLoop(i);
+                }
+            } else {
+                loops = null;
+            }
+            nextLoop = new AtomicInteger();
+            virtual = (ChatServerConfig.Engine.VIRTUAL == config.getEngine());
+            clients = new ChatRegistry();
+            
+            // Con selectores, el inicio de sesion lo atienden los ciclos de
+            // eventos; en otro caso, un grupo acotado de hilos.
+            handshakes = (loops != null) ? null : createHandshakes();
+            writers = (loops != null) ? null : createWriters();
+            deadlines = createDeadlines();
+            files = createFiles();
+            handshakeLatency = new ChatLatency();
+            expiredHandshakes = new AtomicLong();
+            rejectedHandshakes = new AtomicLong();
+            staging = new ChatStaging(config.getStagingFolder(), config.getStagingTimeout());
+            blobs = new ChatBlobStore(config.getBlobFolder());
+            events = new ChatEventQueue(config.getEventCapacity(), config.getEventPolicy());
+            events.start();
+            
+            compressionLimits = new ChatCompression.Limits(config.getCompressionThreshold(), config.getCompressionBudget());
+            compressedCodecs = ChatCodec.createCompressed(compressionLimits);
         } catch (IOException e) {
             throw new ChatException("No se pudo iniciar el servidor.");
         }
     }
     
     /**
-     * Cola para el ingreso de nuevos clientes.
+     * Inicia los hilos que aceptan clientes y espera a que el servidor se cierre.
      */
     @Override
     public void run() {
-        info("Servidor iniciado en el puerto " + SERVER_PORT + ".");
+        info("Servidor iniciado en " + getListenAddresses() + " (" + config.getEngine() + ").");
         
-        while (!server.isClosed()) {
-            ChatClient client;
-            
-            // Esperar a obtener una conexion.
+        if (acceptors.length > 1) {
+            info(acceptors.length + " hilos aceptadores, " + listeners.length + (listeners.length == 1 ? " socket." : " sockets."));
+        }
+        
+        // Sin soporte de hilos virtuales, los clientes usaran hilos normales.
+        if (virtual && !ChatThreads.isVirtualSupported()) {
+            error("Los hilos virtuales no estan disponibles; se usaran hilos normales.");
+        }
+        
+        // Iniciamos los ciclos de eventos.
+        if (loops != null) {
+            for (ChatEventLoop loop : loops) {
+                loop.start();
+            }
+        }
+        
+        // Eliminamos periodicamente las transferencias abandonadas.
+        long period = Math.min(config.getStagingTimeout(), 60 * 1000);
+        
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                staging.purge();
+            }
+        }, period, period);
+        
+        // Enviamos al terminar cada periodo los avisos de entrada y salida
+        // que se juntaron.
+        if (config.getPresenceTick() > 0) {
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flushPresence();
+                }
+            }, config.getPresenceTick(), config.getPresenceTick());
+        }
+        
+        // Medimos periodicamente el tiempo de ida y vuelta de los clientes.
+        if (config.getPingInterval() > 0) {
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    for (ChatClient client : clients.snapshot()) {
+                        client.ping();
+                    }
+                }
+            }, config.getPingInterval(), config.getPingInterval());
+        }
+        
+        // Iniciamos los hilos aceptadores.
+        for (ChatAcceptor acceptor : acceptors) {
+            acceptor.start();
+        }
+        
+        // Esperamos a que se cierre el servidor.
+        for (ChatAcceptor acceptor : acceptors) {
             try {
-                client = new ChatClient(this, server.accept());
-            } catch (IOException e) {
-                // Si ocurre un error al aceptar un nuevo cliente,
-                // debe ser porque el servidor fue cerrado; continuamos
-                // para que el ciclo verifique el estado del servidor.
-                continue;
+                acceptor.join();
+            } catch (InterruptedException e) {
+                break;
             }
+        }
+    }
+    
+    /**
+     * Recibe una conexion aceptada por alguno de los hilos aceptadores.
+     * @param socket El socket del cliente.
+     */
+    void accept(Socket socket) {
+        configure(socket);
+        
+        // Con selectores, el ciclo de eventos se encarga del inicio de sesion.
+        if (loops != null) {
+            ChatEventLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
             
-            try {
-                // Iniciamos los flujos de E/S del cliente.
-                client.init();
-                
-                // Verificar que el cliente tenga un nombre de usuario 
-                // disponible (no repetido con algun otro cliente).
-                if (!verify(client)) {
-                    continue;
+            ChatChannelClient client = new ChatChannelClient(this, loop, socket.getChannel());
+            expire(client);
+            loop.register(client);
+            return;
+        }
+        
+        final ChatSocketClient client = new ChatSocketClient(this, socket, virtual);
+        expire(client);
+        
+        // El inicio de sesion se atiende en otro hilo para que un cliente
+        // que no envia su nombre no detenga a los demas.
+        try {
+            handshakes.execute(new Runnable() {
+                @Override
+                public void run() {
+                    handshake(client);
                 }
+            });
+        } catch (RejectedExecutionException e) {
+            // Hay demasiadas conexiones esperando; descartamos esta.
+            rejectedHandshakes.incrementAndGet();
+            client.abort();
+            
+            if (events.accepts(ChatServerEvent.Kind.LOGIN_REJECTED)) {
+                events.publish(ChatServerEvent.rejected(null, "hay demasiados inicios de sesion pendientes."));
+            }
+        }
+    }
+    
+    /**
+     * Abre los sockets del servidor en cada direccion configurada y crea
+     * sus hilos aceptadores.
+     * @param sockets La lista donde se agregan los sockets abiertos.
+     * @param threads La lista donde se agregan los hilos aceptadores.
+     * @throws IOException Si alguna direccion no se pudo enlazar.
+     */
+    private void bind(List<ServerSocket> sockets, List<ChatAcceptor> threads) throws IOException {
+        boolean reusePort = config.isReusePort() && config.getAcceptors() > 1;
+        
+        try {
+            for (InetSocketAddress address : config.getAddresses()) {
+                ServerSocket socket = null;
+                boolean shared = false;
                 
-                // Agregamos el cliente a la lista de clientes.
-                clients.put(client.getUsername(), client);
-                
-                // Inicia el hilo receptor de mensajes.
-                client.start();
-                
-                // Notificar a los usuarios del nuevo ingreso.
-                alert("El usuario [" + client + "] se ha conectado.");
-            } catch (ChatException e) {
-                error(e);
+                for (int i = 0; i < config.getAcceptors(); ++i) {
+                    // Con SO_REUSEPORT cada aceptador tiene su propio socket;
+                    // sin el, todos aceptan del mismo.
+                    if (socket == null || shared) {
+                        socket = openServerSocket();
+                        sockets.add(socket);
+                        shared = reusePort && ChatSockets.setReusePort(socket);
+                        
+                        // El buffer de recepcion debe fijarse antes de enlazar
+                        // para que aplique a las conexiones aceptadas.
+                        if (config.getReceiveBufferSize() > 0) {
+                            socket.setReceiveBufferSize(config.getReceiveBufferSize());
+                        }
+                        
+                        socket.bind(address, config.getBacklog());
+                    }
+                    
+                    threads.add(new ChatAcceptor(this, socket, threads.size()));
+                }
+            }
+        } catch (IOException e) {
+            for (ServerSocket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException ex) {}
+            }
+            throw e;
+        }
+    }
+    
+    /**
+     * Crea un socket de servidor sin enlazar.
+     * @return El socket de servidor.
+     * @throws IOException Si no se pudo crear el socket.
+     */
+    private ServerSocket openServerSocket() throws IOException {
+        // Con selectores, el socket se crea a partir de un canal para que
+        // los clientes aceptados tengan un canal no bloqueante.
+        if (ChatServerConfig.Engine.NIO == config.getEngine()) {
+            return ServerSocketChannel.open().socket();
+        }
+        
+        return new ServerSocket();
+    }
+    
+    /**
+     * Aplica las opciones configuradas al socket de un cliente aceptado.
+     * @param socket El socket del cliente.
+     */
+    private void configure(Socket socket) {
+        try {
+            socket.setTcpNoDelay(config.isTcpNoDelay());
+            socket.setKeepAlive(config.isKeepAlive());
+            
+            if (config.getSendBufferSize() > 0) {
+                socket.setSendBufferSize(config.getSendBufferSize());
             }
+        } catch (IOException e) {
+            // Las opciones son solo sugerencias; el cliente sigue siendo valido.
         }
     }
     
+    /**
+     * Regresa las direcciones en las que escucha el servidor.
+     * @return Las direcciones separadas por comas.
+     */
+    public String getListenAddresses() {
+        Set<String> addresses = new LinkedHashSet<String>();
+        
+        for (ServerSocket socket : listeners) {
+            String host = socket.getInetAddress().isAnyLocalAddress() ? "*" : socket.getInetAddress().getHostAddress();
+            addresses.add(host + ":" + socket.getLocalPort());
+        }
+        
+        StringBuilder builder = new StringBuilder();
+        
+        for (String address : addresses) {
+            if (builder.length() > 0) {
+                builder.append(", ");
+            }
+            builder.append(address);
+        }
+        
+        return builder.toString();
+    }
+    
+    /**
+     * Atiende el inicio de sesion de un cliente con E/S bloqueante.
+     * @param client El cliente recien aceptado.
+     */
+    private void handshake(ChatSocketClient client) {
+        try {
+            // Iniciamos los flujos de E/S del cliente.
+            client.init();
+            
+            // Esperamos el nombre de usuario y registramos al cliente.
+            if (!client.handshake() || !login(client)) {
+                client.close();
+                return;
+            }
+            
+            // Inicia el hilo receptor de mensajes.
+            client.start();
+        } catch (ChatException e) {
+            client.abort();
+            error(e);
+        }
+    }
+    
+    /**
+     * Programa el cierre de un cliente que no inicie sesion a tiempo.
+     * @param client El cliente recien aceptado.
+     */
+    private void expire(final ChatClient client) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (!client.isOnline() && !client.isClosed()) {
+                        expiredHandshakes.incrementAndGet();
+                        client.abort();
+                        
+                        if (events.accepts(ChatServerEvent.Kind.LOGIN_REJECTED)) {
+                            events.publish(ChatServerEvent.rejected(client.getUsername(), "no inicio sesion a tiempo."));
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    error(e.toString());
+                }
+            }
+        };
+        
+        try {
+            client.setDeadline(deadlines.schedule(task, config.getHandshakeTimeout(), TimeUnit.MILLISECONDS));
+        } catch (RejectedExecutionException e) {
+            // El servidor se esta cerrando.
+            client.abort();
+        }
+    }
+    
+    /**
+     * Programa una tarea periodica. Un error en la tarea se reporta y no
+     * detiene las demas ejecuciones ni las otras tareas.
+     * @param task La tarea.
+     * @param delay La espera antes de la primera ejecucion, en milisegundos.
+     * @param period El periodo, en milisegundos.
+     */
+    private void schedule(final Runnable task, long delay, long period) {
+        deadlines.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    error(e.toString());
+                }
+            }
+        }, delay, period, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Crea el hilo que atiende los plazos de inicio de sesion y las tareas
+     * periodicas del servidor. Las tareas canceladas se quitan de la cola
+     * para que los plazos de los clientes que si iniciaron sesion no se
+     * acumulen.
+     * @return El ejecutor.
+     */
+    private ScheduledThreadPoolExecutor createDeadlines() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "ChatServerTimer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        
+        executor.setRemoveOnCancelPolicy(true);
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return executor;
+    }
+    
+    /**
+     * Crea el grupo de hilos que lee y escribe en disco los archivos
+     * adjuntos. Cada cliente encola sus tareas en orden con un
+     * {@link ChatSerialExecutor}, asi los hilos de red nunca esperan al disco.
+     * @return El grupo de hilos.
+     */
+    private ThreadPoolExecutor createFiles() {
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "ChatFiles-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                config.getFileThreads(), config.getFileThreads(),
+                60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                factory);
+        
+        // Los hilos inactivos terminan para no ocupar memoria.
+        executor.allowCoreThreadTimeOut(true);
+        
+        return executor;
+    }
+    
+    /**
+     * Crea el ejecutor donde un cliente encola, en orden, el trabajo en disco
+     * de sus archivos adjuntos.
+     * @return El ejecutor del cliente.
+     */
+    ChatSerialExecutor createFileExecutor() {
+        return new ChatSerialExecutor(files);
+    }
+    
+    /**
+     * Crea el grupo de hilos que atiende los inicios de sesion.
+     * @return El grupo de hilos.
+     */
+    private ThreadPoolExecutor createHandshakes() {
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            
+            @Override
+            public Thread newThread(Runnable task) {
+                return ChatThreads.newThread(task, "ChatHandshake-" + count.incrementAndGet(), virtual);
+            }
+        };
+        
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                config.getHandshakeThreads(), config.getHandshakeThreads(),
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(config.getHandshakeQueue()),
+                factory);
+        
+        // Los hilos inactivos terminan para no ocupar memoria.
+        executor.allowCoreThreadTimeOut(true);
+        
+        return executor;
+    }
+    
+    /**
+     * Crea el grupo de hilos que escribe las tramas de los clientes con E/S
+     * bloqueante. Un hilo solo se ocupa mientras un cliente tiene tramas
+     * pendientes, por lo que los clientes inactivos no tienen un hilo
+     * escritor; un cliente que no lee sus mensajes si retiene el suyo.
+     * @return El grupo de hilos.
+     */
+    private ThreadPoolExecutor createWriters() {
+        ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            
+            @Override
+            public Thread newThread(Runnable task) {
+                return ChatThreads.newThread(task, "ChatWriter-" + count.incrementAndGet(), virtual);
+            }
+        };
+        
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+                60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                factory);
+    }
+    
+    /**
+     * Regresa el grupo de hilos que escribe las tramas de los clientes con
+     * E/S bloqueante.
+     * @return El grupo de hilos.
+     */
+    Executor getWriters() {
+        return writers;
+    }
+    
+    /**
+     * Registra a un cliente que ya envio su mensaje de inicio de sesion.
+     * @param client El cliente que inicia sesion.
+     * @return true si el cliente fue aceptado, false en caso contrario.
+     */
+    boolean login(ChatClient client) {
+        // Confirmamos el inicio de sesion con las opciones acordadas antes
+        // de registrar al cliente, para que ningun otro mensaje llegue
+        // antes de la confirmacion.
+        if (client.getUsername() == null || !client.accept()) {
+            return false;
+        }
+        
+        // Registramos al cliente y notificamos a los usuarios del nuevo ingreso.
+        if (!join(client)) {
+            return false;
+        }
+        
+        handshakeLatency.record(System.nanoTime() - client.getCreated());
+        
+        return true;
+    }
+    
     /**
      * Envia un mensaje en modo broadcast o unicast.
      * @param chat El mensaje a enviar.
      */
     public void send(ChatMessage chat) {
+        // El mensaje se reenvia sin formato; cada cliente lo formatea con
+        // la hora en que llego al servidor.
         if (ChatMessage.Type.MESSAGE == chat.getType()) {
-            chat.setMessage(formatClientMessage(chat));
+            chat.setTime(System.currentTimeMillis());
+        }
+        
+        // Los archivos enviados por partes se reenvian conforme llegan.
+        if (chat.getAttachment() != null) {
+            transfer(chat);
         }
         
-        if (chat.isPrivateMessage()) {
+        else if (chat.isPrivateMessage()) {
             unicast(chat);
         }
         
@@ -106,130 +606,507 @@ public class ChatServer extends Thread {
     }
     
     /**
-     * Procesa el cierre de sesion de un usuario.
-     * @param chat El mensaje que envio el usuario solicitante.
+     * Procesa el cierre de sesion de un usuario.
+     * @param chat El mensaje que envio el usuario solicitante.
+     */
+    public void sendLogout(ChatMessage chat) {
+        // Obtenemos el nombre del emisor.
+        String username = chat.getSender();
+        
+        // Obtenemos el cliente.
+        ChatClient client = clients.get(username);
+        
+        if (client == null) return;
+        
+        // Eliminamos al cliente y notificamos a todos los usuarios.
+        leave(client);
+        report(client);
+        
+        // Enviamos el mensaje de regreso al emisor y cerramos al cliente.
+        client.send(LOGOUT);
+        client.close();
+    }
+    
+    /**
+     * Envia la lista de usuarios conectados al usuario solicitante, completa
+     * o la pagina que indique el mensaje.
+     * @param chat El mensaje que envio el usuario solicitante.
+     */
+    public void sendConnectedUsers(ChatMessage chat) {
+        ChatClient client = clients.get(chat.getSender());
+        
+        if (client == null) return;
+        
+        client.send(getConnectedUsers(chat.getMessage(), chat.getReceiver(), (int) Math.min(chat.getSize(), Integer.MAX_VALUE)));
+    }
+    
+    /**
+     * Envia un mensaje normal a todos los clientes.
+     * @param message El mensaje a enviar.
+     */
+    public void chat(String message) {
+        broadcast(ChatMessage.Type.MESSAGE, formatServerMessage(message));
+    }
+    
+    /**
+     * Cierra al servidor y a todos sus clientes.
+     * @throws ChatException Si ocurre un error al cerrar el servidor.
+     */
+    public void close() throws ChatException {
+        try {
+            // Enviamos un mensaje de informacion para los clientes.
+            broadcast(ChatMessage.Type.MESSAGE, formatServerInfo("El servidor se ha cerrado."));
+            
+            // Cerramos a todos los clientes notificandoles que el servidor
+            // se ha cerrado.
+            for (ChatClient client : clients.snapshot()) {
+                client.send(SERVER_CLOSED);
+                client.close();
+            }
+            
+            // Eliminamos a todos los clientes.
+            clients.clear();
+            
+            // Cierra el servidor.
+            closed = true;
+            
+            for (ServerSocket socket : listeners) {
+                socket.close();
+            }
+            
+            // Detenemos los ciclos de eventos.
+            if (loops != null) {
+                for (ChatEventLoop loop : loops) {
+                    loop.shutdown();
+                }
+            }
+            
+            // Detenemos los inicios de sesion pendientes.
+            if (handshakes != null) {
+                handshakes.shutdownNow();
+            }
+            
+            // Los escritores terminan de enviar lo pendiente.
+            if (writers != null) {
+                writers.shutdown();
+            }
+            deadlines.shutdownNow();
+            
+            // Esperamos a que terminen las escrituras en disco antes de
+            // cerrar los archivos temporales.
+            files.shutdownNow();
+            
+            try {
+                files.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            
+            staging.close();
+            
+            info("Inicios de sesion: " + handshakeLatency +
+                 ", expirados=" + expiredHandshakes.get() +
+                 ", rechazados=" + rejectedHandshakes.get() + ".");
+            info("Archivos adjuntos: guardados=" + blobs.getStored() +
+                 ", repetidos=" + blobs.getDeduplicated() + ".");
+            info("Compresion: comprimidas=" + compressionLimits.getCompressed() +
+                 ", sin comprimir=" + compressionLimits.getSkipped() +
+                 ", tiempo=" + (compressionLimits.getSpent() / 1000000) + " ms.");
+            
+            // Entregamos los ultimos eventos al oyente.
+            events.shutdown();
+        } catch (IOException e) {
+            throw new ChatException("No se pudo cerrar el servidor.");
+        }
+    }
+    
+    /**
+     * Verifica si el servidor esta cerrado.
+     * @return true si el servidor esta cerrado, false si esta abierto.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+    
+    /**
+     * Regresa el histograma de latencias del inicio de sesion, medidas desde
+     * que se acepta la conexion hasta que el cliente queda registrado.
+     * @return El histograma de latencias.
+     */
+    public ChatLatency getHandshakeLatency() {
+        return handshakeLatency;
+    }
+    
+    /**
+     * Regresa el numero de clientes cerrados por no iniciar sesion a tiempo.
+     * @return El numero de inicios de sesion expirados.
+     */
+    public long getExpiredHandshakes() {
+        return expiredHandshakes.get();
+    }
+    
+    /**
+     * Regresa el numero de conexiones descartadas porque habia demasiados
+     * inicios de sesion pendientes.
+     * @return El numero de conexiones rechazadas.
+     */
+    public long getRejectedHandshakes() {
+        return rejectedHandshakes.get();
+    }
+    
+    /**
+     * Establece un oyente que recibe el texto de todos los eventos, salvo
+     * los mensajes privados, como una consola.
+     * Los eventos se entregan en orden desde un hilo propio de la cola de
+     * eventos, nunca desde los hilos que atienden a los clientes.
+     * @param callback El oyente, o null para ninguno.
+     */
+    public synchronized void setChatServerListener(ChatServerListener callback) {
+        if (console != null) {
+            events.removeListener(console);
+            console = null;
+        }
+        
+        if (callback != null) {
+            console = new ConsoleListener(callback);
+            events.addListener(console);
+        }
+    }
+    
+    /**
+     * Agrega un oyente de los eventos del servidor. Solo se crean los
+     * eventos que algun oyente quiere, y su texto solo se arma si algun
+     * oyente lo pide.
+     * @param listener El oyente.
+     */
+    public void addChatServerEventListener(ChatServerEventListener listener) {
+        events.addListener(listener);
+    }
+    
+    /**
+     * Quita un oyente de los eventos del servidor.
+     * @param listener El oyente.
+     */
+    public void removeChatServerEventListener(ChatServerEventListener listener) {
+        events.removeListener(listener);
+    }
+    
+    /**
+     * Regresa la cola de eventos para los oyentes, con el numero de eventos
+     * pendientes, entregados y descartados.
+     * @return La cola de eventos.
+     */
+    public ChatEventQueue getEvents() {
+        return events;
+    }
+    
+    /**
+     * Crea la cola de salida de un nuevo cliente segun la configuracion.
+     * @return La cola de salida.
+     */
+    ChatOutbox createOutbox() {
+        return new ChatOutbox(config.getOutboxCapacity(), config.getOutboxBytes(), config.getOutboxPolicy());
+    }
+    
+    /**
+     * Regresa las compresiones que el servidor acepta.
+     * @return Los nombres de las compresiones.
+     */
+    String[] getCompressions() {
+        return config.getCompressions();
+    }
+    
+    /**
+     * Regresa el codec acordado con un cliente, con los limites de
+     * compresion de este servidor.
+     * @param codec El codec sin compresion.
+     * @param compression La compresion.
+     * @return El codec con la compresion.
+     */
+    ChatCodec getCodec(ChatCodec codec, ChatCompression compression) {
+        return codec.withCompression(compression, compressedCodecs);
+    }
+    
+    /**
+     * Crea la politica con la que se juntan las tramas de un cliente en una
+     * sola escritura.
+     * @return La politica de escritura configurada.
+     */
+    ChatCoalescer createCoalescer() {
+        return new ChatCoalescer(TimeUnit.MICROSECONDS.toNanos(config.getCoalesceDelay()),
+                config.getCoalesceFrames(), config.getCoalesceBytes());
+    }
+    
+    /**
+     * Elimina a un cliente que perdio la conexion sin cerrar sesion, para
+     * que pueda volver a conectarse con el mismo nombre de usuario.
+     * @param client El cliente desconectado.
+     */
+    void disconnect(ChatClient client) {
+        // El nombre de usuario puede pertenecer ya a otra conexion.
+        if (client.isOnline() && leave(client)) {
+            report(client);
+        }
+    }
+    
+    /**
+     * Registra cuanto se redujo el trafico de un cliente al comprimirlo y
+     * cuantas tramas se juntaron en cada escritura.
+     * @param client El cliente que cierra su sesion.
+     */
+    private void report(ChatClient client) {
+        ChatCompression compression = client.getCodec().getCompression();
+        
+        if (compression != ChatCompression.NONE) {
+            info("Trafico de [" + client + "] (" + compression + "): " + client.getTraffic() + ".");
+        }
+        
+        if (config.getCoalesceDelay() > 0) {
+            info("Escrituras de [" + client + "]: " + client.getCoalescer() + ".");
+        }
+    }
+    
+    /**
+     * Registra la desconexion de un cliente que no lee sus mensajes.
+     * @param client El cliente desconectado.
+     */
+    void overflow(ChatClient client) {
+        error("El usuario [" + client + "] fue desconectado por no leer sus mensajes.");
+    }
+    
+    /**
+     * Registra la desconexion de un cliente cuyo mensaje provoco un error.
+     * @param client El cliente desconectado.
+     * @param error El error ocurrido.
+     */
+    void failure(ChatClient client, RuntimeException error) {
+        error("El usuario [" + client + "] fue desconectado por un error: " + error + ".");
+    }
+    
+    /**
+     * Registra a un cliente y avisa de su ingreso a todos los usuarios.
+     * Los clientes que llevan su propia lista de usuarios reciben primero
+     * la lista completa y despues solo los cambios (JOIN y LEAVE).
+     * @param client El cliente que inicia sesion.
+     * @return true si el nombre estaba disponible, false en caso contrario.
      */
-    public void sendLogout(ChatMessage chat) {
-        // Obtenemos el nombre del emisor.
-        String username = chat.getSender();
-        
-        // Obtenemos el cliente.
-        ChatClient client = clients.get(username);
-        
-        if (client == null) return;
+    private boolean join(ChatClient client) {
+        synchronized (presence) {
+            if (!verify(client)) {
+                return false;
+            }
+            
+            client.setOnline();
+            
+            if (client.isPresenceSupported()) {
+                final ChatFrame users = new ChatFrame(getConnectedUsers(null, null, 0));
+                final ChatClient receiver = client;
+                
+                announcements.offer(new Runnable() {
+                    @Override
+                    public void run() {
+                        receiver.send(users);
+                    }
+                });
+            }
+            
+            announce(client, ChatMessage.Type.JOIN, "El usuario [" + client + "] se ha conectado.");
+        }
         
-        // Notificamos a todos los usuarios.
-        alert("El usuario [" + username + "] se ha desconectado.");
+        sendAnnouncements();
         
-        // Enviamos el mensaje de regreso al emisor.
-        client.send(new ChatMessage(ChatMessage.Type.LOGOUT));
+        if (events.accepts(ChatServerEvent.Kind.CONNECTED)) {
+            events.publish(ChatServerEvent.connected(client.getUsername()));
+        }
         
-        // Cerramos y eliminamos al cliente.
-        client.close();
-        clients.remove(username);
+        return true;
     }
     
     /**
-     * Envia la lista de usuarios conectados al usuario solicitante.
-     * @param chat El mensaje que envio el usuario solicitante.
+     * Elimina a un cliente de la lista y avisa de su salida a los usuarios.
+     * @param client El cliente que se va.
+     * @return true si el cliente estaba en la lista, false en caso contrario.
      */
-    public void sendConnectedUsers(ChatMessage chat) {
-        ChatClient client = clients.get(chat.getSender());
+    private boolean leave(ChatClient client) {
+        synchronized (presence) {
+            if (!clients.remove(client)) {
+                return false;
+            }
+            
+            announce(client, ChatMessage.Type.LEAVE, "El usuario [" + client + "] se ha desconectado.");
+        }
         
-        if (client == null) return;
+        sendAnnouncements();
+        
+        if (events.accepts(ChatServerEvent.Kind.DISCONNECTED)) {
+            events.publish(ChatServerEvent.disconnected(client.getUsername()));
+        }
         
-        client.send(new ChatMessage(ChatMessage.Type.CONNECTED_USERS, getConnectedUsers()));
+        return true;
     }
     
     /**
-     * Envia un mensaje normal a todos los clientes.
-     * @param message El mensaje a enviar.
+     * Avisa a todos los clientes que un usuario inicio o cerro sesion.
+     * Si en el periodo actual ya hubo demasiados avisos (por ejemplo, cuando
+     * todos los clientes se vuelven a conectar tras reiniciar el servidor),
+     * el cambio se guarda para avisarlo junto con los demas al terminar el
+     * periodo. Se debe tener el candado de la lista de usuarios.
+     * @param client El cliente que llega o se va.
+     * @param type JOIN o LEAVE.
+     * @param message El aviso.
      */
-    public void chat(String message) {
-        broadcast(ChatMessage.Type.MESSAGE, formatServerMessage(message));
+    private void announce(ChatClient client, ChatMessage.Type type, String message) {
+        if (config.getPresenceTick() > 0 && (!presenceDigest.isEmpty() || ++presenceEvents > config.getPresenceThreshold())) {
+            // El ultimo cambio de cada usuario es el que cuenta.
+            presenceDigest.remove(client.getUsername());
+            presenceDigest.put(client.getUsername(), ChatMessage.Type.JOIN == type);
+            return;
+        }
+        
+        message = formatServerInfo(message);
+        
+        publish(new ChatMessage(type, client.getUsername(), null, message), message);
     }
     
     /**
-     * Cierra al servidor y a todos sus clientes.
-     * @throws ChatException Si ocurre un error al cerrar el servidor.
+     * Envia en un solo aviso los cambios de la lista de usuarios guardados
+     * durante el periodo, y comienza un nuevo periodo.
      */
-    public void close() throws ChatException {
-        try {
-            // Enviamos un mensaje de informacion para los clientes.
-            broadcast(ChatMessage.Type.MESSAGE, formatServerInfo("El servidor se ha cerrado."));
+    private void flushPresence() {
+        synchronized (presence) {
+            presenceEvents = 0;
+            
+            if (presenceDigest.isEmpty()) {
+                return;
+            }
             
-            // Notificamos a los clientes que el servidor se ha cerrado.
-            ChatMessage closed = new ChatMessage(ChatMessage.Type.SERVER_CLOSED);
+            // Los nombres van en los datos, uno por linea, con + si el
+            // usuario entro y - si salio.
+            StringBuilder names = new StringBuilder();
+            int joined = 0;
             
-            // Cerramos a todos los clientes.
-            synchronized (clients) {                
-                for (ChatClient client : clients.values()) {
-                    client.send(closed);
-                    client.close();
-                }
+            for (Map.Entry<String, Boolean> entry : presenceDigest.entrySet()) {
+                boolean join = entry.getValue();
+                
+                names.append(join ? '+' : '-').append(entry.getKey()).append('\n');
+                
+                if (join) ++joined;
             }
             
-            // Eliminamos a todos los clientes.
-            clients.clear();
+            int left = presenceDigest.size() - joined;
+            presenceDigest.clear();
             
-            // Cierra el servidor.
-            server.close();
-        } catch (IOException e) {
-            throw new ChatException("No se pudo cerrar el servidor.");
+            String message;
+            
+            if (left == 0) {
+                message = joined + (joined == 1 ? " usuario se ha conectado." : " usuarios se han conectado.");
+            } else if (joined == 0) {
+                message = left + (left == 1 ? " usuario se ha desconectado." : " usuarios se han desconectado.");
+            } else {
+                message = joined + (joined == 1 ? " usuario se ha conectado y " : " usuarios se han conectado y ") +
+                          left + (left == 1 ? " se ha desconectado." : " se han desconectado.");
+            }
+            
+            message = formatServerInfo(message);
+            
+            ChatMessage digest = new ChatMessage(ChatMessage.Type.PRESENCE, SERVER_USERNAME, null, message);
+            
+            try {
+                digest.setData(names.toString().getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            
+            publish(digest, message);
         }
+        
+        sendAnnouncements();
     }
     
     /**
-     * Verifica si el servidor esta cerrado.
-     * @return true si el servidor esta cerrado, false si esta abierto.
+     * Encola un aviso de la lista de usuarios para todos los clientes: el
+     * mensaje indicado a los que llevan su propia lista y un INFO con el
+     * mismo texto a los demas. Las tramas y los receptores se toman con el
+     * candado de la lista de usuarios, pero el aviso se envia despues con
+     * sendAnnouncements. Se debe tener el candado de la lista de usuarios.
+     * @param delta El cambio de la lista (JOIN, LEAVE o PRESENCE).
+     * @param message El aviso.
      */
-    public boolean isClosed() {
-        return server.isClosed();
+    private void publish(ChatMessage delta, String message) {
+        final ChatFrame change = new ChatFrame(delta);
+        final ChatFrame alert = new ChatFrame(new ChatMessage(ChatMessage.Type.INFO, SERVER_USERNAME, null, message));
+        final ChatClient[] receivers = clients.snapshot();
+        
+        announcements.offer(new Runnable() {
+            @Override
+            public void run() {
+                List<ChatClient> failed = null;
+                
+                for (ChatClient receiver : receivers) {
+                    if (!receiver.send(receiver.isPresenceSupported() ? change : alert)) {
+                        if (failed == null) {
+                            failed = new ArrayList<ChatClient>();
+                        }
+                        failed.add(receiver);
+                    }
+                }
+                
+                // Los clientes que ya no reciben mensajes tambien se van; su
+                // salida se encola detras de este aviso.
+                if (failed != null) {
+                    for (ChatClient receiver : failed) {
+                        receiver.close();
+                        leave(receiver);
+                    }
+                }
+            }
+        });
     }
     
     /**
-     * Establece un oyente al enviar un mensaje a los clientes.
-     * @param callback El oyente.
+     * Envia los avisos de la lista de usuarios pendientes, en el orden en
+     * que se armaron. Solo un hilo los envia a la vez; si otro ya los esta
+     * enviando, este solo regresa y aquel envia tambien los nuevos.
+     * No se debe tener el candado de la lista de usuarios.
      */
-    public void setChatServerListener(ChatServerListener callback) {
-        this.callback = callback;
+    private void sendAnnouncements() {
+        while (!announcements.isEmpty() && announcing.compareAndSet(false, true)) {
+            try {
+                Runnable announcement;
+                
+                while ((announcement = announcements.poll()) != null) {
+                    announcement.run();
+                }
+            } finally {
+                announcing.set(false);
+            }
+        }
     }
     
     /**
      * Verifica que el cliente tenga un nombre de usuario no repetido
-     * con algun otro usuario conectado.
+     * con algun otro usuario conectado y lo agrega a la lista de clientes.
      * @param client El cliente a validar.
      * @return true si el nombre esta disponible, false en caso contrario.
-     * @throws ChatException Si ocurre un error al enviar un mensaje al cliente.
      */
-    private boolean verify(ChatClient client) throws ChatException {
-        String username = client.getUsername();
-        
-        // Si no se obtuvo el nombre de usuario, entonces
-        // no es valido.
-        if (username == null) {
-            return false;
-        }
-        
-        // Buscar que el nombre de usuario no sea repetido.
-        if (clients.keySet().contains(username)) {
+    private boolean verify(ChatClient client) {
+        // Agregamos al cliente solo si el nombre de usuario no es repetido;
+        // la verificacion y el registro son una sola operacion atomica.
+        if (!clients.add(client)) {
             // Si el nombre de usuario es repetido, enviamos un mensaje
             // al cliente indicandole que no se acepto su conexion.
-            client.send(new ChatMessage(ChatMessage.Type.EXIT));
+            client.send(EXIT);
+            
+            if (events.accepts(ChatServerEvent.Kind.LOGIN_REJECTED)) {
+                events.publish(ChatServerEvent.rejected(client.getUsername(), "el nombre de usuario ya esta en uso."));
+            }
+            
             return false;
         }
         
         return true;
     }
     
-    /**
-     * Envia un mensaje de alerta cuando un usuario inicia o cierra sesion.
-     * @param message El mensaje a enviar.
-     */
-    private void alert(String message) {
-        broadcast(ChatMessage.Type.INFO, formatServerInfo(message));
-    }
-    
     /**
      * Envia un mensaje del servidor a todos los clientes conectados.
      * @param type El tipo de mensaje a enviar.
@@ -244,6 +1121,7 @@ public class ChatServer extends Thread {
      * @param chat El mensaje a enviar.
      */
     private void broadcast(ChatMessage chat) {
+        long start = System.nanoTime();
         ChatMessage.Type type = chat.getType();
         
         // Verificar si debemos enviar una respuesta al emisor.
@@ -253,40 +1131,308 @@ public class ChatServer extends Thread {
         // Enviamos una respuesta al emisor.
         if (isAttachment) {
             ChatClient sender = clients.get(chat.getSender());
-            ChatMessage response = new ChatMessage(ChatMessage.Type.MESSAGE);
             
-            switch (type) {
-                case AUDIO:
-                    response.setMessage("Haz enviado un mensaje de audio.");
-                    break;
-                case IMAGE:
-                    response.setMessage("Haz enviado una imagen.");
-                    break;
+            if (sender != null) {
+                sender.send(ChatMessage.Type.AUDIO == type ? AUDIO_SENT : IMAGE_SENT);
+            }
+        }
+        
+        // Codificamos el mensaje una sola vez para todos los clientes.
+        ChatFrame frame = new ChatFrame(chat, true);
+        
+        // Enviamos el mensaje a todos los clientes. El emisor de un archivo
+        // ya lo tiene, por lo que no se lo regresamos.
+        ChatClient[] receivers = clients.snapshot();
+        
+        if (isAttachment) {
+            receivers = getOthers(receivers, chat.getSender());
+        }
+        
+        sendAll(receivers, frame);
+        relayed(frame, start);
+    }
+    
+    /**
+     * Registra un mensaje reenviado, si algun oyente lo quiere.
+     * @param frame La trama enviada.
+     * @param start Cuando se comenzo a enviar, en nanosegundos.
+     */
+    private void relayed(ChatFrame frame, long start) {
+        if (events.accepts(ChatServerEvent.Kind.MESSAGE_RELAYED)) {
+            events.publish(ChatServerEvent.relayed(frame.getMessage(), frame.getRecipients(), frame.getSentBytes(), System.nanoTime() - start));
+        }
+    }
+    
+    /**
+     * Regresa los clientes que no son el emisor de un mensaje.
+     * @param snapshot Los clientes conectados.
+     * @param sender El nombre del emisor.
+     * @return Los demas clientes.
+     */
+    private static ChatClient[] getOthers(ChatClient[] snapshot, String sender) {
+        List<ChatClient> others = new ArrayList<ChatClient>(snapshot.length);
+        
+        for (ChatClient client : snapshot) {
+            if (!client.getUsername().equals(sender)) {
+                others.add(client);
+            }
+        }
+        
+        return others.toArray(new ChatClient[others.size()]);
+    }
+    
+    /**
+     * Inicia la transferencia por partes de un archivo adjunto. El encabezado
+     * se envia a los receptores y las partes se reenviaran con sendChunk a
+     * los que no las piden con FETCH.
+     * Si el emisor ya habia comenzado a enviar el archivo, se le indica desde
+     * donde debe continuar. El emisor siempre envia el contenido completo;
+     * conocer el resumen de un archivo no basta para obtenerlo, y el
+     * almacen solo evita guardarlo dos veces.
+     * @param header El mensaje AUDIO o IMAGE que inicia la transferencia.
+     */
+    private void transfer(ChatMessage header) {
+        ChatClient sender = clients.get(header.getSender());
+        
+        if (sender == null) return;
+        
+        ChatTransfer transfer = staging.get(sender.getUsername(), header.getAttachment());
+        
+        // El emisor perdio la conexion y continua el envio.
+        if (transfer != null && transfer.getSize() == header.getSize() && sender.isResumeSupported()) {
+            if (sender.startTransfer(transfer)) {
+                acknowledge(sender, transfer.getOwner(), transfer.getId(), null, transfer.getReceived());
+            }
+            return;
+        }
+        
+        ChatClient[] receivers;
+        
+        if (header.isPrivateMessage()) {
+            ChatClient receiver = clients.get(header.getReceiver());
+            
+            if (receiver == null || !receiver.isChunkSupported()) return;
+            
+            receivers = new ChatClient[] { receiver };
+        } else {
+            // Enviamos el archivo a todos los demas clientes que lo soporten.
+            ChatClient[] snapshot = clients.snapshot();
+            int count = 0;
+            
+            receivers = new ChatClient[snapshot.length];
+            
+            for (ChatClient client : snapshot) {
+                if (client != sender && client.isChunkSupported()) {
+                    receivers[count++] = client;
+                }
             }
             
-            sender.send(response);
+            receivers = Arrays.copyOf(receivers, count);
         }
         
-        // Verificar si debemos registrar el mensaje en el servidor.
-        boolean isMessage = (ChatMessage.Type.INFO    == type) ||
-                            (ChatMessage.Type.MESSAGE == type);
-                
-        // Registramos el mensaje en el servidor.
-        if (isMessage) {
-            info(chat.getMessage(), false);
+        try {
+            transfer = staging.create(header, receivers);
+        } catch (IOException e) {
+            error("No se pudo guardar el archivo de [" + sender + "]: " + e.getMessage());
+            return;
         }
         
-        // Enviamos el mensaje a todos los clientes.
-        synchronized (clients) {            
-            for (Iterator<Map.Entry<String, ChatClient>> iterator = clients.entrySet().iterator(); iterator.hasNext();) {
-                Map.Entry<String, ChatClient> entry = iterator.next();
-
-                ChatClient client = entry.getValue();
-
-                if (!client.send(chat)) {
+        if (!sender.startTransfer(transfer)) {
+            staging.remove(transfer);
+            return;
+        }
+        
+        // Enviamos una respuesta al emisor.
+        boolean isAudio = (ChatMessage.Type.AUDIO == header.getType());
+        
+        if (header.isPrivateMessage()) {
+            sender.send(new ChatMessage(ChatMessage.Type.MESSAGE, sender.getUsername(), header.getReceiver(),
+                    isAudio ? "Haz enviado un mensaje de audio." : "Haz enviado una imagen."));
+        } else {
+            sender.send(isAudio ? AUDIO_SENT : IMAGE_SENT);
+        }
+        
+        sendAll(receivers, new ChatFrame(header));
+        
+        // El emisor espera la confirmacion antes de enviar las partes.
+        acknowledge(sender, transfer.getOwner(), transfer.getId(), null, transfer.getReceived());
+    }
+    
+    /**
+     * Guarda una parte de un archivo y la reenvia a los receptores de su
+     * transferencia. Al completarse el archivo se le confirma al emisor.
+     * @param sender El cliente que envio la parte.
+     * @param transfer La transferencia a la que pertenece la parte.
+     * @param chunk La parte del archivo.
+     */
+    void sendChunk(ChatClient sender, ChatTransfer transfer, ChatMessage chunk) {
+        // Guardar y reenviar la parte es una sola operacion para que un
+        // receptor que pide el archivo con FETCH no pierda ninguna parte.
+        synchronized (transfer) {
+            try {
+                // Las partes fuera de orden se ignoran; el emisor sabra
+                // desde donde continuar al volver a enviar el encabezado.
+                if (!transfer.write(chunk)) return;
+            } catch (IOException e) {
+                error("No se pudo guardar el archivo de [" + sender + "]: " + e.getMessage());
+                return;
+            }
+            
+            ChatFrame frame = new ChatFrame(chunk);
+            
+            for (ChatClient client : transfer.getReceivers()) {
+                if (!client.send(frame)) {
+                    transfer.unfollow(client);
                     client.close();
-                    iterator.remove();
+                    leave(client);
+                }
+            }
+            
+            if (transfer.isComplete()) {
+                // Guardamos el archivo en el almacen; si ya estaba, se guarda una sola vez.
+                try {
+                    if (!transfer.store(blobs) && transfer.getHash() != null) {
+                        error("El archivo de [" + sender + "] no coincide con su resumen.");
+                    }
+                } catch (IOException e) {
+                    error("No se pudo guardar el archivo de [" + sender + "]: " + e.getMessage());
+                }
+                
+                acknowledge(sender, transfer.getOwner(), transfer.getId(), null, transfer.getSize());
+            }
+        }
+    }
+    
+    /**
+     * Envia a un receptor las partes guardadas de un archivo a partir de la
+     * posicion que solicita. Se envia a lo mas FETCH_WINDOW bytes por
+     * solicitud; despues se le indica al receptor hasta donde llego para que
+     * pida las siguientes partes. Si el receptor alcanza al emisor, recibira
+     * las siguientes partes conforme lleguen.
+     * @param client El cliente que solicita el archivo.
+     * @param request El mensaje FETCH.
+     */
+    void fetch(ChatClient client, ChatMessage request) {
+        if (!client.isResumeSupported()) return;
+        
+        String owner = request.getReceiver();
+        String id = request.getAttachment();
+        ChatTransfer transfer = staging.get(owner, id);
+        
+        // El archivo ya no existe o el cliente no fue uno de sus receptores.
+        if (transfer == null || !transfer.isAllowed(client.getUsername())) {
+            acknowledge(client, owner, id, client.getUsername(), -1);
+            return;
+        }
+        
+        synchronized (transfer) {
+            long offset = request.getOffset();
+            
+            // Mientras recibe las partes guardadas, el cliente no recibe las
+            // que van llegando.
+            transfer.unfollow(client);
+            
+            // El cliente ya tiene el archivo completo.
+            if (offset == transfer.getSize()) {
+                return;
+            }
+            
+            if (offset < 0 || offset > transfer.getReceived()) {
+                acknowledge(client, owner, id, client.getUsername(), -1);
+                return;
+            }
+            
+            long end = Math.min(transfer.getReceived(), offset + FETCH_WINDOW);
+            
+            try {
+                while (offset < end) {
+                    byte[] data = new byte[(int) Math.min(FETCH_CHUNK_SIZE, end - offset)];
+                    transfer.read(offset, data);
+                    
+                    ChatMessage chunk = new ChatMessage(ChatMessage.Type.CHUNK, owner, null, null);
+                    chunk.setAttachment(id);
+                    chunk.setOffset(offset);
+                    chunk.setData(data);
+                    
+                    if (!client.send(chunk)) return;
+                    
+                    offset += data.length;
                 }
+            } catch (IOException e) {
+                acknowledge(client, owner, id, client.getUsername(), -1);
+                return;
+            }
+            
+            if (offset == transfer.getSize()) {
+                return;
+            }
+            
+            // El cliente alcanzo al emisor; las siguientes partes las recibe
+            // conforme lleguen.
+            if (offset == transfer.getReceived()) {
+                transfer.follow(client);
+            } else {
+                acknowledge(client, owner, id, client.getUsername(), offset);
+            }
+        }
+    }
+    
+    /**
+     * Envia un mensaje ACK a un cliente que soporta continuar transferencias.
+     * @param client El cliente.
+     * @param owner El emisor del archivo.
+     * @param id El identificador de la transferencia.
+     * @param receiver El receptor de una descarga, o null si es un envio.
+     * @param offset La cantidad de bytes confirmados, o -1 si el archivo ya no existe.
+     */
+    private void acknowledge(ChatClient client, String owner, String id, String receiver, long offset) {
+        if (!client.isResumeSupported()) return;
+        
+        ChatMessage ack = new ChatMessage(ChatMessage.Type.ACK, owner, receiver, null);
+        ack.setAttachment(id);
+        ack.setOffset(offset);
+        
+        client.send(ack);
+    }
+    
+    /**
+     * Registra el error de una tarea de archivos de un cliente y cancela la
+     * transferencia afectada: la descarga que pidio con FETCH, o el archivo
+     * que estaba enviando, que se elimina de la carpeta de transferencias.
+     * @param client El cliente.
+     * @param chat El mensaje que provoco el error.
+     * @param error El error ocurrido.
+     */
+    void abortTransfer(ChatClient client, ChatMessage chat, RuntimeException error) {
+        error("Se cancelo un archivo de [" + client + "] por un error: " + error + ".");
+        
+        String id = chat.getAttachment();
+        
+        if (ChatMessage.Type.FETCH == chat.getType()) {
+            acknowledge(client, chat.getReceiver(), id, client.getUsername(), -1);
+            return;
+        }
+        
+        ChatTransfer transfer = staging.get(client.getUsername(), id);
+        
+        if (transfer != null) {
+            staging.remove(transfer);
+        }
+        
+        acknowledge(client, client.getUsername(), id, null, -1);
+    }
+    
+    /**
+     * Envia una trama a un grupo de clientes, eliminando a los que ya no
+     * pueden recibir mensajes.
+     * @param receivers Los clientes.
+     * @param frame La trama a enviar.
+     */
+    private void sendAll(ChatClient[] receivers, ChatFrame frame) {
+        for (ChatClient client : receivers) {
+            if (!client.send(frame)) {
+                client.close();
+                leave(client);
             }
         }
     }
@@ -296,6 +1442,8 @@ public class ChatServer extends Thread {
      * @param chat El mensaje que se va a enviar.
      */
     private void unicast(ChatMessage chat) {
+        long start = System.nanoTime();
+        
         // Obtenemos el receptor
         ChatClient receiver = clients.get(chat.getReceiver());
         
@@ -312,6 +1460,7 @@ public class ChatServer extends Thread {
         switch (chat.getType()) {
             case MESSAGE:
                 response.setMessage(chat.getMessage());
+                response.setTime(chat.getTime());
                 break;
             case AUDIO:
                 response.setMessage("Haz enviado un mensaje de audio.");
@@ -325,45 +1474,69 @@ public class ChatServer extends Thread {
         sender.send(response);
         
         // Enviamos el mensaje al receptor.
-        if (!receiver.send(chat)) {
+        ChatFrame frame = new ChatFrame(chat, true);
+        
+        if (!receiver.send(frame)) {
             receiver.close();
-            clients.remove(receiver.getUsername());
+            leave(receiver);
         }
+        
+        relayed(frame, start);
     }
     
     /**
-     * Solicita una lista de usuarios conectados.
-     * @return La lista de usuarios conectados.
+     * Crea la lista de usuarios conectados, en orden alfabetico.
+     * El registro ya tiene los nombres ordenados, por lo que solo se
+     * recorren los nombres de la pagina.
+     * @param prefix Solo los nombres que empiezan con este prefijo, o null
+     *               para todos.
+     * @param after El ultimo nombre de la pagina anterior, o null para la
+     *              primera pagina.
+     * @param limit El numero maximo de nombres, o 0 para todos.
+     * @return Un mensaje CONNECTED_USERS con los nombres separados por comas
+     *         y con posicion 1 si aun hay mas nombres.
      */
-    private String getConnectedUsers() {
-        // Obtenemos el numero de clientes.
-        int size = clients.size();
-        
-        // Obtenemos una copia de los nombres de usuario.
-        String[] users = clients.keySet().toArray(new String[size]);
+    private ChatMessage getConnectedUsers(String prefix, String after, int limit) {
+        boolean filtered = (prefix != null && !prefix.isEmpty());
+        String from = after;
+        boolean inclusive = false;
         
-        // Ordenamos la lista.
-        Arrays.sort(users);
+        // Los nombres con el prefijo empiezan en el prefijo mismo.
+        if (filtered && (after == null || after.compareTo(prefix) < 0)) {
+            from = prefix;
+            inclusive = true;
+        }
         
-        // Creamos una cadena con todos los nombres de usuario.
-        StringBuilder builder = new StringBuilder(users[0]);
+        Iterator<String> usernames = clients.usernames(from, inclusive);
+        StringBuilder builder = new StringBuilder();
+        int count = 0;
+        boolean more = false;
         
-        for (int i = 1; i < size; ++i) {
-            builder.append(", ").append(users[i]);
+        while (usernames.hasNext()) {
+            String username = usernames.next();
+            
+            // Terminamos al salir del prefijo.
+            if (filtered && !username.startsWith(prefix)) break;
+            
+            if (limit > 0 && count == limit) {
+                more = true;
+                break;
+            }
+            
+            if (count++ > 0) {
+                builder.append(", ");
+            }
+            
+            builder.append(username);
         }
         
-        return builder.toString();
-    }
-    
-    /**
-     * Imprime un mensaje de informacion.
-     * @param message El mensaje a enviar.
-     * @param format true si se desea formatear el mensaje, false en caso contrario.
-     */
-    private void info(String message, boolean format) {
-        if (callback != null) {
-            callback.onMessageSent(format ? formatServerInfo(message) : message);
+        ChatMessage users = new ChatMessage(ChatMessage.Type.CONNECTED_USERS, builder.toString());
+        
+        if (more) {
+            users.setOffset(1);
         }
+        
+        return users;
     }
     
     /**
@@ -371,7 +1544,9 @@ public class ChatServer extends Thread {
      * @param message El mensaje a enviar.
      */
     private void info(String message) {
-        info(message, true);
+        if (events.accepts(ChatServerEvent.Kind.INFO)) {
+            events.publish(ChatServerEvent.info(message));
+        }
     }
     
     /**
@@ -379,8 +1554,8 @@ public class ChatServer extends Thread {
      * @param error El error ocurrido.
      */
     private void error(String error) {
-        if (callback != null) {
-            callback.onMessageSent(formatServerError(error));
+        if (events.accepts(ChatServerEvent.Kind.ERROR)) {
+            events.publish(ChatServerEvent.error(error));
         }
     }
     
@@ -392,40 +1567,13 @@ public class ChatServer extends Thread {
         error(error.getMessage());
     }
     
-    /**
-     * Realiza el formato de una hora.
-     * @param time La hora que se va a formatear.
-     * @return La hora formateada.
-     */
-    private String formatTime(Date time) {
-        return "(" + TIME_FORMAT.format(time) + ") > ";
-    }
-    
-    /**
-     * Realiza el formato de los saltos de linea de un mensaje..
-     * @param message El mensaje que se va a formatear.
-     * @return El mensaje con los saltos de lineas formateadas.
-     */
-    private String formatNewlines(String message) {
-        return message.replaceAll("\n", "\n" + MESSAGE_PADDING);
-    }
-    
-    /**
-     * Realiza el formato de un mensaje de un cliente.
-     * @param chat El mensaje que se va a formatear.
-     * @return El mensaje formateado.
-     */
-    private String formatClientMessage(ChatMessage chat) {
-        return formatTime(new Date()) + "[" + chat.getSender() + "] dice:" + formatNewlines("\n" + chat.getMessage());
-    }
-    
     /**
      * Realiza el formato de un mensaje del servidor.
      * @param message El mensaje que se va a formatear.
      * @return El mensaje formateado.
      */
     private String formatServerMessage(String message) {
-        return formatTime(new Date()) + "[" + SERVER_USERNAME + "]" + formatNewlines("\n" + message);
+        return ChatFormat.formatNotice(System.currentTimeMillis(), "[" + SERVER_USERNAME + "]", ChatFormat.formatLines(message));
     }
     
     /**
@@ -434,16 +1582,37 @@ public class ChatServer extends Thread {
      * @return El mensaje formateado.
      */
     private String formatServerInfo(String message) {
-        return formatTime(new Date()) + message;
+        return ChatFormat.formatNotice(System.currentTimeMillis(), null, message);
     }
     
     /**
-     * Realiza el formato de un mensaje de error del servidor.
-     * @param error El mensaje que se va a formatear.
-     * @return El mensaje formateado.
+     * Entrega el texto de los eventos a un ChatServerListener. Los mensajes
+     * privados no se muestran.
      */
-    private String formatServerError(String error) {
-        return formatTime(new Date()) + "ERROR: " + error;
+    private static final class ConsoleListener implements ChatServerEventListener {
+        
+        private final ChatServerListener callback;
+        
+        ConsoleListener(ChatServerListener callback) {
+            this.callback = callback;
+        }
+        
+        @Override
+        public Set<ChatServerEvent.Kind> getEvents() {
+            return EnumSet.allOf(ChatServerEvent.Kind.class);
+        }
+        
+        @Override
+        public void onEvent(ChatServerEvent event) {
+            ChatMessage message = event.getMessage();
+            
+            if (message != null && message.isPrivateMessage()) {
+                return;
+            }
+            
+            callback.onMessageSent(event.format());
+        }
+        
     }
 
     /**
@@ -0,0 +1,624 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Configuracion del servidor de chat.
+ * Los valores por defecto pueden sobreescribirse con propiedades del sistema
+ * al iniciar la aplicacion (por ejemplo: -Dinchat.server.engine=nio).
+ *
+ * @author wetteifer
+ */
+public class ChatServerConfig {
+
+    /**
+     * Puerto en el que escucha el servidor si no se indica otra direccion.
+     */
+    public static final int DEFAULT_PORT = 8080;
+
+    public enum Engine {
+
+        /**
+         * Un hilo por cada cliente conectado, con E/S bloqueante.
+         */
+        THREAD,
+
+        /**
+         * Un conjunto fijo de ciclos de eventos basados en selectores (NIO)
+         * que atienden a todas las conexiones.
+         */
+        NIO,
+
+        /**
+         * Igual que THREAD, pero cada cliente es atendido por un hilo virtual
+         * (Java 21 o superior), lo que permite mantener decenas de miles de
+         * conexiones inactivas con poca memoria.
+         */
+        VIRTUAL
+
+    }
+
+    private Engine engine;
+    private List<InetSocketAddress> addresses;
+    private int acceptors;
+    private int backlog;
+    private boolean reusePort;
+    private boolean tcpNoDelay;
+    private boolean keepAlive;
+    private int sendBufferSize;
+    private int receiveBufferSize;
+    private int eventLoops;
+    private int outboxCapacity;
+    private long outboxBytes;
+    private ChatOutbox.Policy outboxPolicy;
+    private long handshakeTimeout;
+    private int handshakeThreads;
+    private int handshakeQueue;
+    private int fileThreads;
+    private File stagingFolder;
+    private long stagingTimeout;
+    private File blobFolder;
+    private String[] compressions;
+    private int compressionThreshold;
+    private int compressionBudget;
+    private long coalesceDelay;
+    private int coalesceFrames;
+    private int coalesceBytes;
+    private long pingInterval;
+    private long presenceTick;
+    private int presenceThreshold;
+    private int eventCapacity;
+    private ChatEventQueue.Policy eventPolicy;
+
+    /**
+     * Crea una configuracion con los valores por defecto.
+     */
+    public ChatServerConfig() {
+        engine = Engine.THREAD;
+        addresses = Collections.singletonList(new InetSocketAddress(DEFAULT_PORT));
+        acceptors = 1;
+        backlog = 1024;
+        reusePort = true;
+        tcpNoDelay = true;
+        keepAlive = true;
+        eventLoops = Runtime.getRuntime().availableProcessors();
+        outboxCapacity = 1024;
+        outboxBytes = 32L * 1024 * 1024;
+        outboxPolicy = ChatOutbox.Policy.DROP_ATTACHMENTS;
+        handshakeTimeout = 10000;
+        handshakeThreads = 64;
+        handshakeQueue = 1024;
+        fileThreads = 2;
+        stagingFolder = new File(System.getProperty("user.dir"), "inchat-staging");
+        stagingTimeout = 60L * 60 * 1000;
+        blobFolder = new File(System.getProperty("user.dir"), "inchat-blobs");
+        compressions = ChatCompression.names();
+        compressionThreshold = 128;
+        compressionBudget = 25;
+        coalesceDelay = 1000;
+        coalesceFrames = 64;
+        coalesceBytes = 64 * 1024;
+        pingInterval = 5000;
+        presenceTick = 1000;
+        presenceThreshold = 10;
+        eventCapacity = 8192;
+        eventPolicy = ChatEventQueue.Policy.DROP;
+    }
+
+    /**
+     * Crea una configuracion a partir de las propiedades del sistema.
+     * @return La configuracion leida.
+     */
+    public static ChatServerConfig fromSystemProperties() {
+        ChatServerConfig config = new ChatServerConfig();
+
+        String engine = System.getProperty("inchat.server.engine");
+
+        if (engine != null) {
+            config.setEngine(Engine.valueOf(engine.trim().toUpperCase()));
+        }
+
+        String listen = System.getProperty("inchat.server.listen");
+
+        if (listen != null) {
+            config.setAddresses(parseAddresses(listen));
+        }
+
+        config.setAcceptors(Integer.getInteger("inchat.server.acceptors", config.getAcceptors()));
+        config.setBacklog(Integer.getInteger("inchat.server.backlog", config.getBacklog()));
+        config.setReusePort(getBoolean("inchat.server.reuseport", config.isReusePort()));
+        config.setTcpNoDelay(getBoolean("inchat.server.tcpnodelay", config.isTcpNoDelay()));
+        config.setKeepAlive(getBoolean("inchat.server.keepalive", config.isKeepAlive()));
+        config.setSendBufferSize(Integer.getInteger("inchat.server.sndbuf", config.getSendBufferSize()));
+        config.setReceiveBufferSize(Integer.getInteger("inchat.server.rcvbuf", config.getReceiveBufferSize()));
+        config.setEventLoops(Integer.getInteger("inchat.server.loops", config.getEventLoops()));
+        config.setOutboxCapacity(Integer.getInteger("inchat.server.outbox.frames", config.getOutboxCapacity()));
+        config.setOutboxBytes(Long.getLong("inchat.server.outbox.bytes", config.getOutboxBytes()));
+
+        String policy = System.getProperty("inchat.server.outbox.policy");
+
+        if (policy != null) {
+            config.setOutboxPolicy(ChatOutbox.Policy.valueOf(policy.trim().toUpperCase()));
+        }
+
+        config.setHandshakeTimeout(Long.getLong("inchat.server.handshake.timeout", config.getHandshakeTimeout()));
+        config.setHandshakeThreads(Integer.getInteger("inchat.server.handshake.threads", config.getHandshakeThreads()));
+        config.setHandshakeQueue(Integer.getInteger("inchat.server.handshake.queue", config.getHandshakeQueue()));
+        config.setFileThreads(Integer.getInteger("inchat.server.files.threads", config.getFileThreads()));
+
+        String staging = System.getProperty("inchat.server.staging");
+
+        if (staging != null) {
+            config.setStagingFolder(new File(staging.trim()));
+        }
+
+        config.setStagingTimeout(Long.getLong("inchat.server.staging.timeout", config.getStagingTimeout()));
+
+        String blobs = System.getProperty("inchat.server.blobs");
+
+        if (blobs != null) {
+            config.setBlobFolder(new File(blobs.trim()));
+        }
+
+        String compression = System.getProperty("inchat.server.compression");
+
+        if (compression != null) {
+            config.setCompressions(compression.trim().split("\\s*,\\s*"));
+        }
+
+        config.setCompressionThreshold(Integer.getInteger("inchat.server.compression.threshold", config.getCompressionThreshold()));
+        config.setCompressionBudget(Integer.getInteger("inchat.server.compression.budget", config.getCompressionBudget()));
+        config.setCoalesceDelay(Long.getLong("inchat.server.coalesce.delay", config.getCoalesceDelay()));
+        config.setCoalesceFrames(Integer.getInteger("inchat.server.coalesce.frames", config.getCoalesceFrames()));
+        config.setCoalesceBytes(Integer.getInteger("inchat.server.coalesce.bytes", config.getCoalesceBytes()));
+        config.setPingInterval(Long.getLong("inchat.server.ping", config.getPingInterval()));
+        config.setPresenceTick(Long.getLong("inchat.server.presence.tick", config.getPresenceTick()));
+        config.setPresenceThreshold(Integer.getInteger("inchat.server.presence.threshold", config.getPresenceThreshold()));
+        config.setEventCapacity(Integer.getInteger("inchat.server.events.capacity", config.getEventCapacity()));
+
+        String eventPolicy = System.getProperty("inchat.server.events.policy");
+
+        if (eventPolicy != null) {
+            config.setEventPolicy(ChatEventQueue.Policy.valueOf(eventPolicy.trim().toUpperCase()));
+        }
+
+        return config;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Convierte una lista de direcciones separadas por comas, de la forma
+     * "host:puerto" o ":puerto", en direcciones de socket. Si no se indica
+     * el host, el servidor escucha en todas las interfaces.
+     * @param list La lista de direcciones.
+     * @return Las direcciones leidas.
+     */
+    public static List<InetSocketAddress> parseAddresses(String list) {
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+
+        for (String address : list.split(",")) {
+            address = address.trim();
+
+            if (address.isEmpty()) continue;
+
+            int colon = address.lastIndexOf(':');
+            String host = (colon < 0) ? "" : address.substring(0, colon);
+            int port = (colon < 0) ? DEFAULT_PORT : Integer.parseInt(address.substring(colon + 1));
+
+            // Quitamos los corchetes de las direcciones IPv6.
+            if (host.startsWith("[") && host.endsWith("]")) {
+                host = host.substring(1, host.length() - 1);
+            }
+
+            if (host.isEmpty() || "*".equals(host)) {
+                addresses.add(new InetSocketAddress(port));
+            } else {
+                addresses.add(new InetSocketAddress(host, port));
+            }
+        }
+
+        return addresses;
+    }
+
+    public List<InetSocketAddress> getAddresses() {
+        return addresses;
+    }
+
+    /**
+     * Establece las direcciones en las que escucha el servidor.
+     * @param addresses Las direcciones; debe haber al menos una.
+     */
+    public void setAddresses(List<InetSocketAddress> addresses) {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("Se necesita al menos una direccion.");
+        }
+        this.addresses = Collections.unmodifiableList(new ArrayList<InetSocketAddress>(addresses));
+    }
+
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * Establece el numero de hilos que aceptan conexiones en cada direccion.
+     * Con SO_REUSEPORT cada hilo tiene su propio socket y el sistema operativo
+     * reparte las conexiones; sin el, los hilos comparten un solo socket.
+     * @param acceptors El numero de hilos por direccion.
+     */
+    public void setAcceptors(int acceptors) {
+        this.acceptors = Math.max(1, acceptors);
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Establece el tamaño de la cola de conexiones pendientes de aceptar.
+     * El sistema operativo puede limitarlo (por ejemplo, net.core.somaxconn).
+     * @param backlog El numero de conexiones.
+     */
+    public void setBacklog(int backlog) {
+        this.backlog = Math.max(1, backlog);
+    }
+
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * Indica si se debe usar SO_REUSEPORT cuando haya varios hilos aceptadores.
+     * Solo tiene efecto en Java 9 o superior y en sistemas que lo soporten.
+     * @param reusePort true para usar SO_REUSEPORT.
+     */
+    public void setReusePort(boolean reusePort) {
+        this.reusePort = reusePort;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * Establece el tamaño del buffer de envio de cada conexion.
+     * @param sendBufferSize El tamaño en bytes, o 0 para usar el del sistema.
+     */
+    public void setSendBufferSize(int sendBufferSize) {
+        this.sendBufferSize = Math.max(0, sendBufferSize);
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Establece el tamaño del buffer de recepcion de cada conexion.
+     * @param receiveBufferSize El tamaño en bytes, o 0 para usar el del sistema.
+     */
+    public void setReceiveBufferSize(int receiveBufferSize) {
+        this.receiveBufferSize = Math.max(0, receiveBufferSize);
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    public void setEventLoops(int eventLoops) {
+        this.eventLoops = Math.max(1, eventLoops);
+    }
+
+    public int getOutboxCapacity() {
+        return outboxCapacity;
+    }
+
+    /**
+     * Establece el numero maximo de tramas pendientes por cliente.
+     * @param outboxCapacity El numero de tramas.
+     */
+    public void setOutboxCapacity(int outboxCapacity) {
+        this.outboxCapacity = Math.max(1, outboxCapacity);
+    }
+
+    public long getOutboxBytes() {
+        return outboxBytes;
+    }
+
+    /**
+     * Establece el numero maximo de bytes pendientes por cliente.
+     * Una sola trama mas grande que este limite siempre se acepta si la
+     * cola esta vacia.
+     * @param outboxBytes El numero de bytes.
+     */
+    public void setOutboxBytes(long outboxBytes) {
+        this.outboxBytes = Math.max(1, outboxBytes);
+    }
+
+    public ChatOutbox.Policy getOutboxPolicy() {
+        return outboxPolicy;
+    }
+
+    /**
+     * Establece que hacer cuando la cola de salida de un cliente esta llena.
+     * @param outboxPolicy La politica a aplicar.
+     */
+    public void setOutboxPolicy(ChatOutbox.Policy outboxPolicy) {
+        this.outboxPolicy = outboxPolicy;
+    }
+
+    public long getHandshakeTimeout() {
+        return handshakeTimeout;
+    }
+
+    /**
+     * Establece el tiempo maximo para que un cliente inicie sesion desde
+     * que su conexion fue aceptada.
+     * @param handshakeTimeout El tiempo en milisegundos.
+     */
+    public void setHandshakeTimeout(long handshakeTimeout) {
+        this.handshakeTimeout = Math.max(1, handshakeTimeout);
+    }
+
+    public int getHandshakeThreads() {
+        return handshakeThreads;
+    }
+
+    /**
+     * Establece el numero maximo de hilos que atienden inicios de sesion
+     * (solo para los motores THREAD y VIRTUAL).
+     * @param handshakeThreads El numero de hilos.
+     */
+    public void setHandshakeThreads(int handshakeThreads) {
+        this.handshakeThreads = Math.max(1, handshakeThreads);
+    }
+
+    public int getHandshakeQueue() {
+        return handshakeQueue;
+    }
+
+    /**
+     * Establece el numero maximo de conexiones en espera de ser atendidas
+     * por los hilos de inicio de sesion. Las conexiones que excedan este
+     * limite se cierran de inmediato.
+     * @param handshakeQueue El numero de conexiones.
+     */
+    public void setHandshakeQueue(int handshakeQueue) {
+        this.handshakeQueue = Math.max(1, handshakeQueue);
+    }
+
+    public int getFileThreads() {
+        return fileThreads;
+    }
+
+    /**
+     * Establece el numero de hilos que leen y escriben en disco las partes
+     * de los archivos adjuntos, para que los hilos de red no esperen al disco.
+     * @param fileThreads El numero de hilos.
+     */
+    public void setFileThreads(int fileThreads) {
+        this.fileThreads = Math.max(1, fileThreads);
+    }
+
+    public File getStagingFolder() {
+        return stagingFolder;
+    }
+
+    /**
+     * Establece la carpeta donde se guardan los archivos adjuntos mientras
+     * se reciben. Las transferencias incompletas se recuperan al iniciar el
+     * servidor.
+     * @param stagingFolder La carpeta.
+     */
+    public void setStagingFolder(File stagingFolder) {
+        this.stagingFolder = stagingFolder;
+    }
+
+    public long getStagingTimeout() {
+        return stagingTimeout;
+    }
+
+    /**
+     * Establece cuanto tiempo se conserva un archivo adjunto desde su ultimo
+     * uso, para que los clientes que perdieron la conexion puedan continuar
+     * su envio o su descarga.
+     * @param stagingTimeout El tiempo en milisegundos.
+     */
+    public void setStagingTimeout(long stagingTimeout) {
+        this.stagingTimeout = Math.max(1, stagingTimeout);
+    }
+
+    public File getBlobFolder() {
+        return blobFolder;
+    }
+
+    /**
+     * Establece la carpeta donde se guardan los archivos adjuntos completos,
+     * una sola vez por contenido. A diferencia de la carpeta de
+     * transferencias, su contenido se conserva entre ejecuciones.
+     * @param blobFolder La carpeta.
+     */
+    public void setBlobFolder(File blobFolder) {
+        this.blobFolder = blobFolder;
+    }
+
+    public String[] getCompressions() {
+        return compressions;
+    }
+
+    /**
+     * Establece las compresiones que el servidor acepta. Se usa la primera
+     * que ofrezca el cliente; "none" desactiva la compresion.
+     * @param compressions Los nombres de las compresiones.
+     */
+    public void setCompressions(String... compressions) {
+        this.compressions = compressions;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Establece el tamaño minimo de las tramas que se comprimen.
+     * @param compressionThreshold El tamaño en bytes.
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = Math.max(1, compressionThreshold);
+    }
+
+    public int getCompressionBudget() {
+        return compressionBudget;
+    }
+
+    /**
+     * Establece el tiempo de CPU que el servidor puede usar para comprimir.
+     * Al agotarse, las tramas se envian sin comprimir hasta el siguiente
+     * segundo.
+     * @param compressionBudget El porcentaje de un procesador, entre 0 y 100.
+     */
+    public void setCompressionBudget(int compressionBudget) {
+        this.compressionBudget = Math.max(0, Math.min(100, compressionBudget));
+    }
+
+    public long getCoalesceDelay() {
+        return coalesceDelay;
+    }
+
+    /**
+     * Establece cuanto puede esperar una trama para escribirse junto con las
+     * siguientes durante una rafaga. Con 0 cada trama se escribe en cuanto
+     * se encola.
+     * @param coalesceDelay El tiempo maximo en microsegundos.
+     */
+    public void setCoalesceDelay(long coalesceDelay) {
+        this.coalesceDelay = Math.max(0, coalesceDelay);
+    }
+
+    public int getCoalesceFrames() {
+        return coalesceFrames;
+    }
+
+    /**
+     * Establece el numero maximo de tramas que se escriben juntas.
+     * @param coalesceFrames El numero de tramas.
+     */
+    public void setCoalesceFrames(int coalesceFrames) {
+        this.coalesceFrames = Math.max(1, coalesceFrames);
+    }
+
+    public int getCoalesceBytes() {
+        return coalesceBytes;
+    }
+
+    /**
+     * Establece el numero maximo de bytes que se escriben juntos.
+     * @param coalesceBytes El numero de bytes.
+     */
+    public void setCoalesceBytes(int coalesceBytes) {
+        this.coalesceBytes = Math.max(1024, coalesceBytes);
+    }
+
+    public long getPingInterval() {
+        return pingInterval;
+    }
+
+    /**
+     * Establece cada cuanto se mide el tiempo de ida y vuelta de los clientes
+     * que responden PING. Con 0 no se mide.
+     * @param pingInterval El tiempo en milisegundos.
+     */
+    public void setPingInterval(long pingInterval) {
+        this.pingInterval = Math.max(0, pingInterval);
+    }
+
+    public long getPresenceTick() {
+        return presenceTick;
+    }
+
+    /**
+     * Establece la duracion del periodo en el que se cuentan los avisos de
+     * entrada y salida de usuarios. Los avisos que pasen del limite se
+     * envian juntos al terminar el periodo. Con 0 cada aviso se envia solo.
+     * @param presenceTick La duracion en milisegundos.
+     */
+    public void setPresenceTick(long presenceTick) {
+        this.presenceTick = Math.max(0, presenceTick);
+    }
+
+    public int getPresenceThreshold() {
+        return presenceThreshold;
+    }
+
+    /**
+     * Establece cuantos avisos de entrada y salida se envian uno por uno en
+     * cada periodo antes de juntarlos.
+     * @param presenceThreshold El numero de avisos; con 0 siempre se juntan.
+     */
+    public void setPresenceThreshold(int presenceThreshold) {
+        this.presenceThreshold = Math.max(0, presenceThreshold);
+    }
+
+    public int getEventCapacity() {
+        return eventCapacity;
+    }
+
+    /**
+     * Establece el numero maximo de eventos pendientes de entregar al
+     * oyente del servidor.
+     * @param eventCapacity El numero de eventos.
+     */
+    public void setEventCapacity(int eventCapacity) {
+        this.eventCapacity = Math.max(2, eventCapacity);
+    }
+
+    public ChatEventQueue.Policy getEventPolicy() {
+        return eventPolicy;
+    }
+
+    /**
+     * Establece la politica a aplicar cuando la cola de eventos esta llena.
+     * @param eventPolicy La politica a aplicar.
+     */
+    public void setEventPolicy(ChatEventQueue.Policy eventPolicy) {
+        this.eventPolicy = eventPolicy;
+    }
+
+    /**
+     * Lee una propiedad booleana del sistema.
+     */
+    private static boolean getBoolean(String key, boolean value) {
+        String property = System.getProperty(key);
+        return (property == null) ? value : Boolean.parseBoolean(property.trim());
+    }
+
+}
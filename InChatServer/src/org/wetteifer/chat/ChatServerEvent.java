@@ -0,0 +1,240 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+/**
+ * Un evento del servidor para sus oyentes.
+ * El evento solo guarda los datos; el texto para mostrarlo se arma la
+ * primera vez que se pide con format(), desde el hilo de los oyentes.
+ *
+ * @author wetteifer
+ */
+public final class ChatServerEvent {
+
+    public enum Kind {
+
+        /**
+         * Un aviso del servidor (inicio, estadisticas, cierre).
+         */
+        INFO,
+
+        /**
+         * Un usuario inicio sesion.
+         */
+        CONNECTED,
+
+        /**
+         * Un usuario cerro sesion o perdio la conexion.
+         */
+        DISCONNECTED,
+
+        /**
+         * Se rechazo una conexion antes de iniciar sesion. El usuario puede
+         * ser nulo si el cliente aun no lo habia indicado.
+         */
+        LOGIN_REJECTED,
+
+        /**
+         * Se reenvio un mensaje a otros clientes.
+         */
+        MESSAGE_RELAYED,
+
+        /**
+         * Un error.
+         */
+        ERROR
+
+    }
+
+    private final Kind kind;
+    private final long time;
+    private final String username;
+    private final String detail;
+    private final ChatMessage message;
+    private final int recipients;
+    private final long bytes;
+    private final long latency;
+    private volatile String text;
+
+    private ChatServerEvent(Kind kind, String username, String detail, ChatMessage message, int recipients, long bytes, long latency) {
+        this.kind = kind;
+        this.time = System.currentTimeMillis();
+        this.username = username;
+        this.detail = detail;
+        this.message = message;
+        this.recipients = recipients;
+        this.bytes = bytes;
+        this.latency = latency;
+    }
+
+    /**
+     * Crea un aviso del servidor.
+     * @param detail El aviso.
+     * @return El evento.
+     */
+    public static ChatServerEvent info(String detail) {
+        return new ChatServerEvent(Kind.INFO, null, detail, null, 0, 0, 0);
+    }
+
+    /**
+     * Crea un error.
+     * @param detail La descripcion del error.
+     * @return El evento.
+     */
+    public static ChatServerEvent error(String detail) {
+        return new ChatServerEvent(Kind.ERROR, null, detail, null, 0, 0, 0);
+    }
+
+    /**
+     * Crea el evento de un inicio de sesion.
+     * @param username El usuario.
+     * @return El evento.
+     */
+    public static ChatServerEvent connected(String username) {
+        return new ChatServerEvent(Kind.CONNECTED, username, null, null, 0, 0, 0);
+    }
+
+    /**
+     * Crea el evento de un cierre de sesion o una desconexion.
+     * @param username El usuario.
+     * @return El evento.
+     */
+    public static ChatServerEvent disconnected(String username) {
+        return new ChatServerEvent(Kind.DISCONNECTED, username, null, null, 0, 0, 0);
+    }
+
+    /**
+     * Crea el evento de una conexion rechazada.
+     * @param username El usuario, o null si no se conoce.
+     * @param reason El motivo del rechazo.
+     * @return El evento.
+     */
+    public static ChatServerEvent rejected(String username, String reason) {
+        return new ChatServerEvent(Kind.LOGIN_REJECTED, username, reason, null, 0, 0, 0);
+    }
+
+    /**
+     * Crea el evento de un mensaje reenviado.
+     * @param message El mensaje.
+     * @param recipients El numero de clientes que lo recibieron.
+     * @param bytes Los bytes encolados para todos los receptores.
+     * @param latency El tiempo que tomo encolarlo a todos, en nanosegundos.
+     * @return El evento.
+     */
+    public static ChatServerEvent relayed(ChatMessage message, int recipients, long bytes, long latency) {
+        return new ChatServerEvent(Kind.MESSAGE_RELAYED, message.getSender(), null, message, recipients, bytes, latency);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Regresa la hora del evento.
+     * @return Los milisegundos desde 1970.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Regresa el usuario del evento.
+     * @return El usuario, o null si el evento no es de un usuario.
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Regresa el aviso, el error o el motivo del rechazo.
+     * @return El texto sin formato, o null.
+     */
+    public String getDetail() {
+        return detail;
+    }
+
+    /**
+     * Regresa el mensaje reenviado.
+     * @return El mensaje, o null si el evento no es MESSAGE_RELAYED.
+     */
+    public ChatMessage getMessage() {
+        return message;
+    }
+
+    /**
+     * Regresa el tipo del mensaje reenviado.
+     * @return El tipo, o null si el evento no es MESSAGE_RELAYED.
+     */
+    public ChatMessage.Type getMessageType() {
+        return (message != null) ? message.getType() : null;
+    }
+
+    public int getRecipients() {
+        return recipients;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Regresa el tiempo que tomo encolar el mensaje a todos sus receptores.
+     * @return El tiempo en nanosegundos.
+     */
+    public long getLatency() {
+        return latency;
+    }
+
+    /**
+     * Regresa el texto del evento para mostrarlo en una consola. Se arma
+     * solo la primera vez que se pide.
+     * @return El texto con la hora.
+     */
+    public String format() {
+        String result = text;
+
+        if (result == null) {
+            result = createText();
+            text = result;
+        }
+
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return format();
+    }
+
+    /**
+     * Arma el texto del evento.
+     */
+    private String createText() {
+        switch (kind) {
+            case CONNECTED:
+                return ChatFormat.formatNotice(time, null, "El usuario [" + username + "] se ha conectado.");
+            case DISCONNECTED:
+                return ChatFormat.formatNotice(time, null, "El usuario [" + username + "] se ha desconectado.");
+            case LOGIN_REJECTED:
+                return ChatFormat.formatNotice(time, null, "Conexion rechazada" +
+                        (username != null ? " de [" + username + "]" : "") + ": " + detail);
+            case MESSAGE_RELAYED:
+                ChatMessage.Type type = message.getType();
+
+                // Los mensajes de texto se muestran como los ven los usuarios.
+                if (ChatMessage.Type.MESSAGE == type || ChatMessage.Type.INFO == type) {
+                    return ChatFormat.formatMessage(message);
+                }
+
+                return ChatFormat.formatNotice(time, null, "[" + username + "] envio " + type +
+                        " a " + recipients + (recipients == 1 ? " usuario (" : " usuarios (") + bytes + " bytes).");
+            case ERROR:
+                return ChatFormat.formatNotice(time, "ERROR: ", detail);
+            default:
+                return ChatFormat.formatNotice(time, null, detail);
+        }
+    }
+
+}
@@ -0,0 +1,31 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.util.Set;
+
+/**
+ * Oyente de los eventos del servidor.
+ * Los eventos se entregan en orden desde el hilo de la cola de eventos.
+ *
+ * @author wetteifer
+ */
+public interface ChatServerEventListener {
+
+    /**
+     * Regresa los tipos de evento que le interesan al oyente. Se consulta
+     * una sola vez, al agregar el oyente; el servidor no crea los eventos
+     * que ningun oyente quiere.
+     * @return Los tipos de evento.
+     */
+    Set<ChatServerEvent.Kind> getEvents();
+
+    /**
+     * Recibe un evento.
+     * @param event El evento.
+     */
+    void onEvent(ChatServerEvent event);
+
+}
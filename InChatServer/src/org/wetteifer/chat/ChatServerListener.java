@@ -5,6 +5,8 @@
 package org.wetteifer.chat;
 
 /**
+ * Oyente que recibe el texto de los eventos del servidor, como una consola.
+ * Para recibir los eventos con sus datos se usa ChatServerEventListener.
  *
  * @author wetteifer
  */
@@ -0,0 +1,281 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Cliente del servidor atendido por su propio hilo con E/S bloqueante.
+ * Las tramas de la cola de salida las escribe un hilo del grupo de
+ * escritores del servidor, solo mientras hay tramas pendientes; asi un
+ * cliente inactivo no ocupa un segundo hilo. Cada escritura junta las
+ * tramas que se encolaron durante una rafaga.
+ *
+ * @author wetteifer
+ */
+public class ChatSocketClient extends ChatClient implements Runnable {
+
+    // Arreglo donde cada hilo escritor junta las tramas de una escritura;
+    // lo comparten todos los clientes que atiende ese hilo, para que un
+    // cliente inactivo no retenga uno.
+    private static final ThreadLocal<byte[]> BATCH = new ThreadLocal<byte[]>();
+
+    private final Socket client;
+    private final boolean virtual;
+    private final AtomicBoolean writing;
+    private final Runnable writer;
+    private OutputStream output;
+    private DataInputStream input;
+    private volatile boolean closing;
+
+    /**
+     * Crea un nuevo cliente para el servidor de chat.
+     * @param server El servidor de chat.
+     * @param client El socket del cliente.
+     */
+    public ChatSocketClient(ChatServer server, Socket client) {
+        this(server, client, false);
+    }
+
+    /**
+     * Crea un nuevo cliente para el servidor de chat.
+     * @param server El servidor de chat.
+     * @param client El socket del cliente.
+     * @param virtual true si el cliente debe ser atendido por un hilo virtual.
+     */
+    public ChatSocketClient(ChatServer server, Socket client, boolean virtual) {
+        super(server);
+        this.client = client;
+        this.virtual = virtual;
+        this.writing = new AtomicBoolean();
+        this.writer = new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        };
+    }
+
+    /**
+     * Cola para los mensajes recibidos del cliente.
+     */
+    @Override
+    public void run() {
+        while (!isClosed()) {
+            // Leemos un mensaje.
+            ChatMessage chat = receive();
+
+            // Si el mensaje no se pudo leer, perdimos la conexion
+            // con el cliente.
+            if (chat == null) {
+                disconnected();
+                break;
+            }
+
+            try {
+                dispatch(chat);
+            } catch (RuntimeException e) {
+                failed(e);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Inicializa los flujos de E/S del cliente.
+     * @throws ChatException Si hubo algun error al inicializar los flujos.
+     */
+    public void init() throws ChatException {
+        try {
+            output = client.getOutputStream();
+            input  = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+        } catch (IOException e) {
+            throw new ChatException("No se pudo inicializar el cliente.");
+        }
+    }
+
+    /**
+     * Espera el mensaje de inicio de sesion del cliente.
+     * Este metodo debe de ser el primero en llamarse en el lado del servidor.
+     * Si el cliente no inicia sesion a tiempo, el servidor lo cierra y este
+     * metodo regresa false.
+     * @return true si se obtuvo el nombre de usuario, false en caso contrario.
+     */
+    public boolean handshake() {
+        return login(receive());
+    }
+
+    /**
+     * Inicia el hilo receptor de mensajes del cliente.
+     */
+    public void start() {
+        ChatThreads.start(this, "ChatClient-" + getUsername(), virtual);
+    }
+
+    @Override
+    public void close() {
+        closing = true;
+        outbox.close();
+
+        // El escritor envia lo pendiente y cierra el socket.
+        requestFlush();
+    }
+
+    @Override
+    public void abort() {
+        closing = true;
+        outbox.clear();
+
+        try {
+            client.close();
+        } catch (IOException e) {}
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closing || client.isClosed();
+    }
+
+    @Override
+    protected void requestFlush() {
+        // Solo un escritor a la vez; si ya hay uno, el vera la trama nueva.
+        if (!writing.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            server.getWriters().execute(writer);
+        } catch (RejectedExecutionException e) {
+            // El servidor se esta cerrando.
+            writing.set(false);
+            abort();
+        }
+    }
+
+    /**
+     * Escribe las tramas de la cola de salida hasta vaciarla, y cierra el
+     * socket si la cola ya se cerro. Cada escritura lleva todas las tramas
+     * pendientes que quepan en ella.
+     */
+    private void write() {
+        List<byte[]> frames = new ArrayList<byte[]>();
+        int maxFrames = coalescer.getMaxFrames();
+        int maxBytes = coalescer.getMaxBytes();
+
+        try {
+            while (true) {
+                byte[] frame = outbox.poll();
+
+                if (frame == null) {
+                    if (outbox.isDone()) break;
+
+                    // Soltamos la cola; si mientras tanto llego otra trama o
+                    // se cerro la cola, quien lo hizo no inicio otro
+                    // escritor y seguimos nosotros.
+                    writing.set(false);
+
+                    if ((outbox.size() == 0 && !outbox.isDone()) || !writing.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+
+                // Durante una rafaga esperamos un poco a que lleguen mas
+                // tramas para escribirlas juntas.
+                long delay = closing ? 0 : coalescer.getDelay(outbox.size() + 1);
+
+                if (delay > 0) {
+                    outbox.await(maxFrames - 1, delay);
+                }
+
+                frames.add(frame);
+
+                if (frame.length < maxBytes) {
+                    outbox.drainTo(frames, maxFrames - 1, maxBytes - frame.length);
+                }
+
+                if (frames.size() == 1) {
+                    output.write(frame);
+                } else {
+                    output.write(join(frames, maxBytes), 0, length(frames));
+                }
+
+                coalescer.written(frames.size());
+                frames.clear();
+            }
+        } catch (IOException e) {
+            // Perdimos la conexion con el cliente.
+        } catch (InterruptedException e) {
+            // El hilo fue interrumpido; cerramos el cliente.
+        }
+
+        abort();
+    }
+
+    /**
+     * Copia las tramas, una tras otra, al arreglo del hilo escritor actual.
+     * @param frames Las tramas.
+     * @param size El tamaño minimo del arreglo.
+     * @return El arreglo con las tramas al inicio.
+     */
+    private static byte[] join(List<byte[]> frames, int size) {
+        byte[] batch = BATCH.get();
+        int length = length(frames);
+
+        if (batch == null || batch.length < Math.max(size, length)) {
+            batch = new byte[Math.max(size, length)];
+            BATCH.set(batch);
+        }
+
+        int offset = 0;
+
+        for (byte[] pending : frames) {
+            System.arraycopy(pending, 0, batch, offset, pending.length);
+            offset += pending.length;
+        }
+
+        return batch;
+    }
+
+    /**
+     * Regresa la suma de las longitudes de las tramas.
+     */
+    private static int length(List<byte[]> frames) {
+        int length = 0;
+
+        for (byte[] pending : frames) {
+            length += pending.length;
+        }
+
+        return length;
+    }
+
+    /**
+     * Lee un mensaje del cliente.
+     * @return El mensaje leido del cliente o null si no se pudo leer un mensaje.
+     */
+    private ChatMessage receive() {
+        try {
+            ChatCodec codec = getCodec();
+            byte[] frame = codec.readFrame(input);
+            
+            traffic.received(ChatCodec.HEADER_SIZE + codec.getDecodedLength(frame, 0, frame.length),
+                    ChatCodec.HEADER_SIZE + frame.length);
+            
+            return codec.decode(frame, 0, frame.length);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+}
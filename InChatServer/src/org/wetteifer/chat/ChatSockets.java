@@ -0,0 +1,92 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.lang.reflect.Method;
+import java.net.ServerSocket;
+import java.util.Set;
+
+/**
+ * Opciones de socket que no existen en todas las versiones de Java.
+ * SO_REUSEPORT solo existe a partir de Java 9, por lo que se obtiene por
+ * reflexion; en versiones anteriores simplemente no se usa.
+ *
+ * @author wetteifer
+ */
+public final class ChatSockets {
+
+    private static final Object REUSE_PORT;
+    private static final Method SOCKET_SET_OPTION;
+    private static final Method SOCKET_SUPPORTED_OPTIONS;
+    private static final Method CHANNEL_SET_OPTION;
+    private static final Method CHANNEL_SUPPORTED_OPTIONS;
+
+    static {
+        Object reusePort = null;
+        Method socketSetOption = null;
+        Method socketSupportedOptions = null;
+        Method channelSetOption = null;
+        Method channelSupportedOptions = null;
+
+        try {
+            Class<?> option  = Class.forName("java.net.SocketOption");
+            Class<?> network = Class.forName("java.nio.channels.NetworkChannel");
+
+            reusePort               = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+            socketSetOption         = ServerSocket.class.getMethod("setOption", option, Object.class);
+            socketSupportedOptions  = ServerSocket.class.getMethod("supportedOptions");
+            channelSetOption        = network.getMethod("setOption", option, Object.class);
+            channelSupportedOptions = network.getMethod("supportedOptions");
+        } catch (Exception e) {
+            // La maquina virtual no soporta SO_REUSEPORT.
+            reusePort = null;
+        }
+
+        REUSE_PORT                = reusePort;
+        SOCKET_SET_OPTION         = socketSetOption;
+        SOCKET_SUPPORTED_OPTIONS  = socketSupportedOptions;
+        CHANNEL_SET_OPTION        = channelSetOption;
+        CHANNEL_SUPPORTED_OPTIONS = channelSupportedOptions;
+    }
+
+    private ChatSockets() {}
+
+    /**
+     * Activa SO_REUSEPORT en un socket de servidor que aun no esta enlazado,
+     * para que varios sockets escuchen en la misma direccion y el sistema
+     * operativo reparta las conexiones entre ellos.
+     * @param socket El socket del servidor.
+     * @return true si la opcion se pudo activar, false en caso contrario.
+     */
+    public static boolean setReusePort(ServerSocket socket) {
+        if (REUSE_PORT == null) {
+            return false;
+        }
+
+        // Los sockets creados a partir de un canal se configuran con el canal.
+        Object target = socket;
+        Method supportedOptions = SOCKET_SUPPORTED_OPTIONS;
+        Method setOption = SOCKET_SET_OPTION;
+
+        if (socket.getChannel() != null) {
+            target = socket.getChannel();
+            supportedOptions = CHANNEL_SUPPORTED_OPTIONS;
+            setOption = CHANNEL_SET_OPTION;
+        }
+
+        try {
+            if (!((Set<?>) supportedOptions.invoke(target)).contains(REUSE_PORT)) {
+                return false;
+            }
+
+            setOption.invoke(target, REUSE_PORT, Boolean.TRUE);
+
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Carpeta donde el servidor guarda los archivos adjuntos que esta
+ * recibiendo. Las transferencias se identifican por su emisor y su
+ * identificador, y sobreviven a la desconexion de los clientes y al
+ * reinicio del servidor hasta que pasa el tiempo configurado sin que nadie
+ * las use. Los archivos tienen nombres aleatorios, por lo que varios
+ * servidores pueden compartir la carpeta sin sobrescribirse.
+ *
+ * @author wetteifer
+ */
+public class ChatStaging {
+
+    private final File folder;
+    private final long timeout;
+    private final ConcurrentMap<String, ChatTransfer> transfers;
+
+    /**
+     * Crea la carpeta de transferencias y recupera las transferencias
+     * incompletas que hayan quedado de una ejecucion anterior.
+     * @param folder La carpeta.
+     * @param timeout El tiempo que se conserva una transferencia sin usarse.
+     * @throws IOException Si no se pudo crear la carpeta.
+     */
+    public ChatStaging(File folder, long timeout) throws IOException {
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("No se pudo crear la carpeta " + folder);
+        }
+
+        this.folder = folder;
+        this.timeout = timeout;
+        this.transfers = new ConcurrentHashMap<String, ChatTransfer>();
+
+        load();
+    }
+
+    /**
+     * Recupera las transferencias guardadas en la carpeta. Las que no se
+     * pueden leer se eliminan, igual que las partes sin datos que ya
+     * expiraron.
+     */
+    private void load() {
+        File[] files = folder.listFiles();
+
+        if (files == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        for (File file : files) {
+            if (!file.getName().endsWith(".part")) {
+                continue;
+            }
+
+            File info = ChatTransfer.getInfo(file);
+
+            if (!info.isFile()) {
+                // Las partes recien creadas aun pueden no tener sus datos.
+                if (now - file.lastModified() > timeout) {
+                    file.delete();
+                }
+                continue;
+            }
+
+            try {
+                put(ChatTransfer.load(file));
+            } catch (IOException e) {
+                file.delete();
+                info.delete();
+            }
+        }
+    }
+
+    /**
+     * Crea una nueva transferencia, reemplazando a la que tuviera el mismo
+     * emisor e identificador.
+     * @param header El mensaje AUDIO o IMAGE que inicia la transferencia.
+     * @param receivers Los clientes que recibiran el archivo.
+     * @return La transferencia.
+     * @throws IOException Si no se pudo crear el archivo.
+     */
+    public ChatTransfer create(ChatMessage header, ChatClient[] receivers) throws IOException {
+        File file = new File(folder, UUID.randomUUID() + ".part");
+        ChatTransfer transfer = new ChatTransfer(header, receivers, file);
+
+        try {
+            transfer.save();
+        } catch (IOException e) {
+            transfer.delete();
+            throw e;
+        }
+
+        return put(transfer);
+    }
+
+    /**
+     * Registra una transferencia, eliminando la anterior con la misma llave.
+     */
+    private ChatTransfer put(ChatTransfer transfer) {
+        ChatTransfer previous = transfers.put(key(transfer.getOwner(), transfer.getId()), transfer);
+
+        if (previous != null) {
+            previous.delete();
+        }
+
+        return transfer;
+    }
+
+    /**
+     * Regresa una transferencia.
+     * @param owner El emisor del archivo.
+     * @param id El identificador de la transferencia.
+     * @return La transferencia, o null si no existe o ya expiro.
+     */
+    public ChatTransfer get(String owner, String id) {
+        return (owner == null || id == null) ? null : transfers.get(key(owner, id));
+    }
+
+    /**
+     * Elimina una transferencia y su archivo.
+     * @param transfer La transferencia.
+     */
+    public void remove(ChatTransfer transfer) {
+        transfers.remove(key(transfer.getOwner(), transfer.getId()), transfer);
+        transfer.delete();
+    }
+
+    /**
+     * Regresa el numero de transferencias guardadas.
+     * @return El numero de transferencias.
+     */
+    public int size() {
+        return transfers.size();
+    }
+
+    /**
+     * Elimina las transferencias que llevan demasiado tiempo sin usarse.
+     * @return El numero de transferencias eliminadas.
+     */
+    public int purge() {
+        long now = System.currentTimeMillis();
+        int count = 0;
+
+        Iterator<ChatTransfer> iterator = transfers.values().iterator();
+
+        while (iterator.hasNext()) {
+            ChatTransfer transfer = iterator.next();
+
+            if (transfer.isExpired(now, timeout)) {
+                iterator.remove();
+                transfer.delete();
+                ++count;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Cierra todas las transferencias sin eliminar sus archivos, para
+     * recuperarlas la proxima vez que se inicie el servidor.
+     */
+    public void close() {
+        for (ChatTransfer transfer : transfers.values()) {
+            transfer.close();
+        }
+
+        transfers.clear();
+    }
+
+    /**
+     * Regresa la llave de una transferencia.
+     */
+    private static String key(String owner, String id) {
+        return owner + "/" + id;
+    }
+
+}
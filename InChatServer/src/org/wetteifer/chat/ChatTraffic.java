@@ -0,0 +1,111 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bytes enviados y recibidos por una conexion, antes y despues de la
+ * compresion. Registrar una trama no usa candados.
+ *
+ * @author wetteifer
+ */
+public class ChatTraffic {
+
+    private final AtomicLong sentRaw;
+    private final AtomicLong sentWire;
+    private final AtomicLong receivedRaw;
+    private final AtomicLong receivedWire;
+
+    /**
+     * Crea los contadores en cero.
+     */
+    public ChatTraffic() {
+        this.sentRaw = new AtomicLong();
+        this.sentWire = new AtomicLong();
+        this.receivedRaw = new AtomicLong();
+        this.receivedWire = new AtomicLong();
+    }
+
+    /**
+     * Registra una trama enviada.
+     * @param raw El tamaño de la trama sin comprimir.
+     * @param wire El tamaño de la trama enviada.
+     */
+    public void sent(int raw, int wire) {
+        sentRaw.addAndGet(raw);
+        sentWire.addAndGet(wire);
+    }
+
+    /**
+     * Registra una trama recibida.
+     * @param raw El tamaño de la trama sin comprimir.
+     * @param wire El tamaño de la trama recibida.
+     */
+    public void received(int raw, int wire) {
+        receivedRaw.addAndGet(raw);
+        receivedWire.addAndGet(wire);
+    }
+
+    /**
+     * Regresa los bytes enviados.
+     * @return Los bytes que se escribieron en la conexion.
+     */
+    public long getSent() {
+        return sentWire.get();
+    }
+
+    /**
+     * Regresa los bytes recibidos.
+     * @return Los bytes que se leyeron de la conexion.
+     */
+    public long getReceived() {
+        return receivedWire.get();
+    }
+
+    /**
+     * Regresa la proporcion entre los bytes enviados y los que se habrian
+     * enviado sin compresion.
+     * @return Un numero entre 0 y 1 (o un poco mayor si no se comprimio).
+     */
+    public double getSentRatio() {
+        return ratio(sentWire.get(), sentRaw.get());
+    }
+
+    /**
+     * Regresa la proporcion entre los bytes recibidos y los que se habrian
+     * recibido sin compresion.
+     * @return Un numero entre 0 y 1 (o un poco mayor si no se comprimio).
+     */
+    public double getReceivedRatio() {
+        return ratio(receivedWire.get(), receivedRaw.get());
+    }
+
+    @Override
+    public String toString() {
+        return "enviados " + format(sentWire.get()) + " de " + format(sentRaw.get()) +
+               " (" + percent(getSentRatio()) + "), recibidos " + format(receivedWire.get()) +
+               " de " + format(receivedRaw.get()) + " (" + percent(getReceivedRatio()) + ")";
+    }
+
+    private static double ratio(long wire, long raw) {
+        return (raw == 0) ? 1 : (double) wire / raw;
+    }
+
+    /**
+     * Da formato a una cantidad de bytes en KB.
+     */
+    private static String format(long bytes) {
+        return (bytes / 1024) + "." + (bytes % 1024 * 10 / 1024) + " KB";
+    }
+
+    /**
+     * Da formato a una proporcion como porcentaje.
+     */
+    private static String percent(double ratio) {
+        return Math.round(ratio * 100) + "%";
+    }
+
+}
@@ -0,0 +1,375 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Transferencia de un archivo adjunto que el servidor reenvia por partes.
+ * Cada parte se guarda en disco y se envia a los receptores en cuanto llega,
+ * por lo que el servidor nunca guarda el archivo completo en memoria.
+ * El archivo se conserva aunque el emisor o los receptores pierdan la
+ * conexion, para que puedan continuar desde la ultima parte guardada. Sus
+ * datos se guardan junto al archivo, para recuperar la transferencia si el
+ * servidor se reinicia.
+ *
+ * @author wetteifer
+ */
+public class ChatTransfer {
+
+    private final String owner;
+    private final String id;
+    private final long size;
+    private final String hash;
+    private final MessageDigest digest;
+    private File file;
+    private final File info;
+    private RandomAccessFile data;
+    private boolean stored;
+    private final Set<String> audience;
+    private final List<ChatClient> receivers;
+    private long received;
+    private long touched;
+
+    /**
+     * Crea una nueva transferencia.
+     * @param header El mensaje AUDIO o IMAGE que inicia la transferencia.
+     * @param receivers Los clientes que recibiran el archivo.
+     * @param file El archivo donde se guardaran las partes.
+     * @throws IOException Si no se pudo abrir el archivo.
+     */
+    public ChatTransfer(ChatMessage header, ChatClient[] receivers, File file) throws IOException {
+        this(header.getSender(), header.getAttachment(), header.getSize(), header.getHash(), file);
+
+        // Solo los receptores originales pueden pedir el archivo. Los que lo
+        // piden con FETCH no reciben las partes hasta que lo soliciten.
+        for (ChatClient receiver : receivers) {
+            this.audience.add(receiver.getUsername());
+            
+            if (!receiver.isPullSupported()) {
+                this.receivers.add(receiver);
+            }
+        }
+    }
+
+    /**
+     * Crea una transferencia sin receptores.
+     */
+    private ChatTransfer(String owner, String id, long size, String hash, File file) throws IOException {
+        this.owner = owner;
+        this.id = id;
+        this.size = size;
+        this.hash = hash;
+        this.file = file;
+        this.info = getInfo(file);
+        this.data = new RandomAccessFile(file, "rw");
+        this.digest = ChatBlobStore.createDigest();
+        this.audience = new HashSet<String>();
+        this.receivers = new ArrayList<ChatClient>();
+        this.touched = System.currentTimeMillis();
+    }
+
+    /**
+     * Recupera una transferencia que quedo incompleta en una ejecucion
+     * anterior del servidor. Los bytes ya guardados se vuelven a leer para
+     * calcular su resumen.
+     * @param file El archivo donde se guardaron las partes.
+     * @return La transferencia, sin receptores.
+     * @throws IOException Si no se pudieron leer el archivo o sus datos.
+     */
+    public static ChatTransfer load(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(getInfo(file));
+
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+
+        String owner = properties.getProperty("owner");
+        String id = properties.getProperty("id");
+        long size;
+
+        try {
+            size = Long.parseLong(properties.getProperty("size", "-1"));
+        } catch (NumberFormatException e) {
+            size = -1;
+        }
+
+        if (owner == null || id == null || size < 0 || file.length() > size) {
+            throw new IOException("Datos invalidos de la transferencia " + file);
+        }
+
+        ChatTransfer transfer = new ChatTransfer(owner, id, size, properties.getProperty("hash"), file);
+
+        try {
+            for (String name : properties.stringPropertyNames()) {
+                if (name.startsWith("audience.")) {
+                    transfer.audience.add(properties.getProperty(name));
+                }
+            }
+
+            // Volvemos a calcular el resumen de las partes guardadas.
+            byte[] buffer = new byte[64 * 1024];
+            int readed;
+
+            while ((readed = transfer.data.read(buffer)) > 0) {
+                transfer.digest.update(buffer, 0, readed);
+                transfer.received += readed;
+            }
+        } catch (IOException e) {
+            transfer.close();
+            throw e;
+        }
+
+        transfer.touched = file.lastModified();
+
+        return transfer;
+    }
+
+    /**
+     * Guarda los datos de la transferencia junto a su archivo.
+     * @throws IOException Si no se pudieron guardar.
+     */
+    public synchronized void save() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("owner", owner);
+        properties.setProperty("id", id);
+        properties.setProperty("size", Long.toString(size));
+
+        if (hash != null) {
+            properties.setProperty("hash", hash);
+        }
+
+        int i = 0;
+
+        for (String username : audience) {
+            properties.setProperty("audience." + (i++), username);
+        }
+
+        OutputStream out = new FileOutputStream(info);
+
+        try {
+            properties.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Regresa el archivo con los datos de una transferencia.
+     * @param file El archivo donde se guardan las partes.
+     * @return El archivo de datos.
+     */
+    public static File getInfo(File file) {
+        String name = file.getName();
+
+        return new File(file.getParentFile(), name.substring(0, name.lastIndexOf('.') + 1) + "properties");
+    }
+
+    /**
+     * Regresa el nombre del usuario que envia el archivo.
+     * @return El emisor.
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * Regresa el identificador de la transferencia.
+     * @return El identificador.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Regresa el resumen SHA-256 que indico el emisor.
+     * @return El resumen en hexadecimal, o null si no lo indico.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * Regresa el tamaño total del archivo.
+     * @return El tamaño en bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Regresa los clientes que reciben las partes conforme llegan.
+     * @return Una copia de los receptores.
+     */
+    public synchronized ChatClient[] getReceivers() {
+        return receivers.toArray(new ChatClient[receivers.size()]);
+    }
+
+    /**
+     * Verifica si un usuario fue uno de los receptores del archivo.
+     * @param username El nombre del usuario.
+     * @return true si el usuario puede pedir el archivo.
+     */
+    public synchronized boolean isAllowed(String username) {
+        return audience.contains(username);
+    }
+
+    /**
+     * Agrega un receptor para que reciba las partes conforme lleguen.
+     * @param client El cliente.
+     */
+    public synchronized void follow(ChatClient client) {
+        if (!receivers.contains(client)) {
+            receivers.add(client);
+        }
+    }
+
+    /**
+     * Deja de enviar las partes a un receptor.
+     * @param client El cliente.
+     */
+    public synchronized void unfollow(ChatClient client) {
+        receivers.remove(client);
+    }
+
+    /**
+     * Verifica que una parte sea la siguiente del archivo y la guarda.
+     * @param chunk La parte recibida del emisor.
+     * @return true si la parte es valida, false en caso contrario.
+     * @throws IOException Si no se pudo escribir la parte.
+     */
+    public synchronized boolean write(ChatMessage chunk) throws IOException {
+        byte[] bytes = chunk.getData();
+
+        if (stored || bytes == null || chunk.getOffset() != received || received + bytes.length > size) {
+            return false;
+        }
+
+        data.seek(received);
+        data.write(bytes);
+        digest.update(bytes);
+
+        received += bytes.length;
+        touched = System.currentTimeMillis();
+
+        return true;
+    }
+
+    /**
+     * Lee una parte ya guardada del archivo.
+     * @param offset La posicion de la parte.
+     * @param buffer El arreglo donde se guardan los bytes.
+     * @return La cantidad de bytes leidos, o 0 si no hay mas bytes guardados.
+     * @throws IOException Si no se pudo leer el archivo.
+     */
+    public synchronized int read(long offset, byte[] buffer) throws IOException {
+        int length = (int) Math.min(buffer.length, received - offset);
+
+        if (length <= 0) {
+            return 0;
+        }
+
+        data.seek(offset);
+        data.readFully(buffer, 0, length);
+
+        touched = System.currentTimeMillis();
+
+        return length;
+    }
+
+    /**
+     * Regresa la cantidad de bytes guardados.
+     * @return Los bytes recibidos del emisor.
+     */
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    /**
+     * Verifica si ya se recibio el archivo completo.
+     * @return true si la transferencia termino.
+     */
+    public synchronized boolean isComplete() {
+        return received == size;
+    }
+
+    /**
+     * Mueve el archivo completo al almacen si su contenido coincide con el
+     * resumen que indico el emisor. Despues, las partes se leen del almacen.
+     * @param blobs El almacen de archivos.
+     * @return true si el archivo se guardo, false si no coincide el resumen.
+     * @throws IOException Si no se pudo mover el archivo.
+     */
+    public synchronized boolean store(ChatBlobStore blobs) throws IOException {
+        if (stored || !isComplete()) {
+            return stored;
+        }
+
+        if (hash == null || !hash.equals(ChatBlobStore.toHex(digest.digest()))) {
+            return false;
+        }
+
+        data.close();
+        file = blobs.store(file, hash);
+        data = new RandomAccessFile(file, "r");
+        stored = true;
+
+        // El archivo completo ya no se recupera de la carpeta.
+        info.delete();
+
+        return true;
+    }
+
+    /**
+     * Verifica si la transferencia lleva demasiado tiempo sin usarse.
+     * @param now El momento actual en milisegundos.
+     * @param timeout El tiempo maximo sin uso en milisegundos.
+     * @return true si la transferencia expiro.
+     */
+    public synchronized boolean isExpired(long now, long timeout) {
+        return now - touched > timeout;
+    }
+
+    /**
+     * Cierra el archivo de la transferencia y la conserva en disco, para
+     * recuperarla cuando el servidor se inicie de nuevo.
+     */
+    public synchronized void close() {
+        try {
+            data.close();
+        } catch (IOException e) {}
+
+        receivers.clear();
+    }
+
+    /**
+     * Cierra y elimina el archivo de la transferencia. Los archivos del
+     * almacen se conservan.
+     */
+    public synchronized void delete() {
+        close();
+
+        if (!stored) {
+            file.delete();
+            info.delete();
+        }
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Mide el tiempo y la memoria que reserva cada linea del registro del
+ * servidor. Compara el formato que usaba el servidor (SimpleDateFormat y
+ * concatenacion de cadenas) con ChatFormat: la hora, una linea de un
+ * mensaje y un aviso.
+ * La memoria se mide con los bytes reservados por el hilo, por lo que
+ * necesita una JVM de HotSpot. Las llamadas de ChatFormat aun reservan la
+ * cadena que regresan; la mejora es una reduccion, no la ausencia de
+ * basura.
+ * Tambien mide lo que reserva el registro de un mensaje reenviado en el
+ * hilo que lo reenvia, como lo hace ChatServer: sin oyentes no se crea el
+ * evento ni su texto, y el programa termina con error si se reserva algun
+ * byte. Con un oyente de texto solo se crea el evento; su texto se arma en
+ * el hilo de los eventos.
+ * Uso: java -cp build/classes:build/test/classes org.wetteifer.chat.ChatFormatBenchmark [llamadas]
+ *
+ * @author wetteifer
+ */
+public class ChatFormatBenchmark {
+
+    private static final SimpleDateFormat TIME_FORMAT = new SimpleDateFormat("HH:mm:ss");
+
+    private static final String[] NAMES = {
+        "hora (antes)", "hora (ChatFormat)",
+        "mensaje (antes)", "mensaje (ChatFormat)",
+        "aviso (antes)", "aviso (ChatFormat)"
+    };
+
+    private static final String[] RELAY_NAMES = {
+        "reenvio (sin oyente)", "reenvio (con oyente)"
+    };
+
+    private static final int ROUNDS = 3;
+
+    private static long sink;
+
+    public static void main(String[] args) {
+        int calls = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+        ChatMessage chat = new ChatMessage(ChatMessage.Type.MESSAGE, "usuario1", null, "hola, que tal?");
+
+        System.out.println("llamada                  ns/llamada  bytes/llamada");
+
+        // Las primeras rondas solo calientan la JVM.
+        for (int round = 1; round <= ROUNDS; ++round) {
+            for (int mode = 0; mode < NAMES.length; ++mode) {
+                long bytes = getAllocatedBytes();
+                long start = System.nanoTime();
+
+                for (int i = 0; i < calls; ++i) {
+                    sink += format(mode, chat).length();
+                }
+
+                long elapsed = System.nanoTime() - start;
+                bytes = getAllocatedBytes() - bytes;
+
+                if (round == ROUNDS) {
+                    System.out.println(String.format("%-24s %10.0f  %13.1f",
+                            NAMES[mode], (double) elapsed / calls, (double) bytes / calls));
+                }
+            }
+        }
+
+        long[] relayed = new long[RELAY_NAMES.length];
+
+        // La cola sin oyentes y la cola con un oyente de texto.
+        for (int round = 1; round <= ROUNDS; ++round) {
+            for (int mode = 0; mode < RELAY_NAMES.length; ++mode) {
+                ChatEventQueue events = createEvents(mode == 1);
+                long bytes = getAllocatedBytes();
+                long start = System.nanoTime();
+
+                for (int i = 0; i < calls; ++i) {
+                    relayed(events, chat, start);
+                }
+
+                long elapsed = System.nanoTime() - start;
+                relayed[mode] = getAllocatedBytes() - bytes;
+                events.shutdown();
+
+                if (round == ROUNDS) {
+                    System.out.println(String.format("%-24s %10.0f  %13.1f",
+                            RELAY_NAMES[mode], (double) elapsed / calls, (double) relayed[mode] / calls));
+                }
+            }
+        }
+
+        if (sink == 0) {
+            System.out.println();
+        }
+
+        // La medicion misma reserva unos cientos de bytes por ronda, por lo
+        // que se revisa que no se reserve nada por mensaje.
+        if (relayed[0] >= calls) {
+            System.err.println("El registro de un mensaje reenviado sin oyentes reservo memoria.");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Crea la cola de eventos del servidor, con o sin un oyente que muestra
+     * el texto de cada evento.
+     */
+    private static ChatEventQueue createEvents(boolean listener) {
+        ChatEventQueue events = new ChatEventQueue(8192, ChatEventQueue.Policy.DROP);
+
+        if (listener) {
+            events.addListener(new ChatServerEventListener() {
+                @Override
+                public Set<ChatServerEvent.Kind> getEvents() {
+                    return EnumSet.allOf(ChatServerEvent.Kind.class);
+                }
+
+                @Override
+                public void onEvent(ChatServerEvent event) {
+                    sink += event.format().length();
+                }
+            });
+        }
+
+        events.start();
+        return events;
+    }
+
+    /**
+     * Registra un mensaje reenviado, igual que ChatServer despues de
+     * enviarlo a los clientes.
+     */
+    private static void relayed(ChatEventQueue events, ChatMessage chat, long start) {
+        if (events.accepts(ChatServerEvent.Kind.MESSAGE_RELAYED)) {
+            events.publish(ChatServerEvent.relayed(chat, 10, 100, System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Arma una linea con el formato indicado.
+     */
+    private static String format(int mode, ChatMessage chat) {
+        long now = System.currentTimeMillis();
+
+        switch (mode) {
+            case 0:
+                return formatTime(new Date(now));
+            case 1:
+                return ChatFormat.formatTime(now);
+            case 2:
+                return formatTime(new Date(now)) + "[" + chat.getSender() + "] dice:" +
+                       ("\n" + chat.getMessage()).replaceAll("\n", "\n" + ChatFormat.PADDING);
+            case 3:
+                chat.setTime(now);
+                return ChatFormat.formatMessage(chat);
+            case 4:
+                return formatTime(new Date(now)) + "El usuario [usuario1] se ha conectado.";
+            default:
+                return ChatFormat.formatNotice(now, null, "El usuario [usuario1] se ha conectado.");
+        }
+    }
+
+    /**
+     * El formato de la hora que usaba el servidor.
+     */
+    private static String formatTime(Date date) {
+        return "(" + TIME_FORMAT.format(date) + ") > ";
+    }
+
+    /**
+     * Regresa los bytes reservados por el hilo actual, o 0 si la JVM no
+     * los mide.
+     */
+    private static long getAllocatedBytes() {
+        Object bean = ManagementFactory.getThreadMXBean();
+
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        return 0;
+    }
+
+}
@@ -0,0 +1,240 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Mide la memoria y los hilos que ocupa cada conexion inactiva con sesion
+ * iniciada, segun el motor del servidor (thread, virtual o nio).
+ * Cada ejecucion mide un solo motor, porque la memoria nativa de los hilos
+ * no se devuelve al terminar; para comparar se ejecuta una vez por motor.
+ * Las conexiones se abren en el mismo proceso desde un solo hilo, por lo
+ * que sus sockets tambien se cuentan; el motor "sockets" mide solo esas
+ * conexiones contra un servidor que las acepta y no hace nada mas. Los
+ * avisos de ingreso se envian agrupados, para medir las conexiones y no
+ * los mensajes pendientes.
+ * La memoria residente se lee de /proc/self/status, por lo que necesita
+ * Linux; el motor virtual necesita Java 21.
+ * Uso: java -cp build/classes:build/test/classes org.wetteifer.chat.ChatMemoryBenchmark motor [conexiones] [puerto]
+ *
+ * @author wetteifer
+ */
+public class ChatMemoryBenchmark {
+
+    private static final ByteBuffer BUFFER = ByteBuffer.allocateDirect(64 * 1024);
+
+    // Conexiones que se abren antes de esperar sus inicios de sesion, para
+    // no llenar la cola de inicios de sesion del servidor.
+    private static final int BATCH = 100;
+
+    public static void main(String[] args) throws Exception {
+        String engine = (args.length > 0) ? args[0].toUpperCase() : "THREAD";
+        int connections = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+        int port = (args.length > 2) ? Integer.parseInt(args[2]) : 18080;
+
+        CountDownLatch logins = new CountDownLatch(connections);
+        List<SocketChannel> accepted = new ArrayList<SocketChannel>();
+
+        if ("SOCKETS".equals(engine)) {
+            accept(port, connections, accepted, logins);
+        } else {
+            start(ChatServerConfig.Engine.valueOf(engine), port, logins);
+        }
+
+        Thread.sleep(1000);
+
+        long[] before = measure();
+        Selector selector = Selector.open();
+
+        for (int i = 0; i < connections; ++i) {
+            connect(selector, port, "memoria" + i);
+
+            if ((i + 1) % BATCH == 0 || i + 1 == connections) {
+                // Esperamos a que las sesiones del grupo esten iniciadas.
+                long deadline = System.currentTimeMillis() + 10 * 1000;
+
+                while (logins.getCount() > connections - i - 1 && System.currentTimeMillis() < deadline) {
+                    drain(selector, 10);
+                }
+            }
+        }
+
+        // Dejamos que se entreguen los avisos de ingreso.
+
+        for (int i = 0; i < 20; ++i) {
+            drain(selector, 100);
+        }
+
+        long[] after = measure();
+        int connected = connections - (int) logins.getCount();
+
+        System.out.println("motor    conexiones  RSS/conexion  heap/conexion  hilos antes  hilos despues");
+        System.out.println(String.format("%-8s %10d  %9.1f KB  %10.1f KB  %11d  %13d",
+                engine.toLowerCase(), connected,
+                (after[0] - before[0]) / 1024.0 / connected,
+                (after[1] - before[1]) / 1024.0 / connected,
+                before[2], after[2]));
+
+        System.exit(0);
+    }
+
+    /**
+     * Inicia el servidor con el motor indicado y cuenta los inicios de
+     * sesion con un oyente de eventos.
+     */
+    private static void start(ChatServerConfig.Engine engine, int port, final CountDownLatch logins) throws ChatException {
+        File folder = new File(System.getProperty("java.io.tmpdir"), "inchat-memory");
+
+        ChatServerConfig config = new ChatServerConfig();
+        config.setEngine(engine);
+        config.setAddresses(Collections.singletonList(new InetSocketAddress(port)));
+        config.setStagingFolder(new File(folder, "staging"));
+        config.setBlobFolder(new File(folder, "blobs"));
+
+        // Los avisos de ingreso se agrupan para que las colas de salida no
+        // crezcan con ellos durante la medicion.
+        config.setPresenceThreshold(0);
+
+        ChatServer server = new ChatServer(config);
+        server.addChatServerEventListener(new ChatServerEventListener() {
+            @Override
+            public Set<ChatServerEvent.Kind> getEvents() {
+                return EnumSet.of(ChatServerEvent.Kind.CONNECTED);
+            }
+
+            @Override
+            public void onEvent(ChatServerEvent event) {
+                logins.countDown();
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * Acepta las conexiones sin atenderlas, para medir solo los sockets.
+     */
+    private static void accept(int port, final int connections, final List<SocketChannel> accepted,
+            final CountDownLatch logins) throws IOException {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(port), connections);
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (accepted.size() < connections) {
+                        accepted.add(server.accept());
+                        logins.countDown();
+                    }
+                } catch (IOException e) {
+                    System.err.println(e);
+                }
+            }
+        }, "ChatMemoryAcceptor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Abre una conexion y envia su mensaje de inicio de sesion.
+     */
+    private static void connect(Selector selector, int port, String username) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+        channel.write(ByteBuffer.wrap(ChatCodec.SERIAL.encode(new ChatMessage(ChatMessage.Type.LOGIN, null, null, username))));
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    /**
+     * Lee y descarta lo que el servidor haya enviado a las conexiones, y
+     * cierra las que el servidor cerro.
+     */
+    private static void drain(Selector selector, long timeout) throws IOException {
+        if (timeout == 0) {
+            selector.selectNow();
+        } else {
+            selector.select(timeout);
+        }
+
+        for (SelectionKey key : selector.selectedKeys()) {
+            SocketChannel channel = (SocketChannel) key.channel();
+            int readed;
+
+            do {
+                BUFFER.clear();
+                readed = channel.read(BUFFER);
+            } while (readed > 0);
+
+            if (readed < 0) {
+                key.cancel();
+                channel.close();
+            }
+        }
+
+        selector.selectedKeys().clear();
+    }
+
+    /**
+     * Regresa la memoria residente, el heap usado despues de recolectar la
+     * basura y el numero de hilos de plataforma.
+     */
+    private static long[] measure() throws Exception {
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            Thread.sleep(200);
+        }
+
+        long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        long threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        return new long[] { getResidentBytes(), heap, threads };
+    }
+
+    /**
+     * Lee la memoria residente del proceso, o 0 si no se puede leer.
+     */
+    private static long getResidentBytes() {
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new FileReader("/proc/self/status"));
+            String line;
+
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException e) {
+            // La memoria residente solo se puede leer en Linux.
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {}
+            }
+        }
+
+        return 0;
+    }
+
+}
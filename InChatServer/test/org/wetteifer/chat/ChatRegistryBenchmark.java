@@ -0,0 +1,280 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mide la contencion del registro de clientes con 1k, 10k y 50k usuarios.
+ * Compara el mapa sincronizado que usaba el servidor con ChatRegistry:
+ * tres hilos buscan usuarios al azar (como unicast), uno recorre a todos
+ * los clientes (como broadcast) y otro agrega y quita usuarios (como los
+ * inicios y cierres de sesion).
+ * Uso: java -cp build/classes:build/test/classes org.wetteifer.chat.ChatRegistryBenchmark [segundos]
+ *
+ * @author wetteifer
+ */
+public class ChatRegistryBenchmark {
+
+    private static final int[] USERS = { 1000, 10000, 50000 };
+
+    private static final int LOOKUP_THREADS = 3;
+
+    private static volatile boolean running;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 3;
+        ChatServer server = new ChatServer(new ChatServerConfig());
+
+        System.out.println("usuarios  registro   busquedas/s  recorridos/s  sesiones/s  busqueda max");
+
+        for (int users : USERS) {
+            run(server, users, new SynchronizedRegistry(), seconds);
+            run(server, users, new ConcurrentRegistry(), seconds);
+        }
+
+        System.exit(0);
+    }
+
+    /**
+     * Mide un registro con un numero de usuarios.
+     */
+    private static void run(final ChatServer server, int users, final Registry registry, int seconds) throws InterruptedException {
+        final String[] names = new String[users];
+
+        for (int i = 0; i < users; ++i) {
+            names[i] = "user" + i;
+            registry.add(new Client(server, names[i]));
+        }
+
+        final AtomicLong lookups = new AtomicLong();
+        final AtomicLong fanouts = new AtomicLong();
+        final AtomicLong sessions = new AtomicLong();
+        final AtomicLong maxLookup = new AtomicLong();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        running = true;
+
+        for (int i = 0; i < LOOKUP_THREADS; ++i) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    Random random = new Random();
+                    long count = 0;
+                    long max = 0;
+
+                    while (running) {
+                        long start = System.nanoTime();
+                        registry.get(names[random.nextInt(names.length)]);
+                        max = Math.max(max, System.nanoTime() - start);
+                        ++count;
+                    }
+
+                    lookups.addAndGet(count);
+
+                    synchronized (maxLookup) {
+                        maxLookup.set(Math.max(max, maxLookup.get()));
+                    }
+                }
+            });
+        }
+
+        threads.add(new Thread() {
+            @Override
+            public void run() {
+                long count = 0;
+
+                while (running) {
+                    registry.fanout();
+                    ++count;
+                }
+
+                fanouts.addAndGet(count);
+            }
+        });
+
+        threads.add(new Thread() {
+            @Override
+            public void run() {
+                long count = 0;
+                int next = 0;
+
+                while (running) {
+                    Client client = new Client(server, "churn" + (next++ % 64));
+
+                    if (registry.add(client)) {
+                        registry.remove(client);
+                        ++count;
+                    }
+
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                sessions.addAndGet(count);
+            }
+        });
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        Thread.sleep(seconds * 1000L);
+        running = false;
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        System.out.printf("%8d  %-9s %,13d %,13d %,11d %,10d us%n", users, registry.getName(),
+                lookups.get() / seconds, fanouts.get() / seconds, sessions.get() / seconds, maxLookup.get() / 1000);
+    }
+
+    /**
+     * Las operaciones del registro que se miden.
+     */
+    private interface Registry {
+
+        String getName();
+
+        boolean add(ChatClient client);
+
+        void remove(ChatClient client);
+
+        ChatClient get(String username);
+
+        long fanout();
+
+    }
+
+    /**
+     * El mapa sincronizado que usaba el servidor.
+     */
+    private static final class SynchronizedRegistry implements Registry {
+
+        private final Map<String, ChatClient> clients = Collections.synchronizedMap(new HashMap<String, ChatClient>());
+
+        @Override
+        public String getName() {
+            return "sync";
+        }
+
+        @Override
+        public boolean add(ChatClient client) {
+            synchronized (clients) {
+                if (clients.containsKey(client.getUsername())) return false;
+                clients.put(client.getUsername(), client);
+                return true;
+            }
+        }
+
+        @Override
+        public void remove(ChatClient client) {
+            clients.remove(client.getUsername());
+        }
+
+        @Override
+        public ChatClient get(String username) {
+            return clients.get(username);
+        }
+
+        @Override
+        public long fanout() {
+            long sum = 0;
+
+            synchronized (clients) {
+                for (ChatClient client : clients.values()) {
+                    sum += client.hashCode();
+                }
+            }
+
+            return sum;
+        }
+
+    }
+
+    /**
+     * El registro actual del servidor.
+     */
+    private static final class ConcurrentRegistry implements Registry {
+
+        private final ChatRegistry clients = new ChatRegistry();
+
+        @Override
+        public String getName() {
+            return "registry";
+        }
+
+        @Override
+        public boolean add(ChatClient client) {
+            return clients.add(client);
+        }
+
+        @Override
+        public void remove(ChatClient client) {
+            clients.remove(client);
+        }
+
+        @Override
+        public ChatClient get(String username) {
+            return clients.get(username);
+        }
+
+        @Override
+        public long fanout() {
+            long sum = 0;
+
+            for (ChatClient client : clients.snapshot()) {
+                sum += client.hashCode();
+            }
+
+            return sum;
+        }
+
+    }
+
+    /**
+     * Un cliente sin conexion, solo con su nombre.
+     */
+    private static final class Client extends ChatClient {
+
+        private final String username;
+
+        Client(ChatServer server, String username) {
+            super(server);
+            this.username = username;
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public void close() {}
+
+        @Override
+        public void abort() {}
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        protected void requestFlush() {}
+
+    }
+
+}
@@ -0,0 +1,191 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package org.wetteifer.chat.gui;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+
+/**
+ * Muestra en un area de texto las lineas de la consola del servidor.
+ * Las lineas pueden llegar desde cualquier hilo; se juntan y se agregan al
+ * area desde el hilo de Swing unas cuantas veces por segundo, con una sola
+ * actualizacion por lote. Solo se conservan las ultimas lineas, por lo que
+ * la memoria y el costo de dibujar el area no crecen con el tiempo.
+ * La vista se puede pausar y filtrar; las lineas se siguen guardando
+ * mientras tanto.
+ *
+ * @author wetteifer
+ */
+public class ChatLogView implements ActionListener {
+
+    private final JTextArea area;
+    private final int maxLines;
+    private final Queue<String> pending;
+    private final AtomicInteger pendingCount;
+    private final ArrayDeque<String> lines;
+    private final Timer timer;
+    private boolean paused;
+    private String filter;
+
+    /**
+     * Crea la vista e inicia sus actualizaciones.
+     * @param area El area de texto donde se muestran las lineas.
+     * @param maxLines El numero maximo de lineas que se conservan.
+     * @param framesPerSecond Cuantas veces por segundo se actualiza el area.
+     */
+    public ChatLogView(JTextArea area, int maxLines, int framesPerSecond) {
+        this.area = area;
+        this.maxLines = maxLines;
+        this.pending = new ConcurrentLinkedQueue<String>();
+        this.pendingCount = new AtomicInteger();
+        this.lines = new ArrayDeque<String>(maxLines);
+        this.timer = new Timer(1000 / framesPerSecond, this);
+        this.timer.start();
+    }
+
+    /**
+     * Agrega una linea. Puede llamarse desde cualquier hilo.
+     * Si el hilo de Swing no alcanza a mostrar las lineas, las mas antiguas
+     * pendientes se descartan.
+     * @param line La linea.
+     */
+    public void append(String line) {
+        pending.offer(line);
+
+        if (pendingCount.incrementAndGet() > maxLines && pending.poll() != null) {
+            pendingCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Agrega al area las lineas pendientes. Lo llama el temporizador desde
+     * el hilo de Swing.
+     * @param e El evento del temporizador.
+     */
+    @Override
+    public void actionPerformed(ActionEvent e) {
+        if (pendingCount.get() == 0) {
+            return;
+        }
+
+        StringBuilder batch = new StringBuilder();
+        String line;
+
+        while ((line = pending.poll()) != null) {
+            pendingCount.decrementAndGet();
+
+            lines.addLast(line);
+
+            if (lines.size() > maxLines) {
+                lines.removeFirst();
+            }
+
+            if (!paused && matches(line)) {
+                batch.append(line).append('\n');
+            }
+        }
+
+        if (batch.length() > 0) {
+            area.append(batch.toString());
+            trim();
+        }
+    }
+
+    /**
+     * Pausa o continua la vista. Al continuar se muestran las lineas que
+     * llegaron durante la pausa.
+     * Solo debe llamarse desde el hilo de Swing.
+     * @param paused true para pausar.
+     */
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+
+        if (!paused) {
+            render();
+        }
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Muestra solo las lineas que contienen un texto.
+     * Solo debe llamarse desde el hilo de Swing.
+     * @param filter El texto, o null para mostrar todas las lineas.
+     */
+    public void setFilter(String filter) {
+        this.filter = (filter == null || filter.isEmpty()) ? null : filter;
+        render();
+    }
+
+    public String getFilter() {
+        return filter;
+    }
+
+    /**
+     * Borra todas las lineas.
+     * Solo debe llamarse desde el hilo de Swing.
+     */
+    public void clear() {
+        lines.clear();
+        area.setText("");
+    }
+
+    /**
+     * Detiene las actualizaciones de la vista.
+     */
+    public void stop() {
+        timer.stop();
+    }
+
+    /**
+     * Verifica si una linea pasa el filtro.
+     */
+    private boolean matches(String line) {
+        return filter == null || line.contains(filter);
+    }
+
+    /**
+     * Vuelve a mostrar las lineas guardadas que pasan el filtro.
+     */
+    private void render() {
+        StringBuilder text = new StringBuilder();
+
+        for (String line : lines) {
+            if (matches(line)) {
+                text.append(line).append('\n');
+            }
+        }
+
+        area.setText(text.toString());
+        trim();
+    }
+
+    /**
+     * Elimina del area las lineas mas antiguas que sobran.
+     */
+    private void trim() {
+        int excess = area.getLineCount() - 1 - maxLines;
+
+        if (excess <= 0) {
+            return;
+        }
+
+        try {
+            area.getDocument().remove(0, area.getLineEndOffset(excess - 1));
+        } catch (BadLocationException e) {
+            area.setText("");
+        }
+    }
+
+}
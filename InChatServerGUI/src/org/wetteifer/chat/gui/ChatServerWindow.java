@@ -5,8 +5,13 @@
 package org.wetteifer.chat.gui;
 
 import java.awt.EventQueue;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
+import javax.swing.JCheckBoxMenuItem;
+import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
+import javax.swing.JPopupMenu;
 import javax.swing.UIManager;
 import org.wetteifer.chat.ChatException;
 import org.wetteifer.chat.ChatServer;
@@ -20,7 +25,16 @@ public class ChatServerWindow extends javax.swing.JFrame implements ChatServerLi
     
     private static final long serialVersionUID = -718885496896811717L;
     
+    // Numero maximo de lineas que se conservan en la consola.
+    private static final int MAX_LINES = 5000;
+    
+    // Veces por segundo que se actualiza la consola.
+    private static final int FRAMES_PER_SECOND = 30;
+    
+    private static final String TITLE = "Consola del Servidor InChat";
+    
     private ChatServer server;
+    private ChatLogView log;
 
     /**
      * Creates new form ChatServerWindow.
@@ -28,15 +42,87 @@ public class ChatServerWindow extends javax.swing.JFrame implements ChatServerLi
     public ChatServerWindow() {
         initComponents();
         setLocationRelativeTo(null);
+
+        log = new ChatLogView(txtMessages, MAX_LINES, FRAMES_PER_SECOND);
+        createLogMenu();
     }
     
     /**
-     * Agrega texto al area de mensajes.
+     * Agrega texto al area de mensajes. Puede llamarse desde cualquier hilo.
      * @param message El mensaje a agregar.
      */
     private void append(String message) {
-        txtMessages.append(message);
-        txtMessages.append("\n");
+        log.append(message);
+    }
+    
+    /**
+     * Crea el menu contextual de la consola para pausarla, filtrarla o
+     * borrarla.
+     */
+    private void createLogMenu() {
+        final JCheckBoxMenuItem itemPause = new JCheckBoxMenuItem("Pausar");
+        JMenuItem itemFilter = new JMenuItem("Filtrar...");
+        JMenuItem itemClear = new JMenuItem("Limpiar");
+
+        itemPause.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                log.setPaused(itemPause.isSelected());
+                updateTitle();
+            }
+        });
+
+        itemFilter.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                Object filter = JOptionPane.showInputDialog(
+                        ChatServerWindow.this,
+                        "Mostrar solo las lineas que contienen (vacio para mostrar todas):",
+                        "Filtrar",
+                        JOptionPane.PLAIN_MESSAGE,
+                        null,
+                        null,
+                        log.getFilter());
+
+                // Se eligio la opcion cancelar.
+                if (filter == null) return;
+
+                log.setFilter(filter.toString());
+                updateTitle();
+            }
+        });
+
+        itemClear.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                log.clear();
+            }
+        });
+
+        JPopupMenu menu = new JPopupMenu();
+        menu.add(itemPause);
+        menu.add(itemFilter);
+        menu.addSeparator();
+        menu.add(itemClear);
+
+        txtMessages.setComponentPopupMenu(menu);
+    }
+    
+    /**
+     * Muestra en el titulo si la consola esta pausada o filtrada.
+     */
+    private void updateTitle() {
+        StringBuilder title = new StringBuilder(TITLE);
+
+        if (log.isPaused()) {
+            title.append(" (pausada)");
+        }
+
+        if (log.getFilter() != null) {
+            title.append(" [filtro: ").append(log.getFilter()).append(']');
+        }
+
+        setTitle(title.toString());
     }
     
     /**